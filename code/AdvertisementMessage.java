@@ -19,17 +19,22 @@ public class AdvertisementMessage extends Message {
     private int serverPort;                     // port the server (which sent advertisement) is listening on  
     private boolean searchPossible = false;     // boolean for whether search capability is possible
     private boolean downloadPossible = false;   // boolean for whether download capability is possible 
+    private boolean binaryCodec = false;        // boolean for whether the node can receive binary messages (see MessageCodec)
+    private long interval = 0;                  // ms, longest time until the node's next advertisement (0 if not given)
+    private long receivedTime = 0;              // ns, System.nanoTime() the advertisement was received
 
     /**
      * Constructor for tx AdvertisementMessage.
      * @param configuration : the current machine's configuration.
+     * @param serverPort    : the port of the current machine's file transfer server.
      */
-    public AdvertisementMessage(Configuration configuration) {
+    public AdvertisementMessage(Configuration configuration, int serverPort) {
         super();
 
-        this.serverPort = configuration.mPort;
+        this.serverPort = serverPort;
         this.searchPossible = configuration.search;
         this.downloadPossible = configuration.download;
+        this.binaryCodec = configuration.codec.equals("binary");
     }
 
     /**
@@ -41,7 +46,7 @@ public class AdvertisementMessage extends Message {
      */ 
     public AdvertisementMessage(int serverPort, String timestamp, String identifier, long serialNo) {
         // (username, hostname, timestamp, identifier, serialNo)
-        super(identifier.split("@")[0], identifier.split("@")[1], timestamp, identifier, serialNo);
+        super(usernameOf(identifier), hostnameOf(identifier), timestamp, identifier, serialNo);
 
         this.serverPort = serverPort;
     }
@@ -70,6 +75,30 @@ public class AdvertisementMessage extends Message {
         this.downloadPossible = downloadPossible;
     }
 
+    /**
+     * Setter function for binaryCodec.
+     * @param binaryCodec : boolean true or false
+     */
+    public void setBinaryCodec(boolean binaryCodec) {
+        this.binaryCodec = binaryCodec;
+    }
+
+    /**
+     * Setter function for interval.
+     * @param interval : longest time (ms) until the node's next advertisement, 0 if not given.
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Setter function for receivedTime.
+     * @param receivedTime : System.nanoTime() the advertisement was received.
+     */
+    public void setReceivedTime(long receivedTime) {
+        this.receivedTime = receivedTime;
+    }
+
     /**
      * Returns the a string indicating the type of message
      */
@@ -100,13 +129,43 @@ public class AdvertisementMessage extends Message {
         return downloadPossible;
     }
 
+    /**
+     * Returns whether the node can receive binary messages.
+     */
+    public boolean isBinaryCodec() {
+        return binaryCodec;
+    }
+
+    /**
+     * Returns the longest time (ms) until the node's next advertisement, 0 if not given.
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the System.nanoTime() the advertisement was received.
+     */
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+
+    /**
+     * Returns whether another advertisement offers the same services on the same port.
+     */
+    public boolean sameServices(AdvertisementMessage other) {
+        return other != null && serverPort == other.serverPort && searchPossible == other.searchPossible &&
+               downloadPossible == other.downloadPossible && binaryCodec == other.binaryCodec;
+    }
+
     /**
      * Returns a string of capable services as should be displayed
      * in an advertisement message.
-     * @return String of format <service>=<true or false>, <service>=<true of false>
+     * @return String of format <service>=<true or false>, <service>=<true of false>[, codec=binary][, interval=<ms>]
      */
     public String getServicesString() {
-        return "search=" + searchPossible + "," + "download=" + downloadPossible;
+        return "search=" + searchPossible + "," + "download=" + downloadPossible + (binaryCodec ? ",codec=binary" : "") + 
+               (interval > 0 ? ",interval=" + interval : "");
     }
 
     /**
@@ -125,7 +184,7 @@ public class AdvertisementMessage extends Message {
      */
     public static void main(String[] args) {
         Configuration conf = new Configuration("filetreebrowser.properties");
-        AdvertisementMessage msg = new AdvertisementMessage(conf);
+        AdvertisementMessage msg = new AdvertisementMessage(conf, conf.transferPort);
 
         System.out.println(msg.toString());
     }
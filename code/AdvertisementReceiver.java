@@ -2,6 +2,7 @@ import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.net.UnknownHostException;
@@ -17,6 +18,15 @@ import java.net.NetworkInterface;
  * Manages storage and cleaning of stored advertisements - to ensure 
  * the ":nodes" command of UI returns all up-to-date advertisments.
  * 
+ * An advertisement expires once the interval it gives (the longest time until the node's next 
+ * advertisement), plus maximumAdvertisementPeriod ms of grace, has passed since it was received, 
+ * measured by this node's monotonic clock (System.nanoTime()), so neither the sender's clock nor 
+ * changes to the local wall clock matter. Deadlines are kept in a TimerWheel, so each tick costs 
+ * only the advertisements actually expiring, however many nodes there are.
+ * 
+ * Nodes joining, changing their services and leaving (expiring) are reported to each Listener, 
+ * and nodes repeating what is already known to the AdvertisementSender to adapt its timing.
+ * 
  * @author 190015412
  * @since November 2024
  */
@@ -27,30 +37,59 @@ public class AdvertisementReceiver implements Runnable {
     public static final String BLUE = "\033[36;1m";
     public static final String UNDERLINE = "\u001b[4m";
 
+    private static final int EXPIRY_SLOTS = 128; // slots of sleepTime ms in the expiry wheel
+
     private MulticastHandler multicastHandler;
     private Configuration configuration;
     private String username;
     private String hostname;
     private String identifier;
 
-    private final ConcurrentHashMap<String, AdvertisementMessage> advertisements;
+    private final ConcurrentHashMap<String, AdvertisementMessage> advertisements; // identifier -> latest advertisement
+    private final TimerWheel<String>                              expiry;         // identifier -> ns expiry deadline
+    private final CopyOnWriteArrayList<Listener>                  listeners;      // notified of nodes joining and leaving
+
+    /**
+     * Notified (on the thread receiving or expiring the advertisement) as nodes join and leave.
+     */
+    public interface Listener {
+        /** An advertisement was received from a node not known. */
+        void nodeJoined(AdvertisementMessage advertisement);
+
+        /** A known node advertised different services or port. */
+        void nodeChanged(AdvertisementMessage advertisement);
+
+        /** A node's advertisement expired, advertisement is the last received from it. */
+        void nodeLeft(AdvertisementMessage advertisement);
+    }
 
     /**
      * Constructor for AdvertisementReceiver runnable task.
      */
     public AdvertisementReceiver(MulticastHandler multicastHandler) {
+        this(multicastHandler.configuration, multicastHandler);
+    }
+
+    /**
+     * Constructor for AdvertisementReceiver not attached to a MulticastHandler (e.g in Benchmark), 
+     * reporting nodes joining and leaving to its listeners only.
+     */
+    public AdvertisementReceiver(Configuration configuration) {
+        this(configuration, null);
+    }
+
+    private AdvertisementReceiver(Configuration configuration, MulticastHandler multicastHandler) {
         this.multicastHandler = multicastHandler;
-        this.configuration = multicastHandler.configuration;
+        this.configuration = configuration;
         this.advertisements = new ConcurrentHashMap<>();
+        this.expiry = new TimerWheel<>(configuration.sleepTime, EXPIRY_SLOTS);
+        this.listeners = new CopyOnWriteArrayList<>();
 
-        try {
-            this.username = System.getProperty("user.name");
-            this.hostname = InetAddress.getLocalHost().getCanonicalHostName();
-            this.identifier = this.username + "@" + this.hostname;
-            System.out.println(identifier);
-        } catch (UnknownHostException e) {
-            System.out.println("Message() : unknown hostname: " + e.getMessage());
-        }
+        // Resolved once, by the Configuration
+        this.username = configuration.username;
+        this.hostname = configuration.hostname;
+        this.identifier = this.username + "@" + this.hostname;
+        System.out.println(identifier);
     }
 
     /**
@@ -61,16 +100,36 @@ public class AdvertisementReceiver implements Runnable {
         removeExpiredAdvertisements();
     }
 
+    /**
+     * Adds a listener notified as nodes join and leave.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
     /**
      * Removes any received advertisements that have expired.
      */
     public void removeExpiredAdvertisements(){
-        advertisements.entrySet().removeIf(entry -> 
-            (System.currentTimeMillis() - entry.getValue().timestampToDate(entry.getValue().getTimestamp()).getTime()) > configuration.maximumAdvertisementPeriod
-        );
-    } 
-        
-    
+        ArrayList<AdvertisementMessage> left = new ArrayList<>();
+
+        synchronized (this) {
+            for (String id : expiry.advance(System.nanoTime())) {
+                AdvertisementMessage removed = advertisements.remove(id);
+                if (removed != null) {
+                    left.add(removed);
+                }
+            }
+        }
+
+        for (AdvertisementMessage advertisementMessage : left) {
+            configuration.log.writeLog("node left : " + advertisementMessage.getIdentifier());
+            for (Listener listener : listeners) {
+                listener.nodeLeft(advertisementMessage);
+            }
+        }
+    }
+
 
     /**
      * Adds/replaces advertisement in storage.
@@ -80,7 +139,29 @@ public class AdvertisementReceiver implements Runnable {
         if (!identifier.equals(advertisementMessage.getIdentifier())) {
             // String id = advertisementMessage.getIdentifier() + ":" + advertisementMessage.getServerPort();
             String id = advertisementMessage.getIdentifier();
-            advertisements.put(id, advertisementMessage);
+            long now = System.nanoTime();
+            advertisementMessage.setReceivedTime(now);
+
+            AdvertisementMessage previous;
+            synchronized (this) {
+                previous = advertisements.put(id, advertisementMessage);
+                long timeout = advertisementMessage.getInterval() + configuration.maximumAdvertisementPeriod;
+                expiry.schedule(id, now + timeout * 1000000L);
+            }
+
+            // A new node, or a node whose services changed, or nothing new
+            if (previous == null) {
+                configuration.log.writeLog("node joined : " + id);
+                for (Listener listener : listeners) {
+                    listener.nodeJoined(advertisementMessage);
+                }
+            } else if (!advertisementMessage.sameServices(previous)) {
+                for (Listener listener : listeners) {
+                    listener.nodeChanged(advertisementMessage);
+                }
+            } else if (multicastHandler != null && multicastHandler.advertisementSender != null) {
+                multicastHandler.advertisementSender.consistentHeard();
+            }
         }
     }
 
@@ -100,6 +181,29 @@ public class AdvertisementReceiver implements Runnable {
         return advertisements.get(key);
     }
 
+    /**
+     * Returns all received (unexpired) advertisement messages.
+     */
+    public Collection<AdvertisementMessage> getAdvertisementMessages() {
+        return advertisements.values();
+    }
+
+    /**
+     * Returns whether every node with an unexpired advertisement can receive binary messages 
+     * (false if there are none, as nodes not yet heard from may not).
+     */
+    public boolean allSupportBinaryCodec() {
+        if (advertisements.isEmpty()) {
+            return false;
+        }
+        for (AdvertisementMessage message : advertisements.values()) {
+            if (!message.isBinaryCodec()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns a string of all advertisements (should be displayed when user enters ":node")
      */
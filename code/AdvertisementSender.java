@@ -3,37 +3,192 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Runnable Task for sending out advertisements intermittently for current machine on a thread.
- * 
+ *
+ * Advertisements are timed as in Trickle (RFC 6206) : time is split into intervals, starting at
+ * advertIntervalMin ms and doubling after each up to advertIntervalMax ms while the group is stable,
+ * and one advertisement is sent at a random point in the second half of each interval. The send is
+ * skipped if advertRedundancy advertisements that told this node nothing new (a known node, same
+ * services) were heard during the interval, though never twice in a row. When a node joins, leaves
+ * or changes its services the interval drops back to advertIntervalMin, so the group learns of the
+ * change quickly.
+ *
+ * Each advertisement carries the longest time until this node's next one (see getNextAdvertisementBound()),
+ * which the AdvertisementReceiver of other nodes use to expire it, however long the interval has grown.
+ *
  * @author : 190015412
  * @since : November, 2024
  */
-public class AdvertisementSender implements Runnable {
+public class AdvertisementSender implements Runnable, AdvertisementReceiver.Listener {
     private MulticastHandler multicastHandler;
     private Configuration configuration;
 
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> pending;     // next send or end of interval
+    private long    minInterval;            // ms
+    private long    maxInterval;            // ms
+    private int     redundancy;             // consistent advertisements heard that suppress a send, 0 never suppresses
+    private long    interval;               // ms, current interval
+    private long    intervalStart;          // ms, System.currentTimeMillis() the current interval began
+    private int     heard;                  // consistent advertisements heard this interval
+    private boolean suppressedLast;         // whether the previous interval's send was suppressed
+    private int     generation;             // counts intervals started, so a send or end of a cancelled interval does nothing
+
+    private final AtomicLong sent       = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
     /**
-     * Constructor for AdvertisementSender Runnable task for sending out advertisements 
+     * Constructor for AdvertisementSender Runnable task for sending out advertisements
      * to Multicast group.
-     * 
+     *
      * @param multicastHandler : the MulticastHandler thread coordinator.
      */
     public AdvertisementSender(MulticastHandler multicastHandler) {
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
+        this.minInterval = Math.max(1, configuration.advertIntervalMin);
+        this.maxInterval = Math.max(minInterval, configuration.advertIntervalMax);
+        this.redundancy = configuration.advertRedundancy;
+        this.interval = minInterval;
     }
 
+    /**
+     * Starts sending advertisements, from the shortest interval.
+     *
+     * @param scheduler : scheduler to run the sends on.
+     */
+    public synchronized void start(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        startInterval();
+    }
 
     /**
      * Send out advertisement message to multicast group task.
      */
     @Override
     public void run() {
-        AdvertisementMessage txMessage = new AdvertisementMessage(configuration);
+        AdvertisementMessage txMessage = new AdvertisementMessage(configuration, multicastHandler.fileServer.getPort());
+        txMessage.setInterval(getNextAdvertisementBound());
 
         multicastHandler.txMessage(txMessage);
+        sent.incrementAndGet();
+    }
+
+    /**
+     * Called for each advertisement received from another node that told this node nothing new
+     * (a node already known, with the same services).
+     */
+    public synchronized void consistentHeard() {
+        heard++;
+    }
+
+    /**
+     * Called when a node joins, leaves or changes its services : goes back to the shortest interval,
+     * so the group hears from this node soon.
+     */
+    public synchronized void inconsistencyHeard() {
+        if (scheduler == null || interval == minInterval) {
+            return;
+        }
+
+        interval = minInterval;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        startInterval();
+    }
+
+    @Override
+    public void nodeJoined(AdvertisementMessage advertisement) {
+        inconsistencyHeard();
+    }
+
+    @Override
+    public void nodeChanged(AdvertisementMessage advertisement) {
+        inconsistencyHeard();
+    }
+
+    @Override
+    public void nodeLeft(AdvertisementMessage advertisement) {
+        inconsistencyHeard();
+    }
+
+    /**
+     * Returns the current interval, ms.
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the number of advertisements sent and suppressed, and the current interval.
+     */
+    public String getStatsString() {
+        return "sent=" + sent.get() + " suppressed=" + suppressed.get() + ", interval=" + getInterval() + " ms";
+    }
+
+    /**
+     * Returns the longest time (ms) from now until this node's next advertisement : the rest of this
+     * interval, then the next interval, and the one after that if the next send may be suppressed.
+     */
+    public synchronized long getNextAdvertisementBound() {
+        long next = Math.min(2 * interval, maxInterval);
+        long afterNext = Math.min(2 * next, maxInterval);
+        long remaining = Math.max(0, intervalStart + interval - System.currentTimeMillis());
+
+        return remaining + next + (redundancy > 0 ? afterNext : 0);
+    }
+
+    /**
+     * Begins an interval, scheduling the send at a random point in its second half.
+     * Caller must hold the lock.
+     */
+    private void startInterval() {
+        heard = 0;
+        intervalStart = System.currentTimeMillis();
+        int current = ++generation;
+
+        long sendTime = interval / 2 + (long) (Math.random() * (interval - interval / 2));
+        pending = scheduler.schedule(() -> send(current, sendTime), sendTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the advertisement for this interval, unless suppressed, then waits for the interval to end.
+     */
+    private synchronized void send(int current, long sendTime) {
+        if (current != generation) {
+            return;
+        }
+
+        if (redundancy > 0 && heard >= redundancy && !suppressedLast) {
+            suppressedLast = true;
+            suppressed.incrementAndGet();
+        } else {
+            suppressedLast = false;
+            try {
+                run();
+            } catch (RuntimeException e) {
+                System.err.println("AdvertisementSender.send() : " + e);
+            }
+        }
+
+        pending = scheduler.schedule(() -> endInterval(current), interval - sendTime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ends an interval, doubling the interval (up to maxInterval) for the next.
+     */
+    private synchronized void endInterval(int current) {
+        if (current != generation) {
+            return;
+        }
+
+        interval = Math.min(2 * interval, maxInterval);
+        startInterval();
     }
-}
\ No newline at end of file
+}
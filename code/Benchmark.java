@@ -0,0 +1,778 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks for the hot paths of the application, run from the command line :
+ *
+ *   java Benchmark transfer [maxFileSize]
+ *       Loopback throughput of FileServer.sendFile() (FileChannel.transferTo) against the
+ *       previous 2KB byte[] copy through a DataOutputStream, for file sizes from 1KB up to
+ *       maxFileSize bytes (default 8GB). Test files are written to java.io.tmpdir.
+ *
+ *   java Benchmark codec [iterations]
+ *       Time (ns/op) and heap allocation (bytes/op) to decode and encode each of the seven
+ *       message types with the ascii and binary codecs (see MessageCodec). Allocation is read
+ *       from the JVM's per-thread allocation counter (com.sun.management.ThreadMXBean).
+ *
+ *   java Benchmark tx [iterations]
+ *       Outgoing messages per second : the header of a tx message built as the Message()
+ *       constructor used to (local host look up, new SimpleDateFormat) against MessageFactory,
+ *       then whole search-results built and encoded, as when answering a search.
+ *
+ *   java Benchmark log [iterations]
+ *       Latency (p50/p99/max ns) of the rx path, decoding a message and logging it as
+ *       MulticastHandler does, with no logging, with the previous synchronous LogFileWriter
+ *       (write and flush on the calling thread) and with the asynchronous one. Log files are
+ *       written to java.io.tmpdir.
+ *
+ *   java Benchmark message [iterations]
+ *       Time (ns/op) of MessageCodec.parseMessageString() (as used by MulticastHandler.parseMessageString())
+ *       and of toString() for each of the seven message types.
+ *
+ *   java Benchmark search [maxFiles]
+ *       Time (ns/op) of each search type over generated catalogs of 1k files, x10 up to maxFiles
+ *       (default 1M), as evaluated by getMatchingFiles() when the SearchCache misses.
+ *
+ *   java Benchmark adverts [maxPeers]
+ *       AdvertisementReceiver with 10 peers, x10 up to maxPeers (default 10k) : ns to add (refresh)
+ *       an advertisement, ns per expiry tick with nothing expiring, and ns per peer expired.
+ *
+ *   java Benchmark all
+ *       Every suite, with transfer up to 64MB.
+ *
+ * Any suite also takes "-json file", writing every result to file as JSON, one result per line :
+ *
+ *   {"suite": "codec", "benchmark": "decode.advertisement.binary", "param": "", "score": 212.4, "unit": "ns/op"}
+ *
+ *   java Benchmark compare baseline.json current.json [tolerance]
+ *       Compares two JSON results files and exits with status 1 if any result is worse by more than
+ *       tolerance percent (default 10) : lower for MB/s, op/s and %, higher for any other unit (ns/op,
+ *       B/op, and the ms, datagrams/s, ... of ClusterSimulator).
+ *
+ * "make bench" runs every suite into bench.json, "make bench-compare" compares it with bench-baseline.json.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class Benchmark {
+    private static final ArrayList<String> results = new ArrayList<>(); // JSON of each result, in the order run
+
+    /**
+     * Main method, selects the benchmark to run.
+     */
+    public static void main(String[] args) throws Exception {
+        // "-json file" may be given anywhere
+        String jsonFile = null;
+        ArrayList<String> arguments = new ArrayList<>(Arrays.asList(args));
+        int json = arguments.indexOf("-json");
+        if (json >= 0 && json + 1 < arguments.size()) {
+            jsonFile = arguments.get(json + 1);
+            arguments.subList(json, json + 2).clear();
+        }
+        args = arguments.toArray(new String[0]);
+
+        String suite = args.length > 0 ? args[0] : "transfer";
+
+        switch (suite) {
+            case "transfer" :
+                long maxFileSize = args.length > 1 ? Long.parseLong(args[1]) : 8L * 1024 * 1024 * 1024;
+                transfer(maxFileSize);
+                break;
+            case "codec" :
+                int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+                codec(iterations);
+                break;
+            case "tx" :
+                int txIterations = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+                tx(txIterations);
+                break;
+            case "log" :
+                int logIterations = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+                log(logIterations);
+                break;
+            case "message" :
+                int messageIterations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+                message(messageIterations);
+                break;
+            case "search" :
+                int maxFiles = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+                search(maxFiles);
+                break;
+            case "adverts" :
+                int maxPeers = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+                adverts(maxPeers);
+                break;
+            case "all" :
+                message(1_000_000);
+                codec(1_000_000);
+                tx(200_000);
+                log(200_000);
+                search(1_000_000);
+                adverts(10_000);
+                transfer(64L * 1024 * 1024);
+                break;
+            case "compare" :
+                if (args.length < 3) {
+                    System.out.println("Usage : java Benchmark compare baseline.json current.json [tolerance]");
+                    return;
+                }
+                double tolerance = args.length > 3 ? Double.parseDouble(args[3]) : 10;
+                if (!compare(args[1], args[2], tolerance)) {
+                    System.exit(1);
+                }
+                return;
+            default :
+                System.out.println("Usage : java Benchmark transfer [maxFileSize]");
+                System.out.println("        java Benchmark codec [iterations]");
+                System.out.println("        java Benchmark tx [iterations]");
+                System.out.println("        java Benchmark log [iterations]");
+                System.out.println("        java Benchmark message [iterations]");
+                System.out.println("        java Benchmark search [maxFiles]");
+                System.out.println("        java Benchmark adverts [maxPeers]");
+                System.out.println("        java Benchmark all");
+                System.out.println("        java Benchmark compare baseline.json current.json [tolerance]");
+                System.out.println("        (any suite) -json file");
+                return;
+        }
+
+        if (jsonFile != null) {
+            writeResults(jsonFile);
+        }
+    }
+
+    /**
+     * Loopback file transfer throughput, old stream copy vs FileServer.sendFile().
+     *
+     * @param maxFileSize : largest file size to benchmark, in bytes.
+     */
+    public static void transfer(long maxFileSize) throws IOException, InterruptedException {
+        System.out.printf("%-12s %14s %14s %8s%n", "size", "stream MB/s", "transferTo MB/s", "speedup");
+
+        // 1KB, 8KB, 64KB, ... finishing with exactly maxFileSize
+        for (long fileSize = Math.min(1024, maxFileSize); fileSize > 0; fileSize = nextFileSize(fileSize, maxFileSize)) {
+            File file = createTestFile(fileSize);
+
+            try {
+                // Enough repetitions for small files to give a stable result
+                int iterations = (int) Math.max(1, Math.min(200, (256L * 1024 * 1024) / fileSize));
+
+                double streamRate = transferRate(file, iterations, false);
+                double channelRate = transferRate(file, iterations, true);
+
+                System.out.printf("%-12s %14.1f %14.1f %7.2fx%n", sizeString(fileSize), streamRate, channelRate, channelRate / streamRate);
+                record("transfer", "stream", sizeString(fileSize), streamRate, "MB/s");
+                record("transfer", "transferTo", sizeString(fileSize), channelRate, "MB/s");
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Decode and encode cost of each message type, ascii vs binary codec.
+     *
+     * @param iterations : timed operations per message type and codec (after as many warm up operations).
+     */
+    public static void codec(int iterations) {
+        Configuration configuration = new Configuration("filetreebrowser.properties");
+        configuration.search = true;
+        configuration.download = true;
+        MessageCodec codec = new MessageCodec(configuration);
+        Message[] messages = testMessages(configuration);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteBuffer buffer = ByteBuffer.allocate(configuration.maximumMessageSize);
+
+        System.out.printf("%-18s %13s | %12s %12s %8s | %12s %12s%n", "message", "size (bytes)", 
+                          "ascii ns", "binary ns", "speedup", "ascii B/op", "binary B/op");
+        for (String operation : new String[] {"decode", "encode"}) {
+            System.out.println(operation);
+
+            for (Message message : messages) {
+                byte[] ascii = message.toString().getBytes(StandardCharsets.US_ASCII);
+                buffer.clear();
+                codec.encode(message, buffer);
+                byte[] binary = java.util.Arrays.copyOf(buffer.array(), buffer.position());
+
+                double[] asciiCost  = new double[2];
+                double[] binaryCost = new double[2];
+                for (int pass = 0; pass < 2; pass++) { // first pass is a warm up
+                    asciiCost  = codecCost(threads, iterations, operation, codec, message, ByteBuffer.wrap(ascii), false);
+                    binaryCost = codecCost(threads, iterations, operation, codec, message, ByteBuffer.wrap(binary), true);
+                }
+
+                System.out.printf("%-18s %6d %6d | %12.1f %12.1f %7.2fx | %12.0f %12.0f%n", message.getType(), ascii.length, binary.length, 
+                                  asciiCost[0], binaryCost[0], asciiCost[0] / binaryCost[0], asciiCost[1], binaryCost[1]);
+                record("codec", operation + "." + message.getType() + ".ascii", "", asciiCost[0], "ns/op");
+                record("codec", operation + "." + message.getType() + ".binary", "", binaryCost[0], "ns/op");
+                record("codec", operation + "." + message.getType() + ".ascii.alloc", "", asciiCost[1], "B/op");
+                record("codec", operation + "." + message.getType() + ".binary.alloc", "", binaryCost[1], "B/op");
+            }
+        }
+        System.out.println(codecSink == 42 ? "" : ""); // keep results alive
+    }
+
+    private static volatile long codecSink; // consumes benchmark results so they are not optimised away
+
+    /**
+     * Outgoing message rate, header as the Message() constructor used to build it vs MessageFactory,
+     * and whole search-results.
+     *
+     * @param iterations : timed messages per case (after as many warm up messages).
+     */
+    public static void tx(int iterations) throws UnknownHostException {
+        Configuration configuration = new Configuration("filetreebrowser.properties");
+        MessageFactory factory = new MessageFactory(configuration);
+        MessageFactory.setDefault(factory);
+        MessageCodec codec = new MessageCodec(configuration);
+        ByteBuffer buffer = ByteBuffer.allocate(configuration.maximumMessageSize);
+        java.util.List<String> paths = java.util.List.of("root_dir/dir1/text1-1.txt", "root_dir/dir1/text1-2.txt");
+
+        // The look up is slow where reverse DNS is, so fewer iterations keep the run short
+        int legacyIterations = Math.max(1, iterations / 100);
+
+        System.out.printf("%-34s %14s %10s%n", "case", "messages/s", "ns/msg");
+        for (int pass = 0; pass < 2; pass++) { // first pass is a warm up
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < legacyIterations; i++) {
+                String identifier = System.getProperty("user.name") + "@" + InetAddress.getLocalHost().getCanonicalHostName();
+                String timestamp = new java.text.SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new java.util.Date());
+                sink += identifier.length() + timestamp.length() + System.currentTimeMillis();
+            }
+            double legacy = (double) (System.nanoTime() - start) / legacyIterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += factory.getIdentifier().length() + factory.timestamp().length() + factory.nextSerialNo();
+            }
+            double header = (double) (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                SearchResultMessage message = new SearchResultMessage(configuration.identifier, 1731406500124L, i, false, paths);
+                buffer.clear();
+                codec.encode(message, buffer);
+                sink += buffer.position();
+            }
+            double searchResult = (double) (System.nanoTime() - start) / iterations;
+
+            codecSink += sink;
+            if (pass == 1) {
+                System.out.printf("%-34s %14.0f %10.1f%n", "header, old Message()", 1e9 / legacy, legacy);
+                System.out.printf("%-34s %14.0f %10.1f%n", "header, MessageFactory", 1e9 / header, header);
+                System.out.printf("%-34s %14.0f %10.1f%n", "search-result, built and encoded", 1e9 / searchResult, searchResult);
+                record("tx", "header.legacy", "", 1e9 / legacy, "op/s");
+                record("tx", "header.factory", "", 1e9 / header, "op/s");
+                record("tx", "search-result", "", 1e9 / searchResult, "op/s");
+            }
+        }
+    }
+
+    /**
+     * Times one codec operation on one message.
+     *
+     * @param operation : "decode" (the encoded message in buffer) or "encode" (message).
+     * @param binary    : true for the binary codec, false for ascii.
+     * @return mean ns per operation and bytes allocated per operation.
+     */
+    private static double[] codecCost(com.sun.management.ThreadMXBean threads, int iterations, String operation, 
+                                      MessageCodec codec, Message message, ByteBuffer buffer, boolean binary) {
+        ByteBuffer encodeBuffer = ByteBuffer.allocate(buffer.capacity() + 64);
+        long sink = 0;
+
+        long startBytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (operation.equals("decode")) {
+                buffer.rewind();
+                Message decoded = codec.decode(buffer);
+                sink += decoded.getSerialNo();
+            } else if (binary) {
+                encodeBuffer.clear();
+                codec.encode(message, encodeBuffer);
+                sink += encodeBuffer.position();
+            } else {
+                sink += message.toString().getBytes(StandardCharsets.US_ASCII).length;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - startBytes;
+
+        codecSink += sink;
+        return new double[] {(double) elapsed / iterations, (double) allocated / iterations};
+    }
+
+    /**
+     * rx path latency (decode and log one message), logging off vs synchronous vs asynchronous.
+     *
+     * @param iterations : timed messages per case (after as many warm up messages).
+     */
+    public static void log(int iterations) throws IOException {
+        Configuration configuration = new Configuration("filetreebrowser.properties");
+        configuration.search = true;
+        MessageCodec codec = new MessageCodec(configuration);
+        Message request = new SearchRequestMessage("dir1/text", "20241112-101500.123", "bench@pc7-001-l.cs.st-andrews.ac.uk", 1731406500124L);
+        ByteBuffer buffer = ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.US_ASCII));
+
+        File syncFile = File.createTempFile("bench-sync", ".log");
+        File asyncFile = File.createTempFile("bench-async", ".log");
+        File blockFile = File.createTempFile("bench-block", ".log");
+        FileWriter syncWriter = new FileWriter(syncFile, true);
+        LogFileWriter async = new LogFileWriter(asyncFile.getPath(), configuration.logBufferSize, configuration.logFlushInterval, 0, 0, false);
+        LogFileWriter block = new LogFileWriter(blockFile.getPath(), configuration.logBufferSize, configuration.logFlushInterval, 0, 0, true);
+
+        try {
+            System.out.printf("%-22s %10s %10s %12s %10s%n", "logging", "p50 ns", "p99 ns", "max ns", "dropped");
+            String[] cases = {"off", "synchronous", "async, logFull=drop", "async, logFull=block"};
+            for (int pass = 0; pass < 2; pass++) { // first pass is a warm up
+                for (int c = 0; c < cases.length; c++) {
+                    long[] latencies = new long[iterations];
+                    long droppedBefore = async.getDropped();
+
+                    for (int i = 0; i < iterations; i++) {
+                        long start = System.nanoTime();
+                        buffer.rewind();
+                        Message message = codec.decode(buffer);
+                        String entry = "rx-> " + message.toString();
+                        if (c == 1) {
+                            // The previous LogFileWriter.writeLog()
+                            String logEntry = new java.text.SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new java.util.Date()) + "| " + entry + "\n";
+                            syncWriter.write(logEntry, 0, logEntry.length());
+                            syncWriter.flush();
+                        } else if (c == 2) {
+                            async.writeLog(entry);
+                        } else if (c == 3) {
+                            block.writeLog(entry);
+                        } else {
+                            codecSink += entry.length();
+                        }
+                        latencies[i] = System.nanoTime() - start;
+                    }
+
+                    if (pass == 1) {
+                        java.util.Arrays.sort(latencies);
+                        System.out.printf("%-22s %10d %10d %12d %10s%n", cases[c], latencies[iterations / 2], 
+                                          latencies[(int) (iterations * 0.99)], latencies[iterations - 1], 
+                                          c == 2 ? Long.toString(async.getDropped() - droppedBefore) : "-");
+                        String name = cases[c].replace(", logFull=", ".");
+                        record("log", name + ".p50", "", latencies[iterations / 2], "ns/op");
+                        record("log", name + ".p99", "", latencies[(int) (iterations * 0.99)], "ns/op");
+                    }
+                }
+            }
+        } finally {
+            syncWriter.close();
+            async.close();
+            block.close();
+            syncFile.delete();
+            asyncFile.delete();
+            blockFile.delete();
+        }
+    }
+
+    /**
+     * Parse and toString() cost of each message type.
+     *
+     * @param iterations : timed operations per message type (after as many warm up operations).
+     */
+    public static void message(int iterations) {
+        Configuration configuration = new Configuration("filetreebrowser.properties");
+        configuration.search = true;
+        configuration.download = true;
+        MessageCodec codec = new MessageCodec(configuration);
+
+        System.out.printf("%-18s %12s %12s%n", "message", "parse ns", "toString ns");
+        for (Message message : testMessages(configuration)) {
+            String text = message.toString();
+            // The codec trims the datagram before parsing it
+            String trimmed = text.trim();
+
+            double parse = nsPerOp(iterations, () -> codec.parseMessageString(trimmed).getSerialNo());
+            double toString = nsPerOp(iterations, () -> message.toString().length());
+
+            System.out.printf("%-18s %12.1f %12.1f%n", message.getType(), parse, toString);
+            record("message", "parse." + message.getType(), "", parse, "ns/op");
+            record("message", "toString." + message.getType(), "", toString, "ns/op");
+        }
+    }
+
+    /**
+     * Search cost of each search type over generated catalogs of 1k files up to maxFiles.
+     *
+     * Entries are added to a TrigramIndex (what FileCatalog.search() and so getMatchingFiles() evaluate) 
+     * from generated paths, root_dir/dNN/dNN/fileN.txt with 100 files a directory, rather than walked 
+     * from the disk, so large catalogs take seconds rather than hours to set up.
+     *
+     * @param maxFiles : largest catalog, in files.
+     */
+    public static void search(int maxFiles) {
+        Configuration configuration = new Configuration("filetreebrowser.properties");
+
+        System.out.printf("%-10s %12s %14s %14s %14s%n", "files", "add ns", "path ns", "filename ns", "substring ns");
+        for (int numFiles = Math.min(1000, maxFiles); numFiles > 0; numFiles = numFiles >= maxFiles ? 0 : Math.min(numFiles * 10, maxFiles)) {
+            TrigramIndex index = new TrigramIndex(configuration.rootDir);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < numFiles; i++) {
+                String logicalPath = configuration.rootDir + "/" + generatedPath(i);
+                index.add(new FileCatalog.Entry(logicalPath, new File(logicalPath), false, 1024, 0L));
+            }
+            double add = (double) (System.nanoTime() - start) / numFiles;
+
+            // A file in the middle of the catalog : its exact path, its file name, and part of its name
+            String target = generatedPath(numFiles / 2);
+            String fileName = target.substring(target.lastIndexOf('/') + 1);
+            int iterations = Math.max(100, 10_000_000 / numFiles);
+
+            double path = nsPerOp(iterations, () -> index.search(target, "path").size());
+            double filename = nsPerOp(iterations, () -> index.search(fileName, "path-filename").size());
+            double substring = nsPerOp(Math.max(10, iterations / 100), () -> index.search(fileName.substring(0, 6), "path-filename-substring").size());
+
+            System.out.printf("%-10d %12.1f %14.1f %14.1f %14.1f%n", numFiles, add, path, filename, substring);
+            record("search", "add", Integer.toString(numFiles), add, "ns/op");
+            record("search", "path", Integer.toString(numFiles), path, "ns/op");
+            record("search", "path-filename", Integer.toString(numFiles), filename, "ns/op");
+            record("search", "path-filename-substring", Integer.toString(numFiles), substring, "ns/op");
+        }
+    }
+
+    /**
+     * AdvertisementReceiver cost with 10 peers up to maxPeers : refreshing an advertisement, 
+     * an expiry tick with nothing expiring, and expiring every peer.
+     *
+     * @param maxPeers : most peers.
+     */
+    public static void adverts(int maxPeers) throws InterruptedException {
+        Configuration configuration = new Configuration("filetreebrowser.properties");
+        configuration.sleepTime = 10; // expiry wheel tick, ms
+        String timestamp = "20241112-101500.123";
+
+        System.out.printf("%-10s %12s %12s %16s%n", "peers", "add ns", "tick ns", "expire ns/peer");
+        for (int numPeers = Math.min(10, maxPeers); numPeers > 0; numPeers = numPeers >= maxPeers ? 0 : Math.min(numPeers * 10, maxPeers)) {
+            configuration.maximumAdvertisementPeriod = 60000;
+            AdvertisementReceiver receiver = new AdvertisementReceiver(configuration);
+
+            AdvertisementMessage[] advertisements = new AdvertisementMessage[numPeers];
+            for (int i = 0; i < numPeers; i++) {
+                advertisements[i] = new AdvertisementMessage(40123, timestamp, "bench" + i + "@pc7-" + i + ".cs.st-andrews.ac.uk", 1731406500123L + i);
+                advertisements[i].setInterval(32000);
+                receiver.addAdvertisement(advertisements[i]);
+            }
+
+            // Every peer known, so each add is a refresh
+            int iterations = 1_000_000;
+            int[] next = new int[1];
+            double add = nsPerOp(iterations, () -> {
+                AdvertisementMessage advertisement = advertisements[next[0]++ % advertisements.length];
+                receiver.addAdvertisement(advertisement);
+                return advertisement.getReceivedTime();
+            });
+            double tick = nsPerOp(10_000, () -> {
+                receiver.removeExpiredAdvertisements();
+                return 0;
+            });
+
+            // Every peer expiring at once
+            configuration.maximumAdvertisementPeriod = 0;
+            for (AdvertisementMessage advertisement : advertisements) {
+                advertisement.setInterval(0);
+                receiver.addAdvertisement(advertisement);
+            }
+            Thread.sleep(3 * configuration.sleepTime);
+            long start = System.nanoTime();
+            receiver.removeExpiredAdvertisements();
+            double expire = (double) (System.nanoTime() - start) / numPeers;
+            if (receiver.haveReceivedAdvertisements()) {
+                System.err.println("Benchmark.adverts() : advertisements left after expiry");
+            }
+
+            System.out.printf("%-10d %12.1f %12.1f %16.1f%n", numPeers, add, tick, expire);
+            record("adverts", "add", Integer.toString(numPeers), add, "ns/op");
+            record("adverts", "tick", Integer.toString(numPeers), tick, "ns/op");
+            record("adverts", "expire", Integer.toString(numPeers), expire, "ns/op");
+        }
+    }
+
+    /**
+     * Compares two results files, printing every result and its change.
+     *
+     * @param tolerance : percent a result may be worse by before it is reported as a regression.
+     * @return false if any result regressed.
+     */
+    public static boolean compare(String baselineFile, String currentFile, double tolerance) throws IOException {
+        Map<String, double[]> baseline = readResults(baselineFile);
+        Map<String, double[]> current = readResults(currentFile);
+        Map<String, String> units = readUnits(currentFile);
+
+        boolean ok = true;
+        System.out.printf("%-60s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, double[]> result : current.entrySet()) {
+            double[] before = baseline.get(result.getKey());
+            if (before == null) {
+                continue;
+            }
+            double after = result.getValue()[0];
+            double change = 100.0 * (after - before[0]) / before[0];
+
+            // Throughputs and percentages are better higher, anything else (times, allocation, datagrams, ...) lower
+            String unit = units.get(result.getKey());
+            boolean higherIsBetter = unit.equals("MB/s") || unit.equals("op/s") || unit.equals("%");
+            boolean regressed = higherIsBetter ? change < -tolerance : change > tolerance;
+            ok &= !regressed;
+
+            System.out.printf("%-60s %14.1f %14.1f %+8.1f%% %s%s%n", result.getKey(), before[0], after, change, unit, regressed ? "  REGRESSED" : "");
+        }
+        return ok;
+    }
+
+    private static final Pattern RESULT = Pattern.compile(
+        "\\{\"suite\": \"([^\"]*)\", \"benchmark\": \"([^\"]*)\", \"param\": \"([^\"]*)\", \"score\": ([-0-9.eE]+), \"unit\": \"([^\"]*)\"\\}");
+
+    /**
+     * Adds a result (also from ClusterSimulator), to be written by writeResults().
+     */
+    static void record(String suite, String benchmark, String param, double score, String unit) {
+        results.add(String.format(Locale.ROOT, "{\"suite\": \"%s\", \"benchmark\": \"%s\", \"param\": \"%s\", \"score\": %.3f, \"unit\": \"%s\"}", 
+                                  suite, benchmark, param, score, unit));
+    }
+
+    /**
+     * Writes every result recorded as a JSON object, with the results array one result per line.
+     */
+    static void writeResults(String fileName) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"timestamp\": \"").append(new java.text.SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new java.util.Date()))
+            .append("\", \"java\": \"").append(System.getProperty("java.version"))
+            .append("\", \"processors\": ").append(Runtime.getRuntime().availableProcessors())
+            .append(", \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append("  ").append(results.get(i)).append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("]}\n");
+
+        Files.write(new File(fileName).toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println(results.size() + " results written to " + fileName);
+    }
+
+    /**
+     * Reads a results file written by writeResults(), returning suite/benchmark[param] -> {score}.
+     */
+    private static Map<String, double[]> readResults(String fileName) throws IOException {
+        LinkedHashMap<String, double[]> scores = new LinkedHashMap<>();
+        Matcher matcher = RESULT.matcher(new String(Files.readAllBytes(new File(fileName).toPath()), StandardCharsets.UTF_8));
+        while (matcher.find()) {
+            scores.put(resultKey(matcher), new double[] {Double.parseDouble(matcher.group(4))});
+        }
+        return scores;
+    }
+
+    /**
+     * Reads the unit of each result in a results file written by writeResults().
+     */
+    private static Map<String, String> readUnits(String fileName) throws IOException {
+        HashMap<String, String> units = new HashMap<>();
+        Matcher matcher = RESULT.matcher(new String(Files.readAllBytes(new File(fileName).toPath()), StandardCharsets.UTF_8));
+        while (matcher.find()) {
+            units.put(resultKey(matcher), matcher.group(5));
+        }
+        return units;
+    }
+
+    private static String resultKey(Matcher matcher) {
+        return matcher.group(1) + "/" + matcher.group(2) + (matcher.group(3).isEmpty() ? "" : "[" + matcher.group(3) + "]");
+    }
+
+    /**
+     * Mean ns per call of op, after as many warm up calls.
+     */
+    private static double nsPerOp(int iterations, LongSupplier op) {
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += op.getAsLong();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += op.getAsLong();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        codecSink += sink;
+        return (double) elapsed / iterations;
+    }
+
+    /**
+     * Path (under the root directory) of the i'th generated file : 100 files a directory, 100 directories a level.
+     */
+    private static String generatedPath(int i) {
+        return String.format("d%02d/d%02d/file%d.txt", i / 10000 % 100, i / 100 % 100, i);
+    }
+
+    /**
+     * One of each message type, built with the rx constructors so that building them does not look up the local host.
+     */
+    private static Message[] testMessages(Configuration configuration) {
+        String local = configuration.identifier;
+        String remote = "bench@pc7-001-l.cs.st-andrews.ac.uk";
+        String timestamp = "20241112-101500.123";
+        AdvertisementMessage advertisement = new AdvertisementMessage(40123, timestamp, remote, 1731406500123L);
+        advertisement.setSearchPossible(true);
+        advertisement.setDownloadPossible(true);
+        advertisement.setBinaryCodec(true);
+        Message[] messages = {
+            advertisement,
+            new SearchRequestMessage("dir1/text", timestamp, remote, 1731406500124L),
+            new SearchResultMessage("root_dir/dir1/text1-1.txt", 1731406500124L, local, timestamp, remote, 1731406500125L),
+            new SearchErrorMessage(local, 1731406500124L, timestamp, remote, 1731406500124L),
+            new DownloadRequestMessage("root_dir/dir1/text1-1.txt", local, timestamp, remote, 1731406500126L),
+            new DownloadResultMessage("root_dir/dir1/text1-1.txt", local, 1731406500126L, 40123, -6917529027641081856L, 
+                                      52428800L, timestamp, remote, 1731406500127L),
+            new DownloadErrorMessage(local, 1731406500126L, 0, timestamp, remote, 1731406500126L)
+        };
+
+        return messages;
+    }
+
+    /**
+     * Returns the next file size to benchmark after the given one, or 0 once maxFileSize is done.
+     */
+    private static long nextFileSize(long fileSize, long maxFileSize) {
+        if (fileSize >= maxFileSize) {
+            return 0;
+        }
+        return Math.min(fileSize * 8, maxFileSize);
+    }
+
+    /**
+     * Sends a file over loopback a number of times and returns the mean throughput in MB/s.
+     *
+     * @param file       : file to send.
+     * @param iterations : number of timed transfers (after one warm up transfer).
+     * @param zeroCopy   : true to use FileServer.sendFile(), false for the old stream copy.
+     */
+    private static double transferRate(File file, int iterations, boolean zeroCopy) throws IOException, InterruptedException {
+        long totalNanos = 0;
+        long totalBytes = 0;
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = serverChannel.socket().getLocalPort();
+
+            for (int i = 0; i <= iterations; i++) {
+                long[] received = new long[1];
+                Thread receiver = new Thread(() -> received[0] = drain(port));
+                receiver.start();
+
+                long start = System.nanoTime();
+                try (SocketChannel clientChannel = serverChannel.accept()) {
+                    if (zeroCopy) {
+                        FileServer.sendFile(clientChannel, file);
+                    } else {
+                        streamSendFile(new DataOutputStream(clientChannel.socket().getOutputStream()), file);
+                    }
+                }
+                receiver.join();
+                long elapsed = System.nanoTime() - start;
+
+                // First transfer is a warm up
+                if (i > 0) {
+                    totalNanos += elapsed;
+                    totalBytes += received[0];
+                }
+            }
+        }
+
+        return (totalBytes / (1024.0 * 1024.0)) / (totalNanos / 1e9);
+    }
+
+    /**
+     * The previous FileServer.sendFile(), copying through a 2KB byte[].
+     */
+    private static long streamSendFile(DataOutputStream fileOut, File file) throws IOException {
+        long totalBytesSent = 0;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            fileOut.writeUTF(file.getName());
+            fileOut.writeLong(file.length());
+
+            byte[] buffer = new byte[2048];
+
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                fileOut.write(buffer, 0, bytesRead);
+                totalBytesSent += bytesRead;
+            }
+            fileOut.flush();
+        }
+        return totalBytesSent;
+    }
+
+    /**
+     * Connects to the given loopback port and reads until end of stream.
+     * @return number of bytes read.
+     */
+    private static long drain(int port) {
+        long total = 0;
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            int bytesRead;
+            while ((bytesRead = channel.read(buffer)) != -1) {
+                total += bytesRead;
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            System.err.println("Benchmark.drain() : IOException -> " + e.getMessage());
+        }
+        return total;
+    }
+
+    /**
+     * Creates a temporary file of the given size filled with random data.
+     */
+    private static File createTestFile(long fileSize) throws IOException {
+        File file = Files.createTempFile("benchmark-", ".bin").toFile();
+
+        byte[] block = new byte[1024 * 1024];
+        new Random(fileSize).nextBytes(block);
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            long remaining = fileSize;
+            while (remaining > 0) {
+                int n = (int) Math.min(block.length, remaining);
+                fos.write(block, 0, n);
+                remaining -= n;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Returns a human readable size, e.g 64KB.
+     */
+    private static String sizeString(long bytes) {
+        String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int unit = 0;
+        while (bytes >= 1024 && bytes % 1024 == 0 && unit < units.length - 1) {
+            bytes /= 1024;
+            unit++;
+        }
+        return bytes + units[unit];
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Multicast endpoint built on a non-blocking IPv6 DatagramChannel.
+ *
+ * Unlike MulticastEndpoint, which polls the socket every soTimeout ms, receive() blocks in a
+ * Selector (with no timeout) until a datagram arrives, so an idle node uses no CPU. Datagrams
+ * are received into direct buffers taken from a small pool and handed back with release(), and
+ * datagrams are sent from one reused direct buffer, so neither path allocates once running.
+ * A send waits (in a second Selector) for room in the socket send buffer, as a MulticastSocket
+ * would block, and only drops the datagram if there is still no room after socketMaxTTL ms.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class ChannelMulticastEndpoint implements MessageEndpoint {
+    public static final int POOL_SIZE     = 16;    // receive buffers kept for reuse
+    public static final int MAX_DATAGRAM  = 65507; // largest UDP payload, text messages are not limited to maximumMessageSize
+
+    private Configuration     configuration;
+    private InetSocketAddress group;
+    private DatagramChannel   channel;
+    private Selector          selector;
+    private Selector          txSelector;   // waits for room in the send buffer, guarded by txBuffer
+    private MembershipKey     membershipKey;
+    private ByteBuffer        txBuffer;     // guarded by itself
+
+    private final ArrayBlockingQueue<ByteBuffer> pool; // free receive buffers
+
+    /**
+     * Constructor for ChannelMulticastEndpoint, binding the channel to mPort.
+     *
+     * @param configuration : configuration of current machine.
+     */
+    public ChannelMulticastEndpoint(Configuration configuration) {
+        this.configuration = configuration;
+        this.pool          = new ArrayBlockingQueue<>(POOL_SIZE);
+        this.txBuffer      = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool.add(ByteBuffer.allocateDirect(configuration.maximumMessageSize));
+        }
+
+        try {
+            group = new InetSocketAddress(InetAddress.getByName(configuration.mAddr6), configuration.mPort);
+
+            channel = DatagramChannel.open(StandardProtocolFamily.INET6);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, configuration.reuseAddr);
+            channel.bind(new InetSocketAddress(configuration.mPort));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, configuration.nif);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, configuration.mTTL);
+            // loopback=true means ignore my own transmissions (as MulticastSocket.setLoopbackMode())
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, !configuration.loopback);
+            channel.configureBlocking(false);
+
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            txSelector = Selector.open();
+            channel.register(txSelector, SelectionKey.OP_WRITE);
+
+            configuration.log.writeLog("using interface " + configuration.nif.getName() + " (DatagramChannel)");
+        } catch (IOException e) {
+            System.out.println("ChannelMulticastEndpoint(): " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void join() {
+        try {
+            membershipKey = channel.join(group.getAddress(), configuration.nif);
+            configuration.log.writeLog("joined IPv6 multicast group " + group.toString(), true);
+        } catch (IOException | NullPointerException e) {
+            System.out.println("ChannelMulticastEndpoint.join(): " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void leave() {
+        try {
+            if (membershipKey != null) {
+                membershipKey.drop();
+                configuration.log.writeLog("left IPv6 multicast group", true);
+            }
+            if (selector != null) {
+                selector.close();
+            }
+            if (txSelector != null) {
+                txSelector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.out.println("ChannelMulticastEndpoint.leave(): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits (without a timeout) for the next datagram.
+     *
+     * @return pooled buffer holding the datagram, or null once the endpoint is closed.
+     */
+    @Override
+    public ByteBuffer receive() {
+        if (channel == null) {
+            return null;
+        }
+
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            // Every pooled buffer is still being read, release() drops the extra one if the pool is full
+            buffer = ByteBuffer.allocateDirect(configuration.maximumMessageSize);
+        }
+
+        try {
+            while (channel.isOpen()) {
+                buffer.clear();
+                if (channel.receive(buffer) != null) {
+                    buffer.flip();
+                    return buffer;
+                }
+
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // left the group
+        } catch (IOException e) {
+            System.out.println("ChannelMulticastEndpoint.receive(): IOException - " + e.getMessage());
+        }
+
+        release(buffer);
+        return null;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        if (buffer != null) {
+            pool.offer(buffer);
+        }
+    }
+
+    @Override
+    public boolean send(byte[] b, int length) {
+        if (b == null || channel == null) {
+            return false;
+        }
+
+        synchronized (txBuffer) {
+            try {
+                txBuffer.clear();
+                txBuffer.put(b, 0, length);
+                txBuffer.flip();
+
+                // Non-blocking, 0 means the socket send buffer is full and the datagram was not sent
+                long deadline = System.currentTimeMillis() + configuration.socketMaxTTL;
+                while (channel.send(txBuffer, group) == 0) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        configuration.metrics.counter("tx.dropped").increment();
+                        return false;
+                    }
+                    txSelector.select(wait);
+                    txSelector.selectedKeys().clear();
+                }
+                return true;
+            } catch (IOException e) {
+                System.out.println("ChannelMulticastEndpoint.send(): IOException - " + e.getMessage());
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Runnable task computing the ChunkManifest of every file under the root directory in the
+ * background, so manifests are usually ready before anyone asks for them.
+ *
+ * Files are queued when the FileCatalog is first read and again whenever the catalog reports
+ * a change, and are hashed one at a time at no more than hashRateLimit bytes per second so
+ * hashing does not compete with uploads for the disk. Manifests are cached in memory and on
+ * disk (manifestDir, one file per path holding the path, size and modification time the
+ * manifest was computed for), so they survive restarts and are only recomputed when the
+ * file has changed.
+ *
+ * A manifest asked for by the FileServer that is not ready yet is never computed on the request
+ * path (a large file would hold up the requester past its timeout) : the file is moved to the
+ * front of the queue, and the requester gets no manifest this time.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class ChunkHasher implements Runnable, FileCatalog.Listener {
+    private static final int MAGIC = 0x4D4E4654; // "MNFT"
+
+    private Configuration configuration;
+    private Path          cacheDir;     // on-disk manifest cache
+    private long          chunkSize;    // bytes per manifest chunk
+    private long          rateLimit;    // max bytes per second read by background hashing, 0 for no limit
+
+    private final ConcurrentHashMap<String, ChunkManifest> manifests; // file path -> manifest
+    private final LinkedBlockingDeque<File>                queue;     // files waiting to be hashed
+    private Thread                                         hasher;    // hashes queued files, null until started
+
+    /**
+     * Constructor for ChunkHasher.
+     *
+     * @param configuration : configuration of current machine.
+     */
+    public ChunkHasher(Configuration configuration) {
+        this.configuration = configuration;
+        this.cacheDir      = Paths.get(configuration.manifestDir);
+        this.chunkSize     = Math.max(ChunkManifest.MIN_CHUNK_SIZE, configuration.manifestChunkSize);
+        this.rateLimit     = configuration.hashRateLimit;
+        this.manifests     = new ConcurrentHashMap<>();
+        this.queue         = new LinkedBlockingDeque<>();
+    }
+
+    /**
+     * Queues every file in the catalog, follows the catalog for changes and starts the hashing thread.
+     */
+    public void start(FileCatalog fileCatalog) {
+        fileCatalog.addListener(this);
+        for (FileCatalog.Entry entry : fileCatalog.getEntries()) {
+            entryChanged(entry);
+        }
+        start();
+    }
+
+    /**
+     * Starts the hashing thread only, hashing the files asked for through getManifest().
+     */
+    public void start() {
+        hasher = new Thread(this);
+        hasher.setDaemon(true);
+        hasher.start();
+    }
+
+    /**
+     * Stops the hashing thread, files still queued are not hashed.
+     */
+    public void stop() {
+        if (hasher != null) {
+            hasher.interrupt();
+        }
+    }
+
+    /**
+     * Hashes queued files one at a time.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            File file;
+            try {
+                file = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // May have been queued more than once, or already asked for by a requester
+            if (file.isFile() && getCachedManifest(file) == null) {
+                computeManifest(file, rateLimit);
+            }
+        }
+    }
+
+    /**
+     * Returns the manifest of a file as it is now, if it is cached. Otherwise the file is moved to
+     * the front of the queue, to be hashed next.
+     *
+     * @return the manifest, or null if it is not ready yet.
+     */
+    public ChunkManifest getManifest(File file) {
+        ChunkManifest manifest = getCachedManifest(file);
+        if (manifest == null) {
+            queue.remove(file);
+            queue.addFirst(file);
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the number of manifests held in memory.
+     */
+    public int size() {
+        return manifests.size();
+    }
+
+    @Override
+    public void entryChanged(FileCatalog.Entry entry) {
+        if (entry.isFile()) {
+            queue.add(entry.getFile());
+        }
+    }
+
+    @Override
+    public void entryRemoved(FileCatalog.Entry entry) {
+        String key = entry.getFile().getPath();
+        manifests.remove(key);
+        try {
+            Files.deleteIfExists(cachePath(key));
+        } catch (IOException e) {
+            System.err.println("ChunkHasher.entryRemoved() : IOException -> " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void catalogRebuilt() {
+        // Every file is reported again through entryChanged(), cached manifests still valid are kept
+    }
+
+    /**
+     * Returns the manifest of a file from memory or the on-disk cache, if it matches the file as it is now.
+     */
+    private ChunkManifest getCachedManifest(File file) {
+        String key = file.getPath();
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+
+        ChunkManifest manifest = manifests.get(key);
+        if (manifest != null && manifest.matches(fileSize, lastModified) && manifest.getChunkSize() == chunkSize) {
+            return manifest;
+        }
+
+        manifest = readCache(key);
+        if (manifest != null && manifest.matches(fileSize, lastModified) && manifest.getChunkSize() == chunkSize) {
+            manifests.put(key, manifest);
+            return manifest;
+        }
+        return null;
+    }
+
+    /**
+     * Hashes a file, caching the result in memory and on disk.
+     *
+     * @return the manifest, or null if the file could not be read.
+     */
+    private ChunkManifest computeManifest(File file, long rateLimit) {
+        try {
+            long start = System.currentTimeMillis();
+            ChunkManifest manifest = ChunkManifest.compute(file, chunkSize, rateLimit);
+            manifests.put(file.getPath(), manifest);
+            writeCache(file.getPath(), manifest);
+
+            configuration.log.writeLog("ChunkHasher hashed " + file.getPath() + " (" + manifest.getFileSize() + " bytes, " +
+                                       manifest.getNumChunks() + " chunks) in " + (System.currentTimeMillis() - start) + " ms");
+            return manifest;
+        } catch (IOException e) {
+            System.err.println("ChunkHasher.computeManifest() : IOException -> " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cache file for a path : manifestDir/<hex SHA-256 of path>.manifest
+     */
+    private Path cachePath(String key) {
+        byte[] hash = ChunkManifest.newDigest().digest(key.getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder();
+        for (byte b : hash) {
+            name.append(String.format("%02x", b));
+        }
+        return cacheDir.resolve(name + ".manifest");
+    }
+
+    /**
+     * Reads a cached manifest, or returns null if there is none for this path.
+     */
+    private ChunkManifest readCache(String key) {
+        Path path = cachePath(key);
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(key)) {
+                return null;
+            }
+            return ChunkManifest.read(in);
+        } catch (IOException e) {
+            System.err.println("ChunkHasher.readCache() : ignoring unreadable manifest -> " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes a manifest to the cache, via a temporary file renamed into place.
+     */
+    private void writeCache(String key, ChunkManifest manifest) {
+        Path path = cachePath(key);
+        Path tempPath = path.resolveSibling(path.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+
+        try {
+            Files.createDirectories(cacheDir);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(key);
+                manifest.write(out);
+            }
+
+            try {
+                Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("ChunkHasher.writeCache() : IOException -> " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 hashes of the fixed-size chunks of a file, and the Merkle root over them.
+ *
+ * A requester fetches the manifest from the file server before any file data, checks each
+ * chunk against its hash as it arrives (so only bad chunks are fetched again), and compares
+ * root hashes to tell whether copies of a file on different nodes are identical.
+ *
+ * The root is built bottom-up from the chunk hashes, each parent being the hash of its two
+ * children concatenated (an odd node out is carried up unchanged).
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class ChunkManifest {
+    public static final int HASH_SIZE      = 32;   // bytes in a SHA-256 hash
+    public static final int HEADER_SIZE    = 28;   // bytes written by write() before the chunk hashes
+    public static final int MIN_CHUNK_SIZE = 4096; // smallest chunk size, bounds the size of a manifest
+
+    private final long     fileSize;
+    private final long     lastModified;   // ms, of the file when it was hashed
+    private final long     chunkSize;
+    private final byte[][] chunkHashes;
+    private final byte[]   rootHash;
+
+    /**
+     * Constructor for ChunkManifest.
+     */
+    private ChunkManifest(long fileSize, long lastModified, long chunkSize, byte[][] chunkHashes) {
+        this.fileSize     = fileSize;
+        this.lastModified = lastModified;
+        this.chunkSize    = chunkSize;
+        this.chunkHashes  = chunkHashes;
+        this.rootHash     = merkleRoot(chunkHashes);
+    }
+
+    /**
+     * Hashes a file chunk by chunk.
+     *
+     * @param file      : the file to hash.
+     * @param chunkSize : number of bytes per chunk.
+     * @param rateLimit : maximum bytes read per second, 0 for no limit.
+     */
+    public static ChunkManifest compute(File file, long chunkSize, long rateLimit) throws IOException {
+        long lastModified = file.lastModified();
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize  = fileChannel.size();
+            int  numChunks = numChunks(fileSize, chunkSize);
+            byte[][] chunkHashes = new byte[numChunks][];
+
+            MessageDigest digest = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            long start = System.nanoTime();
+            long bytesRead = 0;
+
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                long position = chunk * chunkSize;
+                long end = Math.min(fileSize, position + chunkSize);
+
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int n = fileChannel.read(buffer, position);
+                    if (n == -1) {
+                        throw new EOFException("file truncated while hashing " + file);
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    position += n;
+                    bytesRead += n;
+
+                    throttle(start, bytesRead, rateLimit);
+                }
+                chunkHashes[chunk] = digest.digest();
+            }
+
+            return new ChunkManifest(fileSize, lastModified, chunkSize, chunkHashes);
+        }
+    }
+
+    /**
+     * Sleeps for as long as needed to keep reading at or below rateLimit bytes per second.
+     */
+    private static void throttle(long start, long bytesRead, long rateLimit) throws IOException {
+        if (rateLimit <= 0) {
+            return;
+        }
+
+        long aheadNanos = (long) (bytesRead * 1e9 / rateLimit) - (System.nanoTime() - start);
+        if (aheadNanos > 1_000_000) {
+            try {
+                Thread.sleep(aheadNanos / 1_000_000);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("hashing interrupted");
+            }
+        }
+    }
+
+    /**
+     * Returns a new SHA-256 MessageDigest.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // required of every Java platform
+        }
+    }
+
+    /**
+     * Returns the number of chunks of a file (an empty file has one empty chunk).
+     */
+    public static int numChunks(long fileSize, long chunkSize) {
+        return (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Returns the most bytes write() can write for a file of the given size (chunks of MIN_CHUNK_SIZE),
+     * so that a length received for a manifest can be checked before anything is allocated.
+     */
+    public static long maxLength(long fileSize) {
+        return HEADER_SIZE + (long) numChunks(fileSize, MIN_CHUNK_SIZE) * HASH_SIZE;
+    }
+
+    /**
+     * Whether the hash of a received chunk matches the manifest.
+     */
+    public boolean verify(int chunk, byte[] hash) {
+        return chunk >= 0 && chunk < chunkHashes.length && MessageDigest.isEqual(chunkHashes[chunk], hash);
+    }
+
+    /**
+     * Whether the manifest was computed from the file as it is now.
+     */
+    public boolean matches(long fileSize, long lastModified) {
+        return this.fileSize == fileSize && this.lastModified == lastModified;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getNumChunks() {
+        return chunkHashes.length;
+    }
+
+    public byte[] getRootHash() {
+        return rootHash.clone();
+    }
+
+    /**
+     * Writes the manifest : file size, last modified, chunk size, number of chunks, then the chunk hashes.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(fileSize);
+        out.writeLong(lastModified);
+        out.writeLong(chunkSize);
+        out.writeInt(chunkHashes.length);
+        for (byte[] hash : chunkHashes) {
+            out.write(hash);
+        }
+    }
+
+    /**
+     * Reads a manifest written by write(), recomputing the root hash.
+     */
+    public static ChunkManifest read(DataInputStream in) throws IOException {
+        long fileSize     = in.readLong();
+        long lastModified = in.readLong();
+        long chunkSize    = in.readLong();
+        int  numChunks    = in.readInt();
+
+        if (chunkSize < MIN_CHUNK_SIZE || fileSize < 0 || numChunks != numChunks(fileSize, chunkSize)) {
+            throw new IOException("invalid chunk manifest");
+        }
+
+        byte[][] chunkHashes = new byte[numChunks][HASH_SIZE];
+        for (byte[] hash : chunkHashes) {
+            in.readFully(hash);
+        }
+        return new ChunkManifest(fileSize, lastModified, chunkSize, chunkHashes);
+    }
+
+    /**
+     * Returns the manifest as written by write().
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + chunkHashes.length * HASH_SIZE);
+        try {
+            write(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds the Merkle root over the chunk hashes.
+     */
+    private static byte[] merkleRoot(byte[][] chunkHashes) {
+        MessageDigest digest = newDigest();
+        byte[][] level = chunkHashes;
+
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 < level.length) {
+                    digest.update(level[2 * i]);
+                    digest.update(level[2 * i + 1]);
+                    parents[i] = digest.digest();
+                } else {
+                    parents[i] = level[2 * i];
+                }
+            }
+            level = parents;
+        }
+        return Arrays.copyOf(level[0], HASH_SIZE);
+    }
+}
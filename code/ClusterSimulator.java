@@ -0,0 +1,586 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a cluster of nodes (MulticastHandlers) in one JVM, to see how the protocol behaves as the
+ * number of nodes grows, run from the command line :
+ *
+ *   java ClusterSimulator [nodes] [seconds] [-interface name] [-json file]
+ *       nodes   : comma separated cluster sizes, e.g 10,50,200 (default 5,10,20,50)
+ *       seconds : length of each workload (default 10)
+ *
+ * Every node has its own Configuration (from filetreebrowser.properties), identifier ("nodeNNN@host"),
+ * root_dir, downloads, manifests and log (all under java.io.tmpdir/ClusterSimulator), and file
+ * transfer port. Nodes share one multicast group on a port free when the simulation starts, with
+ * multicast loop on and a hop limit of 0, so datagrams go from node to node on this host only.
+ * The interface is the one the configuration names if it can multicast, else the first that can,
+ * or the one given by -interface. Nodes beyond the host's limit of inotify instances (often 128) do
+ * not watch their root_dir for changes, which the workloads do not need.
+ *
+ * For each cluster size the nodes are started one by one, until every node has heard from every
+ * other, then these workloads run (a subset may be given with -workloads idle,search,download,churn) :
+ *
+ *   idle     : advertisements only.
+ *   search   : a search storm, every node sending searchRate search-requests per second (-searchRate,
+ *              default 1), each for a file every other node has, so every node answers.
+ *   download : rounds in which every node downloads a downloadSize byte file (-downloadSize, default
+ *              256KB) from another node, all at once.
+ *   churn    : every churnInterval ms (-churnInterval, default 1000) a node leaves and a new one joins.
+ *              Last, as nodes that left are still searched until their advertisements expire.
+ *
+ * and for each reports :
+ *
+ *   tx/s, rx/s    : datagrams sent and received per node per second.
+ *   lost          : datagrams sent that did not reach every node (e.g socket buffers overflowing),
+ *                   while no node joins or leaves.
+ *   dropped       : messages dropped by full rx and tx queues, or failed sends.
+ *   search ms     : p50/p99/max ms from a search-request to each node's first response, and the
+ *                   fraction of nodes that answered before the deadline.
+ *   cpu ms/s      : ms of CPU per second per node (the process' CPU time over the nodes), and of the
+ *                   busiest node (CPU time of its threads).
+ *   heap MB       : heap per node, used after a GC above that used before the nodes started.
+ *
+ * Output of the nodes themselves goes to ClusterSimulator.out in the simulation's directory.
+ * With "-json file" every result is also written as JSON (as by Benchmark, see Benchmark compare).
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class ClusterSimulator {
+    private static final String PROPERTIES_FILE  = "filetreebrowser.properties";
+    private static final int    FILES_PER_NODE   = 16;     // small files each node holds, found by searches
+    private static final long   CONVERGE_TIMEOUT = 60000;  // ms to wait for every node to hear from every other
+    private static final long   ROUND_TIMEOUT    = 30000;  // ms to wait for a round of downloads
+
+    private static PrintStream console; // System.out as started, the nodes' output goes to a file
+
+    private final File             dir;           // of the cluster, a sub-directory per node
+    private final NetworkInterface nif;
+    private final int              port;          // multicast port of the cluster
+    private final long             downloadSize;  // bytes of the file each node serves for downloads
+    private final int              numNodes;
+    private final Random           random;
+
+    private final CopyOnWriteArrayList<Node> nodes;    // running
+    private final ArrayList<Node>            allNodes; // every node started, so counts from nodes that left are kept
+    private int                              nextNodeNo;
+
+    private Metrics.Histogram searchLatency;      // ns from a search-request to each node's first response
+    private final LongAdder   searchesAnswered;   // nodes that answered a search in time
+    private final LongAdder   searchesExpected;   // nodes expected to answer a search
+
+    /**
+     * A node of the cluster. Its handler is started and stopped, and its requests sent, on its own
+     * driver thread : every thread the handler starts is then in the node's thread group (for its
+     * CPU time) and sends with the node's identifier (see MessageFactory.setCurrent()).
+     */
+    private class Node {
+        final String          name;           // "node007", the username of the node's identifier
+        final Configuration   configuration;
+        final ThreadGroup     threads;
+        final ExecutorService driver;
+        MulticastHandler      handler;
+
+        Node(int number) throws IOException {
+            this.name    = String.format("node%03d", number);
+            this.threads = new ThreadGroup(name);
+            this.driver  = Executors.newSingleThreadExecutor(runnable -> new Thread(threads, runnable, name + "-driver"));
+
+            File nodeDir = new File(dir, name);
+            writeFiles(new File(nodeDir, "root_dir/" + name));
+
+            configuration = new Configuration(PROPERTIES_FILE);
+            configuration.log.close();
+
+            configuration.username        = name;
+            configuration.identifier      = name + "@" + configuration.hostname;
+            configuration.id              = configuration.identifier;
+            configuration.rootDir         = new File(nodeDir, "root_dir").getPath();
+            configuration.downloadDir     = new File(nodeDir, "downloads").getPath();
+            configuration.manifestDir     = new File(nodeDir, "manifests").getPath();
+            configuration.logFile         = new File(nodeDir, name + ".log").getPath();
+            configuration.nif             = nif;
+            configuration.mPort           = port;
+            configuration.mTTL            = 0;
+            configuration.loopback        = false; // receive the other nodes on this host
+            configuration.reuseAddr       = true;  // every node binds the same port
+            configuration.transferPort    = 0;
+            configuration.search          = true;
+            configuration.searchType      = "path-filename-substring";
+            configuration.download        = true;
+            configuration.metricsInterval = 0;
+            configuration.log = new LogFileWriter(configuration.logFile, configuration.logBufferSize, configuration.logFlushInterval,
+                                                  configuration.logMaxFileSize, configuration.logMaxFiles, configuration.logFull.equals("block"));
+        }
+
+        /**
+         * Writes the node's files : FILES_PER_NODE small files, and one of downloadSize bytes.
+         */
+        private void writeFiles(File files) throws IOException {
+            files.mkdirs();
+            for (int i = 0; i < FILES_PER_NODE; i++) {
+                try (FileWriter writer = new FileWriter(new File(files, String.format("%s-file-%02d.txt", name, i)))) {
+                    writer.write(name + " file " + i + "\n");
+                }
+            }
+
+            byte[] data = new byte[(int) Math.min(downloadSize, 1 << 20)];
+            try (FileOutputStream out = new FileOutputStream(new File(files, name + "-data.bin"))) {
+                for (long written = 0; written < downloadSize; written += data.length) {
+                    random.nextBytes(data);
+                    out.write(data, 0, (int) Math.min(data.length, downloadSize - written));
+                }
+            }
+        }
+
+        void start() throws Exception {
+            handler = driver.submit(() -> new MulticastHandler(configuration)).get();
+        }
+
+        void stop() throws Exception {
+            driver.submit(handler::close).get();
+            driver.shutdown();
+            configuration.log.close();
+        }
+
+        /**
+         * Returns the number of other nodes this node has heard from.
+         */
+        int getNumPeers() {
+            return handler.advertisementReceiver.getAdvertisementMessages().size();
+        }
+
+        /**
+         * Returns the CPU time (ns) of the node's running threads.
+         */
+        long getCpuTime() {
+            Thread[] running = new Thread[threads.activeCount() * 2 + 16];
+            int n = threads.enumerate(running);
+
+            long cpu = 0;
+            for (int i = 0; i < n; i++) {
+                cpu += Math.max(0, ManagementFactory.getThreadMXBean().getThreadCpuTime(running[i].getId()));
+            }
+            return cpu;
+        }
+    }
+
+    /**
+     * Counts over the whole cluster at one time, the difference of two giving a workload's results.
+     */
+    private class Sample {
+        final long nanos = System.nanoTime();
+        final long cpu   = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+        final Map<Node, Long> nodeCpu = new HashMap<>();
+        long tx;        // datagrams sent
+        long rx;        // datagrams received
+        long dropped;   // messages dropped by queues, and failed sends
+
+        Sample() {
+            for (Node node : allNodes) {
+                for (Map.Entry<String, Long> value : node.configuration.metrics.snapshot().entrySet()) {
+                    String name = value.getKey();
+                    if (name.equals("rx.datagrams")) {
+                        rx += value.getValue();
+                    } else if (name.equals("tx.failed") || (name.startsWith("queue.") && name.endsWith(".dropped"))) {
+                        dropped += value.getValue();
+                    } else if (name.startsWith("tx.") && name.indexOf('.', 3) < 0) {
+                        tx += value.getValue();
+                    }
+                }
+            }
+            for (Node node : nodes) {
+                nodeCpu.put(node, node.getCpuTime());
+            }
+        }
+    }
+
+    /**
+     * Constructor for ClusterSimulator, of one cluster size.
+     */
+    public ClusterSimulator(int numNodes, File dir, NetworkInterface nif, int port, long downloadSize) {
+        this.numNodes         = numNodes;
+        this.dir              = dir;
+        this.nif              = nif;
+        this.port             = port;
+        this.downloadSize     = downloadSize;
+        this.random           = new Random(4105);
+        this.nodes            = new CopyOnWriteArrayList<>();
+        this.allNodes         = new ArrayList<>();
+        this.searchesAnswered = new LongAdder();
+        this.searchesExpected = new LongAdder();
+    }
+
+    /**
+     * Main method, runs the workloads for each cluster size.
+     */
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> arguments = new ArrayList<>(Arrays.asList(args));
+        String jsonFile          = option(arguments, "-json", null);
+        String interfaceName     = option(arguments, "-interface", null);
+        String workloads         = option(arguments, "-workloads", "idle,search,download,churn");
+        double searchRate        = Double.parseDouble(option(arguments, "-searchRate", "1"));
+        long   churnInterval     = Long.parseLong(option(arguments, "-churnInterval", "1000"));
+        long   downloadSize      = Long.parseLong(option(arguments, "-downloadSize", Integer.toString(256 * 1024)));
+
+        String sizes = arguments.size() > 0 ? arguments.get(0) : "5,10,20,50";
+        int seconds  = arguments.size() > 1 ? Integer.parseInt(arguments.get(1)) : 10;
+
+        NetworkInterface nif = multicastInterface(interfaceName);
+        if (nif == null) {
+            System.out.println("ClusterSimulator : no network interface that can multicast" +
+                               (interfaceName != null ? " named " + interfaceName : ""));
+            System.exit(1);
+        }
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        File root = new File(System.getProperty("java.io.tmpdir"), "ClusterSimulator");
+        deleteTree(root);
+        root.mkdirs();
+
+        // The nodes print as they would to a user, keep the console for the results
+        console = System.out;
+        PrintStream output = new PrintStream(new FileOutputStream(new File(root, "ClusterSimulator.out")), true);
+        System.setOut(output);
+        System.setErr(output);
+
+        console.println("interface " + nif.getName() + ", port " + port + ", " + seconds + " s per workload, node output in " +
+                        new File(root, "ClusterSimulator.out"));
+        console.printf("%-6s %-9s %9s %9s %7s %8s %22s %9s %15s %8s%n", "nodes", "workload", "tx/s", "rx/s", "lost", "dropped",
+                       "search ms p50/p99/max", "answered", "cpu ms/s (max)", "heap MB");
+
+        for (String size : sizes.split(",")) {
+            int numNodes = Integer.parseInt(size.trim());
+            if (numNodes < 2) {
+                console.println("ClusterSimulator : a cluster needs 2 nodes or more, not " + numNodes);
+                continue;
+            }
+            ClusterSimulator simulator = new ClusterSimulator(numNodes, new File(root, Integer.toString(numNodes)), nif, port, downloadSize);
+            try {
+                simulator.run(Arrays.asList(workloads.split(",")), seconds, searchRate, churnInterval);
+            } finally {
+                simulator.stop();
+            }
+        }
+
+        if (jsonFile != null) {
+            Benchmark.writeResults(jsonFile);
+            console.println("results written to " + jsonFile);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Starts the cluster and runs each workload in turn.
+     */
+    public void run(List<String> workloads, int seconds, double searchRate, long churnInterval) throws Exception {
+        long heapBefore = usedHeap();
+
+        // Nodes join one by one, as when started by hand
+        long start = System.nanoTime();
+        Sample before = new Sample();
+        for (int i = 0; i < numNodes; i++) {
+            startNode();
+        }
+        boolean converged = awaitConvergence();
+        double joinSeconds = (System.nanoTime() - start) / 1e9;
+        report("join", before, new Sample(), heapBefore, false);
+        console.printf("%-6d %-9s every node heard from every other %s %.1f s%n", numNodes, "", converged ? "after" : "NOT after", joinSeconds);
+        Benchmark.record("cluster", "join.converge", Integer.toString(numNodes), joinSeconds * 1000, "ms");
+
+        for (String workload : workloads) {
+            searchLatency = new Metrics.Histogram();
+            searchesAnswered.reset();
+            searchesExpected.reset();
+            before = new Sample();
+
+            switch (workload.trim()) {
+                case "idle" :
+                    Thread.sleep(seconds * 1000L);
+                    break;
+                case "churn" :
+                    churn(seconds, churnInterval);
+                    break;
+                case "search" :
+                    searchStorm(seconds, searchRate);
+                    break;
+                case "download" :
+                    downloads(seconds);
+                    break;
+                default :
+                    console.println("ClusterSimulator : unknown workload " + workload);
+                    continue;
+            }
+            report(workload.trim(), before, new Sample(), heapBefore, !workload.trim().equals("churn"));
+        }
+    }
+
+    /**
+     * Stops every node, and deletes the cluster's files.
+     */
+    public void stop() {
+        for (Node node : nodes) {
+            try {
+                node.stop();
+            } catch (Exception e) {
+                System.err.println("ClusterSimulator.stop() : " + node.name + " -> " + e);
+            }
+        }
+        nodes.clear();
+        deleteTree(dir);
+    }
+
+    private Node startNode() throws Exception {
+        Node node = new Node(nextNodeNo++);
+        node.start();
+        nodes.add(node);
+        allNodes.add(node);
+        return node;
+    }
+
+    /**
+     * Waits until every node has heard from every other, up to CONVERGE_TIMEOUT ms.
+     */
+    private boolean awaitConvergence() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            boolean converged = true;
+            for (Node node : nodes) {
+                if (node.getNumPeers() < nodes.size() - 1) {
+                    converged = false;
+                    break;
+                }
+            }
+            if (converged) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    /**
+     * Every churnInterval ms a random node leaves, and a new node joins.
+     */
+    private void churn(int seconds, long churnInterval) throws Exception {
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            Node leaving = nodes.get(random.nextInt(nodes.size()));
+            nodes.remove(leaving);
+            leaving.stop();
+            startNode();
+
+            Thread.sleep(Math.max(0, Math.min(churnInterval, end - System.currentTimeMillis())));
+        }
+    }
+
+    /**
+     * Every node sends searchRate search-requests per second, spread evenly over time, each for a
+     * file every other node has.
+     */
+    private void searchStorm(int seconds, double searchRate) throws InterruptedException {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        long period = Math.max(1, (long) (1e6 / (searchRate * nodes.size()))); // us between searches
+
+        int[] next = new int[1];
+        timer.scheduleAtFixedRate(() -> {
+            Node node = nodes.get(next[0]++ % nodes.size());
+            String searchString = String.format("file-%02d", random.nextInt(FILES_PER_NODE));
+
+            node.driver.execute(() -> {
+                SearchHandle search = node.handler.txSearchRequest(searchString);
+                search.getFuture().thenRun(() -> {
+                    for (double latency : search.getLatencies().values()) {
+                        searchLatency.record((long) (latency * 1e6));
+                    }
+                    searchesAnswered.add(search.getNumAnswered());
+                    searchesExpected.add(search.getNumPeers());
+                });
+            });
+        }, 0, period, TimeUnit.MICROSECONDS);
+
+        Thread.sleep(seconds * 1000L);
+        timer.shutdown();
+
+        // Searches still in progress complete by their deadline
+        Thread.sleep(nodes.get(0).configuration.sleepTime);
+    }
+
+    /**
+     * Rounds in which every node downloads the large file of another node at once, for seconds
+     * (the last round is waited for).
+     */
+    private void downloads(int seconds) throws InterruptedException {
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        long requested = 0;
+        long completed = completedDownloads();
+        long start = System.nanoTime();
+
+        while (System.currentTimeMillis() < end) {
+            for (Node node : nodes) {
+                Node target = nodes.get(random.nextInt(nodes.size() - 1));
+                if (target == node) {
+                    target = nodes.get(nodes.size() - 1);
+                }
+                String fileString = target.name + "/" + target.name + "-data.bin";
+                String targetIdentifier = target.configuration.identifier;
+                node.driver.execute(() -> node.handler.txDownloadRequest(fileString, targetIdentifier));
+                requested++;
+            }
+
+            long deadline = System.currentTimeMillis() + ROUND_TIMEOUT;
+            while (completedDownloads() - completed < requested && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+
+        long downloaded = completedDownloads() - completed;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        console.printf("%-6d %-9s %d of %d downloads in %.1f s, %.1f MB/s in total%n", numNodes, "", downloaded, requested, elapsed,
+                       downloaded * downloadSize / elapsed / (1024 * 1024));
+        Benchmark.record("cluster", "download.throughput", Integer.toString(numNodes), downloaded * downloadSize / elapsed / (1024 * 1024), "MB/s");
+    }
+
+    /**
+     * Returns the number of downloads completed by every node.
+     */
+    private long completedDownloads() {
+        long completed = 0;
+        for (Node node : allNodes) {
+            completed += node.configuration.metrics.histogram("download.bytes/s").getCount();
+        }
+        return completed;
+    }
+
+    /**
+     * Prints (and records) the results of a workload, from samples taken before and after it.
+     *
+     * @param fixed : whether no node joined or left, so that datagrams lost can be counted.
+     */
+    private void report(String workload, Sample before, Sample after, long heapBefore, boolean fixed) {
+        double seconds = (after.nanos - before.nanos) / 1e9;
+        int n = nodes.size();
+
+        long tx = after.tx - before.tx;
+        long rx = after.rx - before.rx;
+        long dropped = after.dropped - before.dropped;
+
+        // Every datagram sent should reach every node, the sender included (multicast loop)
+        double lost = tx == 0 || !fixed ? 0 : Math.max(0, 100.0 * (1 - (double) rx / ((double) tx * n)));
+
+        double cpu = (after.cpu - before.cpu) / 1e6 / seconds / n;
+        double maxCpu = 0;
+        for (Map.Entry<Node, Long> nodeCpu : after.nodeCpu.entrySet()) {
+            Long start = before.nodeCpu.get(nodeCpu.getKey());
+            maxCpu = Math.max(maxCpu, (nodeCpu.getValue() - (start != null ? start : 0)) / 1e6 / seconds);
+        }
+
+        double heap = (usedHeap() - heapBefore) / (1024.0 * 1024) / n;
+
+        String search = "-";
+        String answered = "-";
+        if (searchLatency != null && searchLatency.getCount() > 0) {
+            search = String.format("%.1f/%.1f/%.1f", searchLatency.getPercentile(0.50) / 1e6, searchLatency.getPercentile(0.99) / 1e6,
+                                   searchLatency.getMax() / 1e6);
+            answered = String.format("%.1f%%", 100.0 * searchesAnswered.sum() / Math.max(1, searchesExpected.sum()));
+        }
+
+        console.printf("%-6d %-9s %9.1f %9.1f %7s %8d %22s %9s %6.1f (%6.1f) %8.2f%n", n, workload, tx / seconds / n, rx / seconds / n,
+                       fixed ? String.format("%.2f%%", lost) : "-", dropped, search, answered, cpu, maxCpu, heap);
+
+        String param = Integer.toString(numNodes);
+        Benchmark.record("cluster", workload + ".tx", param, tx / seconds / n, "datagrams/s");
+        Benchmark.record("cluster", workload + ".rx", param, rx / seconds / n, "datagrams/s");
+        if (fixed) {
+            Benchmark.record("cluster", workload + ".delivered", param, 100 - lost, "%");
+        }
+        Benchmark.record("cluster", workload + ".dropped", param, dropped, "messages");
+        Benchmark.record("cluster", workload + ".cpu", param, cpu, "ms/s");
+        Benchmark.record("cluster", workload + ".heap", param, heap, "MB");
+        if (searchLatency != null && searchLatency.getCount() > 0) {
+            Benchmark.record("cluster", workload + ".search.p50", param, searchLatency.getPercentile(0.50) / 1e6, "ms");
+            Benchmark.record("cluster", workload + ".search.p99", param, searchLatency.getPercentile(0.99) / 1e6, "ms");
+            Benchmark.record("cluster", workload + ".search.answered", param, 100.0 * searchesAnswered.sum() / Math.max(1, searchesExpected.sum()), "%");
+        }
+    }
+
+    /**
+     * Returns the bytes of heap in use, after a GC.
+     */
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns the named interface, else the configured interface if it can multicast, else the first
+     * (up, IPv6) interface that can.
+     */
+    private static NetworkInterface multicastInterface(String name) throws SocketException {
+        if (name != null) {
+            return NetworkInterface.getByName(name);
+        }
+
+        try {
+            NetworkInterface configured = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+            if (configured != null && configured.isUp() && configured.supportsMulticast()) {
+                return configured;
+            }
+        } catch (IOException e) {
+            // fall through to the first that can multicast
+        }
+
+        for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (nif.isUp() && nif.supportsMulticast() &&
+                Collections.list(nif.getInetAddresses()).stream().anyMatch(address -> address instanceof Inet6Address)) {
+                return nif;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes "name value" from the arguments, returning value (or the default if name is not given).
+     */
+    private static String option(ArrayList<String> arguments, String name, String defaultValue) {
+        int i = arguments.indexOf(name);
+        if (i >= 0 && i + 1 < arguments.size()) {
+            String value = arguments.get(i + 1);
+            arguments.subList(i, i + 2).clear();
+            return value;
+        }
+        return defaultValue;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
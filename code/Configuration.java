@@ -25,6 +25,7 @@ public class Configuration
   public Properties    properties;
   public String        propertiesFile = "filetreebrowser.properties";
   public LogFileWriter log;
+  public Metrics       metrics = new Metrics(); // runtime metrics, see ":stats"
   public String        logFile = "logs/filetreebrowser.log";
 
   // These default values can be overriden in the properties file.
@@ -48,7 +49,10 @@ public class Configuration
   public String  rootDir = "root_dir"; // sub-dir in current dir
   public String  id; // System.getProperty("user.name") @ fqdn;
   public int     maximumMessageSize = 500; // bytes
-  public int     maximumAdvertisementPeriod = 1000; // ms
+  public int     maximumAdvertisementPeriod = 1000; // ms, grace after a node's advertised interval before it expires
+  public int     advertIntervalMin = 1000;  // ms, shortest interval between advertisements
+  public int     advertIntervalMax = 32000; // ms, longest interval between advertisements
+  public int     advertRedundancy = 3;      // consistent advertisements heard that suppress a send, 0 never suppresses
 
   public NetworkInterface nif = null;
   public final String zeroAddr = "0"; // to indicate a "null" address
@@ -71,6 +75,31 @@ public class Configuration
   public String  searchType = "none"; // from searchOptions_
   public boolean  search = false; // whether search is possible 
   public boolean download = false; // whether download is possible
+  public String[] codecOptions = // Could have used enum.
+         {"ascii", "binary"};
+  public String codec = "binary"; // from codecOptions, binary is only sent once every node advertises it
+  public String[] endpointOptions = // Could have used enum.
+         {"socket", "channel"};
+  public String endpoint = "channel"; // from endpointOptions, "channel" blocks in a Selector instead of polling every soTimeout ms
+  public int txRate = 2000; // datagrams/s sent to the multicast group on average, 0 sends without pacing
+  public int txBurst = 64; // datagrams sent back to back before pacing starts
+  public int txQueueSize = 4096; // datagrams of each priority waiting to be sent, more are dropped
+  public int searchCacheSize = 4 * 1024 * 1024; // bytes (estimated) of search results cached, 0 disables the cache
+  public int duplicateCacheSize = 4096; // recently received requests remembered to drop repeats
+  public int duplicateWindow = 30000; // ms, a request received again within this is dropped
+  public int dispatchQueueSize = 1024; // rx messages of each type waiting to be handled, more are dropped
+  public int searchRequestThreads = 2; // threads answering search-requests
+  public int searchResponseThreads = 1; // threads printing search-responses (1 keeps them in order)
+  public int downloadRequestThreads = 2; // threads answering download-requests
+  public int downloadResponseThreads = 1; // threads processing download-responses
+  public int logBufferSize = 8192; // log entries waiting to be written by the log writer thread
+  public int logFlushInterval = 1000; // ms between flushes of the log file, 0 flushes after every batch
+  public int logMaxFileSize = 16 * 1024 * 1024; // bytes, the log file is rotated once this size, 0 never rotates
+  public int logMaxFiles = 4; // rotated log files kept (name.1 ... name.logMaxFiles)
+  public String[] logFullOptions = // Could have used enum.
+         {"drop", "block"};
+  public String logFull = "drop"; // from logFullOptions, what logging does when logBufferSize entries are waiting
+  public int metricsInterval = 60000; // ms between snapshots of the metrics written to logs/, 0 for none
 
   // these should not be loaded from a config file, of course
   public InetAddress mGroup;
@@ -79,6 +108,21 @@ public class Configuration
   public int socketMaxTTL;
   public String downloadDir;
 
+  public int transferPort = 0; // long-lived file transfer port, 0 for an ephemeral port
+  public int transferWorkers = 4; // threads sending file data
+  public int maxConcurrentUploads = 4; // uploads sending data at once
+  public int maxQueuedUploads = 16; // uploads waiting for a slot before requests are turned away
+  public int uploadRetryAfter = 2000; // ms, retry time given to requesters turned away as busy
+  public int swarmChunkSize = 4 * 1024 * 1024; // bytes, unit of work handed to each peer in a swarm download
+  public int checkpointInterval = 8 * 1024 * 1024; // bytes received between flushes to disk of downloads without a manifest
+  public String manifestDir = "manifests"; // on-disk cache of chunk manifests of files under rootDir
+  public int manifestChunkSize = 4 * 1024 * 1024; // bytes per chunk hashed in a manifest
+  public int hashRateLimit = 32 * 1024 * 1024; // bytes/s read by background hashing, 0 for no limit
+  public boolean compression = true; // whether file data may be sent deflate compressed (if both ends want it)
+  public int compressionLevel = 1; // deflate level 1 (fastest) - 9 (smallest)
+  public String uncompressedTypes = // file extensions never compressed, as they are compressed already
+         "zip,gz,tgz,bz2,xz,zst,7z,rar,jar,jpg,jpeg,png,gif,webp,mp3,mp4,mkv,avi,mov,ogg,flac,pdf,docx,xlsx,pptx";
+
   public Configuration(String file) 
   {
     if (file != null) { propertiesFile = file; }
@@ -192,12 +236,27 @@ public class Configuration
           // should check for "sensible" period value
         }
 
+        if ((s = properties.getProperty("advertIntervalMin")) != null) {
+          System.out.println(propertiesFile + " advertIntervalMin: " + advertIntervalMin + " -> " + s);
+          advertIntervalMin = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("advertIntervalMax")) != null) {
+          System.out.println(propertiesFile + " advertIntervalMax: " + advertIntervalMax + " -> " + s);
+          advertIntervalMax = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("advertRedundancy")) != null) {
+          System.out.println(propertiesFile + " advertRedundancy: " + advertRedundancy + " -> " + s);
+          advertRedundancy = Integer.parseInt(s);
+        }
+
         if ((s = properties.getProperty("searchType")) != null) {
           if (!checkOption(s, searchOptions)) {
             System.out.println(propertiesFile + " bad value for 'search': '" + s + "' -> using 'none'");
             s = new String("none");
           }
-          System.out.println(propertiesFile + " search: " + search + " -> " + s);
+          System.out.println(propertiesFile + " searchType: " + searchType + " -> " + s);
           searchType = new String(s);
         }
 
@@ -218,6 +277,30 @@ public class Configuration
           System.out.println(propertiesFile + " download: " + download + " -> " + s);
           download = Boolean.parseBoolean(s);
         }
+
+        if ((s = properties.getProperty("codec")) != null) {
+          if (!checkOption(s, codecOptions)) {
+            System.out.println(propertiesFile + " bad value for 'codec': '" + s + "' -> using 'ascii'");
+            s = new String("ascii");
+          }
+          System.out.println(propertiesFile + " codec: " + codec + " -> " + s);
+          codec = new String(s);
+        }
+
+        if ((s = properties.getProperty("endpoint")) != null) {
+          if (!checkOption(s, endpointOptions)) {
+            System.out.println(propertiesFile + " bad value for 'endpoint': '" + s + "' -> using 'socket'");
+            s = new String("socket");
+          }
+          System.out.println(propertiesFile + " endpoint: " + endpoint + " -> " + s);
+          endpoint = new String(s);
+        }
+
+        // searchType=none means no searching is possible, whatever 'search' says
+        if (search && searchType.equals("none")) {
+          System.out.println(propertiesFile + " searchType is 'none' -> search: " + search + " -> false");
+          search = false;
+        }
         if ((s = properties.getProperty("socketMaxTTL")) != null) {
             System.out.println(propertiesFile + " socketMaxTTL: " + socketMaxTTL + " -> " + s);
             socketMaxTTL = Integer.parseInt(s);
@@ -228,10 +311,169 @@ public class Configuration
             downloadDir = new String(s);
         }
 
+        if ((s = properties.getProperty("txRate")) != null) {
+            System.out.println(propertiesFile + " txRate: " + txRate + " -> " + s);
+            txRate = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("txBurst")) != null) {
+            System.out.println(propertiesFile + " txBurst: " + txBurst + " -> " + s);
+            txBurst = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("txQueueSize")) != null) {
+            System.out.println(propertiesFile + " txQueueSize: " + txQueueSize + " -> " + s);
+            txQueueSize = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("searchCacheSize")) != null) {
+            System.out.println(propertiesFile + " searchCacheSize: " + searchCacheSize + " -> " + s);
+            searchCacheSize = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("duplicateCacheSize")) != null) {
+            System.out.println(propertiesFile + " duplicateCacheSize: " + duplicateCacheSize + " -> " + s);
+            duplicateCacheSize = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("logBufferSize")) != null) {
+            System.out.println(propertiesFile + " logBufferSize: " + logBufferSize + " -> " + s);
+            logBufferSize = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("logFlushInterval")) != null) {
+            System.out.println(propertiesFile + " logFlushInterval: " + logFlushInterval + " -> " + s);
+            logFlushInterval = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("logMaxFileSize")) != null) {
+            System.out.println(propertiesFile + " logMaxFileSize: " + logMaxFileSize + " -> " + s);
+            logMaxFileSize = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("logMaxFiles")) != null) {
+            System.out.println(propertiesFile + " logMaxFiles: " + logMaxFiles + " -> " + s);
+            logMaxFiles = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("logFull")) != null) {
+          if (!checkOption(s, logFullOptions)) {
+            System.out.println(propertiesFile + " bad value for 'logFull': '" + s + "' -> using 'drop'");
+            s = new String("drop");
+          }
+          System.out.println(propertiesFile + " logFull: " + logFull + " -> " + s);
+          logFull = new String(s);
+        }
+
+        if ((s = properties.getProperty("metricsInterval")) != null) {
+            System.out.println(propertiesFile + " metricsInterval: " + metricsInterval + " -> " + s);
+            metricsInterval = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("duplicateWindow")) != null) {
+            System.out.println(propertiesFile + " duplicateWindow: " + duplicateWindow + " -> " + s);
+            duplicateWindow = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("dispatchQueueSize")) != null) {
+            System.out.println(propertiesFile + " dispatchQueueSize: " + dispatchQueueSize + " -> " + s);
+            dispatchQueueSize = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("searchRequestThreads")) != null) {
+            System.out.println(propertiesFile + " searchRequestThreads: " + searchRequestThreads + " -> " + s);
+            searchRequestThreads = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("searchResponseThreads")) != null) {
+            System.out.println(propertiesFile + " searchResponseThreads: " + searchResponseThreads + " -> " + s);
+            searchResponseThreads = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("downloadRequestThreads")) != null) {
+            System.out.println(propertiesFile + " downloadRequestThreads: " + downloadRequestThreads + " -> " + s);
+            downloadRequestThreads = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("downloadResponseThreads")) != null) {
+            System.out.println(propertiesFile + " downloadResponseThreads: " + downloadResponseThreads + " -> " + s);
+            downloadResponseThreads = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("transferPort")) != null) {
+            System.out.println(propertiesFile + " transferPort: " + transferPort + " -> " + s);
+            transferPort = Integer.parseInt(s);
+            // should check for valid port number range
+        }
+
+        if ((s = properties.getProperty("transferWorkers")) != null) {
+            System.out.println(propertiesFile + " transferWorkers: " + transferWorkers + " -> " + s);
+            transferWorkers = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("maxConcurrentUploads")) != null) {
+            System.out.println(propertiesFile + " maxConcurrentUploads: " + maxConcurrentUploads + " -> " + s);
+            maxConcurrentUploads = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("maxQueuedUploads")) != null) {
+            System.out.println(propertiesFile + " maxQueuedUploads: " + maxQueuedUploads + " -> " + s);
+            maxQueuedUploads = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("uploadRetryAfter")) != null) {
+            System.out.println(propertiesFile + " uploadRetryAfter: " + uploadRetryAfter + " -> " + s);
+            uploadRetryAfter = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("swarmChunkSize")) != null) {
+            System.out.println(propertiesFile + " swarmChunkSize: " + swarmChunkSize + " -> " + s);
+            swarmChunkSize = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("checkpointInterval")) != null) {
+            System.out.println(propertiesFile + " checkpointInterval: " + checkpointInterval + " -> " + s);
+            checkpointInterval = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("manifestDir")) != null) {
+            System.out.println(propertiesFile + " manifestDir: " + manifestDir + " -> " + s);
+            manifestDir = new String(s);
+        }
+
+        if ((s = properties.getProperty("manifestChunkSize")) != null) {
+            System.out.println(propertiesFile + " manifestChunkSize: " + manifestChunkSize + " -> " + s);
+            manifestChunkSize = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("hashRateLimit")) != null) {
+            System.out.println(propertiesFile + " hashRateLimit: " + hashRateLimit + " -> " + s);
+            hashRateLimit = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("compression")) != null) {
+          if (!checkOption(s, true_false)) {
+            System.out.println(propertiesFile + " bad value for 'compression': '" + s + "' -> using 'false'");
+            s = new String("false");
+          }
+          System.out.println(propertiesFile + " compression: " + compression + " -> " + s);
+          compression = Boolean.parseBoolean(s);
+        }
+
+        if ((s = properties.getProperty("compressionLevel")) != null) {
+            System.out.println(propertiesFile + " compressionLevel: " + compressionLevel + " -> " + s);
+            compressionLevel = Integer.parseInt(s);
+        }
+
+        if ((s = properties.getProperty("uncompressedTypes")) != null) {
+            System.out.println(propertiesFile + " uncompressedTypes: " + uncompressedTypes + " -> " + s);
+            uncompressedTypes = new String(s);
+        }
+
         p.close();
       }
 
-      log = new LogFileWriter(logFile);
+      log = new LogFileWriter(logFile, logBufferSize, logFlushInterval, logMaxFileSize, logMaxFiles, logFull.equals("block"));
       log.writeLog("-* logFile=" + logFile, true);
       log.writeLog("-* id=" + id, true);
       log.writeLog("-* rootDir=" + rootDir, true);
@@ -244,8 +486,44 @@ public class Configuration
       log.writeLog("-* sleepTime=" + sleepTime, true);
       log.writeLog("-* maximumMessageSize=" + maximumMessageSize, true);
       log.writeLog("-* maximumAdvertisementPeriod=" + maximumAdvertisementPeriod, true);
+      log.writeLog("-* advertIntervalMin=" + advertIntervalMin, true);
+      log.writeLog("-* advertIntervalMax=" + advertIntervalMax, true);
+      log.writeLog("-* advertRedundancy=" + advertRedundancy, true);
+      log.writeLog("-* searchType=" + searchType, true);
       log.writeLog("-* search=" + search, true);
       log.writeLog("-* download=" + download, true);
+      log.writeLog("-* codec=" + codec, true);
+      log.writeLog("-* endpoint=" + endpoint, true);
+      log.writeLog("-* txRate=" + txRate, true);
+      log.writeLog("-* txBurst=" + txBurst, true);
+      log.writeLog("-* txQueueSize=" + txQueueSize, true);
+      log.writeLog("-* searchCacheSize=" + searchCacheSize, true);
+      log.writeLog("-* duplicateCacheSize=" + duplicateCacheSize, true);
+      log.writeLog("-* duplicateWindow=" + duplicateWindow, true);
+      log.writeLog("-* logBufferSize=" + logBufferSize, true);
+      log.writeLog("-* logFlushInterval=" + logFlushInterval, true);
+      log.writeLog("-* logMaxFileSize=" + logMaxFileSize, true);
+      log.writeLog("-* logMaxFiles=" + logMaxFiles, true);
+      log.writeLog("-* logFull=" + logFull, true);
+      log.writeLog("-* metricsInterval=" + metricsInterval, true);
+      log.writeLog("-* dispatchQueueSize=" + dispatchQueueSize, true);
+      log.writeLog("-* searchRequestThreads=" + searchRequestThreads, true);
+      log.writeLog("-* searchResponseThreads=" + searchResponseThreads, true);
+      log.writeLog("-* downloadRequestThreads=" + downloadRequestThreads, true);
+      log.writeLog("-* downloadResponseThreads=" + downloadResponseThreads, true);
+      log.writeLog("-* transferPort=" + transferPort, true);
+      log.writeLog("-* transferWorkers=" + transferWorkers, true);
+      log.writeLog("-* maxConcurrentUploads=" + maxConcurrentUploads, true);
+      log.writeLog("-* maxQueuedUploads=" + maxQueuedUploads, true);
+      log.writeLog("-* uploadRetryAfter=" + uploadRetryAfter, true);
+      log.writeLog("-* swarmChunkSize=" + swarmChunkSize, true);
+      log.writeLog("-* checkpointInterval=" + checkpointInterval, true);
+      log.writeLog("-* manifestDir=" + manifestDir, true);
+      log.writeLog("-* manifestChunkSize=" + manifestChunkSize, true);
+      log.writeLog("-* hashRateLimit=" + hashRateLimit, true);
+      log.writeLog("-* compression=" + compression, true);
+      log.writeLog("-* compressionLevel=" + compressionLevel, true);
+      log.writeLog("-* uncompressedTypes=" + uncompressedTypes, true);
     }
 
     catch (UnknownHostException e) {
@@ -0,0 +1,189 @@
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * On-disk record of which chunks of a ".part" file have been received, so that an interrupted
+ * download (failed transfer, socket timeout or process restart) carries on where it left off.
+ *
+ * The record is kept next to the ".part" file (name.part.ckpt) and holds the file size, the
+ * chunk size, the root hash of the file's ChunkManifest (if any) and a bitmap of completed
+ * chunks. A chunk is only marked complete once its data has been forced to disk, and the
+ * record itself is written to a temporary file, forced and renamed into place, so after a
+ * crash it never claims more than is really on disk.
+ *
+ * A record for a different file size, chunk size or root hash is ignored, and the download starts over.
+ * Without a manifest there is no root hash to tell that the file being served is still the one
+ * partly received (it may have been rewritten at the same size, or be another node's file of the
+ * same name), so no record is kept and an interrupted download always starts over.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class DownloadCheckpoint {
+    private static final int MAGIC = 0x434B5054; // "CKPT"
+
+    private final Path   checkpointPath;  // the record of completed chunks
+    private final long   fileSize;
+    private final long   chunkSize;
+    private final byte[] rootHash;        // root hash of the file's manifest, empty if none
+    private final int    numChunks;
+    private final BitSet completedChunks;
+
+    /**
+     * Constructor for DownloadCheckpoint, use load() to pick up an existing record.
+     */
+    private DownloadCheckpoint(Path partPath, long fileSize, long chunkSize, byte[] rootHash, BitSet completedChunks) {
+        this.checkpointPath  = partPath.resolveSibling(partPath.getFileName() + ".ckpt");
+        this.fileSize        = fileSize;
+        this.chunkSize       = chunkSize;
+        this.rootHash        = rootHash;
+        this.numChunks       = (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+        this.completedChunks = completedChunks;
+    }
+
+    /**
+     * Loads the checkpoint of a ".part" file, or starts a new one if there is no usable record
+     * (none, unreadable, or for a different file size, chunk size or root hash).
+     *
+     * @param partPath  : the ".part" file being downloaded into.
+     * @param fileSize  : size of the file being downloaded.
+     * @param chunkSize : number of bytes covered by each bit of the record.
+     * @param rootHash  : root hash of the file's ChunkManifest, or null if there is none.
+     */
+    public static DownloadCheckpoint load(Path partPath, long fileSize, long chunkSize, byte[] rootHash) {
+        Path checkpointPath = partPath.resolveSibling(partPath.getFileName() + ".ckpt");
+        BitSet completedChunks = new BitSet();
+        rootHash = rootHash == null ? new byte[0] : rootHash;
+
+        if (rootHash.length > 0 && Files.exists(checkpointPath) && Files.exists(partPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointPath)))) {
+                if (in.readInt() == MAGIC && in.readLong() == fileSize && in.readLong() == chunkSize) {
+                    byte[] savedRootHash = new byte[in.readUnsignedShort()];
+                    in.readFully(savedRootHash);
+
+                    if (Arrays.equals(savedRootHash, rootHash)) {
+                        byte[] bits = new byte[in.readInt()];
+                        in.readFully(bits);
+                        completedChunks = BitSet.valueOf(bits);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("DownloadCheckpoint.load() : ignoring unreadable checkpoint -> " + e.getMessage());
+                completedChunks = new BitSet();
+            }
+        }
+
+        return new DownloadCheckpoint(partPath, fileSize, chunkSize, rootHash, completedChunks);
+    }
+
+    /**
+     * Marks a chunk as received and writes the record to disk.
+     * The chunk's data must already have been forced to disk (FileChannel.force()).
+     */
+    public synchronized void complete(int chunk) throws IOException {
+        if (completedChunks.get(chunk)) {
+            return;
+        }
+        completedChunks.set(chunk);
+        if (isResumable()) {
+            save();
+        }
+    }
+
+    /**
+     * Whether the download can be resumed from this record by a later download (there is a root hash).
+     */
+    public boolean isResumable() {
+        return rootHash.length > 0;
+    }
+
+    /**
+     * Whether a chunk has been received.
+     */
+    public synchronized boolean isComplete(int chunk) {
+        return completedChunks.get(chunk);
+    }
+
+    /**
+     * Whether every chunk has been received.
+     */
+    public synchronized boolean isComplete() {
+        return completedChunks.cardinality() >= numChunks;
+    }
+
+    /**
+     * Returns the number of bytes at the start of the file that have been received,
+     * i.e the offset to resume a sequential download from (0 unless resumable).
+     */
+    public synchronized long getResumeOffset() {
+        return Math.min(fileSize, completedChunks.nextClearBit(0) * chunkSize);
+    }
+
+    /**
+     * Returns the number of bytes covered by received chunks.
+     */
+    public synchronized long getBytesCompleted() {
+        long bytes = 0;
+        for (int chunk = completedChunks.nextSetBit(0); chunk >= 0 && chunk < numChunks; chunk = completedChunks.nextSetBit(chunk + 1)) {
+            bytes += Math.min(chunkSize, fileSize - chunk * chunkSize);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of chunks in the file.
+     */
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    /**
+     * Returns the number of bytes covered by each chunk.
+     */
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Removes the record, once the download is complete (or abandoned).
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(checkpointPath);
+        } catch (IOException e) {
+            System.err.println("DownloadCheckpoint.delete() : IOException -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the record to a temporary file, forces it to disk and renames it into place.
+     */
+    private void save() throws IOException {
+        Path tempPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        byte[] bits = completedChunks.toByteArray();
+
+        try (FileOutputStream fos = new FileOutputStream(tempPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeLong(fileSize);
+            out.writeLong(chunkSize);
+            out.writeShort(rootHash.length);
+            out.write(rootHash);
+            out.writeInt(bits.length);
+            out.write(bits);
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        try {
+            Files.move(tempPath, checkpointPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -21,6 +21,7 @@ public class DownloadErrorMessage extends Message {
     private String responseIdentifier;
     private long responseSerialNo;
     private int numMatchingFiles;
+    private long retryAfter = -1;   // ms to wait before retrying if the node was busy, -1 otherwise
 
     /**
      * Constructor to tx download-error message
@@ -38,6 +39,20 @@ public class DownloadErrorMessage extends Message {
         this.numMatchingFiles = numMatchingFiles;
     }
 
+    /**
+     * Creates a tx "busy" download-error message, sent when the file was found (the one
+     * matching file, so numMatchingFiles is 1) but the node has too many uploads in progress to serve it.
+     * 
+     * @param responseIdentifier : identifier of rx download-request 
+     * @param responseSerialNo : the serial number used in corresponding rx download-request
+     * @param retryAfter : ms the requester should wait before retrying
+     */
+    public static DownloadErrorMessage busy(String responseIdentifier, long responseSerialNo, long retryAfter) {
+        DownloadErrorMessage message = new DownloadErrorMessage(responseIdentifier, responseSerialNo, 1);
+        message.retryAfter = retryAfter;
+        return message;
+    }
+
     /**
      * Constructor for rx download-error message 
      * 
@@ -48,13 +63,20 @@ public class DownloadErrorMessage extends Message {
      * @param serialNo : should be same as corresponding tx download-request
      */
     public DownloadErrorMessage(String responseIdentifier, long responseSerialNo, int numMatchingFiles, String timestamp, String identifier, long serialNo) {
-        super(identifier.split("@")[0], identifier.split("@")[1], timestamp, identifier, serialNo);
+        super(usernameOf(identifier), hostnameOf(identifier), timestamp, identifier, serialNo);
 
         this.responseIdentifier = responseIdentifier;
         this.responseSerialNo = responseSerialNo;
         this.numMatchingFiles = numMatchingFiles;
     }
 
+    /**
+     * Setter for retryAfter (rx "busy" download-error).
+     */
+    public void setRetryAfter(long retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
 
     /**
      * Returns the type of message as string 
@@ -88,6 +110,20 @@ public class DownloadErrorMessage extends Message {
         return numMatchingFiles;
     }
 
+    /**
+     * Returns whether the download-error means the node was too busy to serve the file.
+     */
+    public boolean isBusy() {
+        return retryAfter >= 0;
+    }
+
+    /**
+     * Getter for retryAfter (ms), -1 if not a "busy" download-error.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
     /**
      * To string to convert message into protocol string format
      */
@@ -96,6 +132,10 @@ public class DownloadErrorMessage extends Message {
         String header = ":" + getIdentifier() + ":" + responseSerialNo + ":" + getTimestamp();
         String payload = ":download-error:" + responseIdentifier + ":" + responseSerialNo + ":" + numMatchingFiles + ":";
 
+        if (isBusy()) {
+            payload += "busy:" + retryAfter + ":";
+        }
+
         return header + payload;
     }
 }
\ No newline at end of file
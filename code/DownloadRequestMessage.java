@@ -45,7 +45,7 @@ public class DownloadRequestMessage extends Message {
      * @param serialNo : the serial number of the download-request message.
      */
     public DownloadRequestMessage(String fileString, String targetIdentifier, String timestamp, String identifier, long serialNo) {
-        super(identifier.split("@")[0], identifier.split("@")[1], timestamp, identifier, serialNo);
+        super(usernameOf(identifier), hostnameOf(identifier), timestamp, identifier, serialNo);
 
         this.fileString = fileString;
         this.targetIdentifier = targetIdentifier; // should be current machine's identfier
@@ -17,11 +17,14 @@ import java.util.stream.Collectors;
  * In charge of receiving incoming requests, storing them, and then responding to them 
  * with download-response message.
  * 
+ * Requests are queued on a MessageDispatcher and answered by downloadRequestThreads 
+ * consumer threads as soon as they arrive.
+ * 
  * @author : 190015412
  * @since November 2024
  */
 
-public class DownloadRequestReceiver implements Runnable { 
+public class DownloadRequestReceiver { 
     /**
      * ANSI escape codes for colored cmd output
      */
@@ -33,7 +36,7 @@ public class DownloadRequestReceiver implements Runnable {
 
     private MulticastHandler multicastHandler;
     private Configuration configuration;
-    private final BlockingQueue<DownloadRequestMessage> downloadRequests;
+    private final MessageDispatcher<DownloadRequestMessage> downloadRequests;
 
     /**
      * Constructor for DownloadRequestReceiver
@@ -43,26 +46,38 @@ public class DownloadRequestReceiver implements Runnable {
     public DownloadRequestReceiver(MulticastHandler multicastHandler) {
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
-        this.downloadRequests = new LinkedBlockingQueue<>();
+        this.downloadRequests = new MessageDispatcher<>("download-request", configuration.dispatchQueueSize, 
+                                                        configuration.downloadRequestThreads, this::processDownloadRequest);
     }
 
 
     /**
-     * 
+     * Starts answering rx download-request messages.
      */
-    @Override 
-    public void run() {
-        try {
-            processDownloadRequests();
-        } catch (InterruptedException e) {
-            System.out.println("DownloadRequestReceiver.run() : InterruptedException -> " + e.getMessage());
-        }
+    public void start() {
+        downloadRequests.start();
     }
 
+    /**
+     * Stops answering rx download-request messages.
+     */
+    public void stop() {
+        downloadRequests.stop();
+    }
+
+    /**
+     * Returns the dispatcher queueing rx download-request messages.
+     */
+    public MessageDispatcher<DownloadRequestMessage> getDispatcher() {
+        return downloadRequests;
+    }
 
-    public void processDownloadRequests() throws InterruptedException {
-        DownloadRequestMessage msg = downloadRequests.take();
 
+    /**
+     * Answers a download-request with a download-result (registering the file with the 
+     * node's file server) or a download-error.
+     */
+    public void processDownloadRequest(DownloadRequestMessage msg) {
         if (msg != null) {
             String fileString = msg.getFileString();
 
@@ -77,9 +92,9 @@ public class DownloadRequestReceiver implements Runnable {
                 fileString = fileString.substring(1);
             }
 
-            ArrayList<File> matchingFilesAndDirectories = multicastHandler.getMatchingFiles(fileString, false);
+            ArrayList<FileCatalog.Entry> matchingFilesAndDirectories = multicastHandler.getMatchingFiles(fileString, "path");
 
-            List<File> matchingFiles = matchingFilesAndDirectories.stream().filter(File::isFile).collect(Collectors.toList());
+            List<FileCatalog.Entry> matchingFiles = matchingFilesAndDirectories.stream().filter(FileCatalog.Entry::isFile).collect(Collectors.toList());
 
             // If no matching results were found 
             if (matchingFiles == null || matchingFiles.isEmpty()) {
@@ -93,21 +108,23 @@ public class DownloadRequestReceiver implements Runnable {
             } 
             // If only one uniquely matched file
             else {
-                File fileToTransfer = matchingFiles.get(0);
+                FileCatalog.Entry entry = matchingFiles.get(0);
+                File fileToTransfer = entry.getFile();
 
-                FileServer fileServer = new FileServer(configuration, fileToTransfer, hostname);
-
-                /**
-                 * NTS : look into prevention methods of thread explosion
-                 * - Thread pooling + queued processing of requests 
-                 */
-                Thread t = new Thread(fileServer);
-                t.start();
-
-                String rootDir = configuration.rootDir;
+                // Register file with the node's file server, requester identifies the transfer by token
+                FileServer fileServer = multicastHandler.fileServer;
+                long token = fileServer.register(fileToTransfer, hostname);
                 int port = fileServer.getPort();
 
-                DownloadResultMessage response = new DownloadResultMessage(fileString, identifier, serialNo, port);
+                // Too many uploads in progress or queued, tell requester when to try again
+                if (token == 0) {
+                    long retryAfter = fileServer.getUploadScheduler().getRetryAfter();
+                    DownloadErrorMessage response = DownloadErrorMessage.busy(identifier, serialNo, retryAfter);
+                    multicastHandler.txMessage(response);
+                    return;
+                }
+
+                DownloadResultMessage response = new DownloadResultMessage(fileString, identifier, serialNo, port, token, entry.getSize());
                 multicastHandler.txMessage(response);
             }
         }
@@ -117,7 +134,7 @@ public class DownloadRequestReceiver implements Runnable {
      * For adding rx download request messages to data structure.
      */
     public void addDownloadRequest(DownloadRequestMessage downloadRequestMessage) {
-        downloadRequests.add(downloadRequestMessage);
+        downloadRequests.dispatch(downloadRequestMessage);
     }
 }
 
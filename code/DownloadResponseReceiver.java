@@ -6,9 +6,17 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
+ * Task for managing rx download-response messages (download-result and download-error) from 
+ * other nodes in multicast group, starting a FileClient for each download-result, or handing 
+ * responses to a swarm download's requests to that SwarmDownload.
  * 
+ * Responses are queued on a MessageDispatcher and processed on its consumer thread(s) as soon 
+ * as they arrive.
+ * 
+ * @author 190015412
+ * @since November 2024
  */
-public class DownloadResponseReceiver implements Runnable {
+public class DownloadResponseReceiver {
     /**
      * ANSI escape codes for cmd output
      */
@@ -22,7 +30,8 @@ public class DownloadResponseReceiver implements Runnable {
     private MulticastHandler multicastHandler;
     private Configuration configuration;
 
-    private final BlockingQueue<Message> downloadResponses;
+    private final MessageDispatcher<Message> downloadResponses;
+    private final ConcurrentHashMap<Long, SwarmDownload> swarmDownloads; // serial no of download-requests -> swarm download
 
     /**
      * Constructor
@@ -30,18 +39,30 @@ public class DownloadResponseReceiver implements Runnable {
     public DownloadResponseReceiver(MulticastHandler multicastHandler) {
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
-        this.downloadResponses = new LinkedBlockingQueue<>();
+        this.downloadResponses = new MessageDispatcher<>("download-response", configuration.dispatchQueueSize, 
+                                                         configuration.downloadResponseThreads, this::processDownloadResponses);
+        this.swarmDownloads = new ConcurrentHashMap<>();
     }
 
     /**
-     * 
+     * Starts processing rx download-response messages.
      */
-    @Override 
-    public void run() {
-        while (!downloadResponses.isEmpty()) {
-            Message responseMessage = downloadResponses.poll();
-            processDownloadResponses(responseMessage);
-        }
+    public void start() {
+        downloadResponses.start();
+    }
+
+    /**
+     * Stops processing rx download-response messages.
+     */
+    public void stop() {
+        downloadResponses.stop();
+    }
+
+    /**
+     * Returns the dispatcher queueing rx download-response messages.
+     */
+    public MessageDispatcher<Message> getDispatcher() {
+        return downloadResponses;
     }
 
     /**
@@ -49,28 +70,44 @@ public class DownloadResponseReceiver implements Runnable {
      * If response message is error, it prints indication to user in cmd 
      * If response message is a result, it will create a FileClient runnable task to download file(s) from source 
      * of download-response message. 
+     * Responses to a swarm download's requests are handed to that SwarmDownload instead.
      * 
      * @param responseMessage : either a DownloadErrorMessage or DownloadResultMessage
      */
     public void processDownloadResponses(Message responseMessage) {
+        long responseSerialNo = responseMessage.getType().equals("download-result") ? 
+                                ((DownloadResultMessage) responseMessage).getResponseSerialNo() : 
+                                ((DownloadErrorMessage) responseMessage).getResponseSerialNo();
+
+        SwarmDownload swarmDownload = swarmDownloads.get(responseSerialNo);
+        if (swarmDownload != null) {
+            swarmDownload.addResponse(responseMessage);
+            return;
+        }
+
         if (responseMessage.getType().equals("download-result")) {
             DownloadResultMessage downloadResultMessage = (DownloadResultMessage) responseMessage;
 
             String identifier       = downloadResultMessage.getIdentifier();
             String hostname         = downloadResultMessage.getHostname();
             int    serverPort       = downloadResultMessage.getFileTransferPort();
+            long   transferToken    = downloadResultMessage.getTransferToken();
 
             System.out.println(GREEN + "[DOWNLOAD RESULT]" + RESET + " found file @ " + BLUE + identifier + RESET);
             System.out.println("Initiating file transfer...");
 
-            FileClient fileClient = new FileClient(configuration, hostname, serverPort);
+            FileClient fileClient = new FileClient(configuration, hostname, serverPort, transferToken);
             Thread t = new Thread(fileClient);
             t.start();
         } else {
             DownloadErrorMessage downloadErrorMessage = (DownloadErrorMessage) responseMessage;
             int numMatchingFiles = downloadErrorMessage.getNumMatchingFiles();
 
-            if (numMatchingFiles == 0) {
+            if (downloadErrorMessage.isBusy()) {
+                System.out.println(RED + "[DOWNLOAD ERROR]" + RESET + " : Busy @ " + BLUE + responseMessage.getIdentifier() + RESET + 
+                                   ", retry after " + downloadErrorMessage.getRetryAfter() + " ms");
+                return;
+            } else if (numMatchingFiles == 0) {
                 System.out.println(RED + "[DOWNLOAD ERROR]" + RESET + " : No Results @ " + 
                                BLUE + responseMessage.getIdentifier() + RESET);
             } else {
@@ -82,12 +119,26 @@ public class DownloadResponseReceiver implements Runnable {
         }
     }
 
+    /**
+     * Registers a swarm download, to be given the responses to download-requests with the given serial number.
+     */
+    public void addSwarmDownload(long serialNo, SwarmDownload swarmDownload) {
+        swarmDownloads.put(serialNo, swarmDownload);
+    }
+
+    /**
+     * Removes a finished swarm download.
+     */
+    public void removeSwarmDownload(long serialNo) {
+        swarmDownloads.remove(serialNo);
+    }
+
     /**
      * Adds rx download response to queue for processing
      * 
      * @param responseMessage : an rx download response message.
      */
     public void addDownloadResponse(Message responseMessage ) {
-        downloadResponses.add(responseMessage);
+        downloadResponses.dispatch(responseMessage);
     }
 }
\ No newline at end of file
@@ -21,6 +21,8 @@ public class DownloadResultMessage extends Message {
     private String responseIdentifier;  // Identifier of requester 
     private long   responseSerialNo;    // Serial Number of download-request 
     private int    fileTransferPort;    // TCP port to connect to machine containing file 
+    private long   transferToken;       // Token identifying the transfer to the file server
+    private long   fileSize;            // Size of the file in bytes (lets requesters group identical copies)
 
     /**
      * Constructor for tx download-result message 
@@ -29,14 +31,19 @@ public class DownloadResultMessage extends Message {
      * @param responseIdentifier : the identifier of corresponding rx download-request 
      * @param responseSerialNo : the serial number of corresponding rx download-request message
      * @param fileTransferPort : port number on current machine for which remote machine can download file from 
+     * @param transferToken : token the remote machine must send to the file server to receive the file
+     * @param fileSize : size of the file in bytes
      */
-    public DownloadResultMessage(String fileString, String responseIdentifier, long responseSerialNo, int fileTransferPort) {
+    public DownloadResultMessage(String fileString, String responseIdentifier, long responseSerialNo, int fileTransferPort, long transferToken, 
+                                 long fileSize) {
         super();
 
         this.fileString = fileString;
         this.responseIdentifier = responseIdentifier;
         this.responseSerialNo = responseSerialNo;
         this.fileTransferPort = fileTransferPort;
+        this.transferToken = transferToken;
+        this.fileSize = fileSize;
     }
 
     /**
@@ -46,18 +53,22 @@ public class DownloadResultMessage extends Message {
      * @param responseIdentifier : should be identifier of current machine
      * @param responseSerialNo : serial number of original tx download-request 
      * @param fileTransferPort : the port on remote machine for current machine to download file from 
+     * @param transferToken : token to send to the remote file server to receive the file
+     * @param fileSize : size of the file in bytes
      * @param timestamp : time stamp of rx download-message message
      * @param identifier : identifier of remote machine from which we want to download from
      * @param serialNo : the serial number of incoming download-result
      */
     public DownloadResultMessage(String fileString, String responseIdentifier, long responseSerialNo, int fileTransferPort,
-                                 String timestamp, String identifier, long serialNo) {
-        super(identifier.split("@")[0], identifier.split("@")[1], timestamp, identifier, serialNo);
+                                 long transferToken, long fileSize, String timestamp, String identifier, long serialNo) {
+        super(usernameOf(identifier), hostnameOf(identifier), timestamp, identifier, serialNo);
         
         this.fileString = fileString;
         this.responseIdentifier = responseIdentifier;
         this.responseSerialNo = responseSerialNo;
         this.fileTransferPort = fileTransferPort;
+        this.transferToken = transferToken;
+        this.fileSize = fileSize;
     }
 
     /**
@@ -100,13 +111,27 @@ public class DownloadResultMessage extends Message {
         return fileTransferPort;
     }
 
+    /**
+     * Getter for the transferToken
+     */
+    public long getTransferToken() {
+        return transferToken;
+    }
+
+    /**
+     * Getter for the fileSize
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
     /**
      * To string to convert message into protocol string format
      */
     @Override
     public String toString() {
         String header = ":" + getIdentifier() + ":" + getSerialNo() + ":" + getTimestamp();
-        String payload = ":download-result:" + responseIdentifier + ":" + responseSerialNo + ":" + fileString + ":" + fileTransferPort + ":";
+        String payload = ":download-result:" + responseIdentifier + ":" + responseSerialNo + ":" + fileString + ":" + fileTransferPort + ":" + transferToken + ":" + fileSize + ":";
     
         return header + payload;
     }
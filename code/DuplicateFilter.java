@@ -0,0 +1,89 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the (type, identifier, serialNo) of recently received requests, so that a request
+ * delivered more than once (multicast loopback, retransmission, a multi-homed sender) is only
+ * answered once : a repeat would otherwise search the catalog again, or register the file with
+ * the FileServer a second time.
+ *
+ * At most capacity requests are remembered, the longest remembered forgotten first, and each is
+ * forgotten window ms after it was first seen, so a long-running node's memory stays bounded and
+ * a requester re-using a serial number much later is not mistaken for a repeat.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class DuplicateFilter {
+    private int  capacity;  // most requests remembered
+    private long window;    // ms a request is remembered for
+
+    private final LinkedHashMap<String, Long> seen;       // type:identifier:serialNo -> ms first seen, oldest first
+    private final AtomicLong                  suppressed; // repeats dropped
+
+    /**
+     * Constructor for DuplicateFilter.
+     *
+     * @param capacity : most requests remembered.
+     * @param window   : ms a request is remembered for.
+     */
+    public DuplicateFilter(int capacity, long window) {
+        this.capacity   = Math.max(1, capacity);
+        this.window     = window;
+        this.seen       = new LinkedHashMap<>();
+        this.suppressed = new AtomicLong();
+    }
+
+    /**
+     * Records a received message, returning whether the same message was received within the window.
+     */
+    public boolean isDuplicate(Message message) {
+        String key = message.getType() + ":" + message.getIdentifier() + ":" + message.getSerialNo();
+        long now = System.currentTimeMillis();
+
+        synchronized (seen) {
+            removeExpired(now);
+
+            if (seen.containsKey(key)) {
+                suppressed.incrementAndGet();
+                return true;
+            }
+
+            seen.put(key, now);
+            if (seen.size() > capacity) {
+                Iterator<String> eldest = seen.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of repeated messages dropped.
+     */
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * Returns the number of messages remembered.
+     */
+    public int size() {
+        synchronized (seen) {
+            return seen.size();
+        }
+    }
+
+    /**
+     * Forgets messages first seen more than window ms ago, which are at the start of the map.
+     */
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<String, Long>> entries = seen.entrySet().iterator();
+        while (entries.hasNext() && now - entries.next().getValue() > window) {
+            entries.remove();
+        }
+    }
+}
@@ -0,0 +1,426 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory catalog of every file and sub-directory under the root directory.
+ *
+ * The catalog is built with a single directory walk at startup and then kept up to date
+ * by a WatchService thread, so search-request and download-request lookups never
+ * have to touch the disk.
+ *
+ * Entries are keyed by their logical path-name, which is the root directory name followed
+ * by the path relative to it (e.g root_dir/dir1/text1-1.txt). Searches are answered by a
+ * TrigramIndex over the same entries. Other components can follow changes to the catalog
+ * through a Listener. A rebuild (e.g after the WatchService overflows) walks the tree into a
+ * new map and index, which replace the old ones once complete, so lookups never see a
+ * partly built catalog.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class FileCatalog implements Runnable {
+    private Configuration configuration;
+    private Path          rootPath;         // root directory of exposed filespace
+    private WatchService  watchService;     // notifies catalog of changes under root directory
+
+    private volatile ConcurrentSkipListMap<String, Entry> entries;  // logical path -> entry, replaced by build()
+    private final ConcurrentHashMap<WatchKey, Path> watchedDirectories;
+    private volatile TrigramIndex index;                            // answers searches over entries, replaced by build()
+    private final CopyOnWriteArrayList<Listener> listeners;      // notified of every change
+
+    /**
+     * A single file or directory held in the catalog.
+     */
+    public static class Entry {
+        private final String  logicalPath;   // e.g root_dir/dir1/text1-1.txt
+        private final File    file;          // file object around the entry (not used for lookups)
+        private final boolean directory;     // whether entry is a directory
+        private volatile long size;          // size in bytes (0 for directories)
+        private volatile long lastModified;  // last modified time in ms
+
+        public Entry(String logicalPath, File file, boolean directory, long size, long lastModified) {
+            this.logicalPath  = logicalPath;
+            this.file         = file;
+            this.directory    = directory;
+            this.size         = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getLogicalPath() {
+            return logicalPath;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public boolean isFile() {
+            return !directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Notified (on the thread applying the change) whenever the catalog changes.
+     */
+    public interface Listener {
+        /** An entry was added, or its size/modification time changed. */
+        void entryChanged(Entry entry);
+
+        /** An entry was removed. */
+        void entryRemoved(Entry entry);
+
+        /** The whole catalog was replaced by a rebuild, entryChanged() follows for every entry. */
+        void catalogRebuilt();
+    }
+
+    /**
+     * Constructor for FileCatalog.
+     *
+     * @param configuration : configuration of current machine.
+     */
+    public FileCatalog(Configuration configuration) {
+        this.configuration      = configuration;
+        this.rootPath           = Paths.get(configuration.rootDir);
+        this.entries            = new ConcurrentSkipListMap<>();
+        this.watchedDirectories = new ConcurrentHashMap<>();
+        this.index              = new TrigramIndex(configuration.rootDir);
+        this.listeners          = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Registers a listener to be told about changes to the catalog.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Builds the catalog from the root directory and starts the thread watching for changes.
+     */
+    public void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            System.err.println("FileCatalog.start() : IOException -> " + e.getMessage());
+        }
+
+        build();
+
+        if (watchService != null) {
+            Thread t = new Thread(this);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops watching the root directory for changes.
+     */
+    public void stop() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            System.err.println("FileCatalog.stop() : IOException -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * (Re)builds the whole catalog with a single walk of the root directory. The walk fills
+     * a new map and index, and the current ones keep answering lookups until it is done.
+     */
+    public void build() {
+        if (!Files.isDirectory(rootPath)) {
+            System.err.println("FileCatalog.build() : Error - invalid directory path " + rootPath);
+            return;
+        }
+
+        ConcurrentSkipListMap<String, Entry> newEntries = new ConcurrentSkipListMap<>();
+        TrigramIndex newIndex = new TrigramIndex(configuration.rootDir);
+        walkTree(rootPath, (path, attrs) -> {
+            Entry entry = newEntry(path, attrs);
+            newEntries.put(entry.getLogicalPath(), entry);
+            newIndex.add(entry);
+        });
+
+        entries = newEntries;
+        index   = newIndex;
+
+        for (Listener listener : listeners) {
+            listener.catalogRebuilt();
+        }
+        for (Entry entry : newEntries.values()) {
+            notifyChanged(entry);
+        }
+
+        configuration.log.writeLog("FileCatalog built : " + newEntries.size() + " entries under " + configuration.rootDir);
+    }
+
+    /**
+     * Waits for WatchService events and applies them to the catalog.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = watchedDirectories.get(key);
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                WatchEvent.Kind<?> kind = event.kind();
+
+                // Events were lost, so the catalog can no longer be trusted
+                if (kind == StandardWatchEventKinds.OVERFLOW) {
+                    build();
+                    continue;
+                }
+
+                if (directory == null) {
+                    continue;
+                }
+
+                Path child = directory.resolve((Path) event.context());
+
+                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    addTree(child);
+                } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                    removeTree(child);
+                } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                    updateEntry(child);
+                }
+            }
+
+            // Directory no longer accessible (e.g deleted)
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns all entries whose logical path matches the given search string.
+     *
+     * @param searchString : the string to match against.
+     * @param searchType   : one of "path", "path-filename" or "path-filename-substring".
+     * @return ArrayList of matching entries.
+     */
+    public ArrayList<Entry> search(String searchString, String searchType) {
+        return index.search(searchString, searchType);
+    }
+
+    /**
+     * Returns whether an entry's logical path matches the given search string (as search() would).
+     */
+    public boolean matches(Entry entry, String searchString, String searchType) {
+        return index.matches(entry.getLogicalPath(), searchString, searchType);
+    }
+
+    /**
+     * Returns the entry for an exact logical path, or null if there is none.
+     */
+    public Entry getEntry(String logicalPath) {
+        return entries.get(logicalPath);
+    }
+
+    /**
+     * Returns every entry in the catalog (a live, weakly consistent view).
+     */
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Returns the number of files and directories in the catalog.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Converts a path under the root directory into its logical path-name.
+     */
+    private String toLogicalPath(Path path) {
+        String relativePath = rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+        return configuration.rootDir + "/" + relativePath;
+    }
+
+    /**
+     * Walks the tree starting at the given path, adding every entry and
+     * watching every directory found.
+     *
+     * @param start : a file or directory under (or equal to) the root directory.
+     */
+    private void addTree(Path start) {
+        walkTree(start, this::addEntry);
+    }
+
+    /**
+     * Walks the tree starting at the given path, watching every directory found and
+     * passing every file and directory (other than the root directory) to the visitor.
+     *
+     * @param start : a file or directory under (or equal to) the root directory.
+     */
+    private void walkTree(Path start, BiConsumer<Path, BasicFileAttributes> visitor) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    watchDirectory(dir);
+                    if (!dir.equals(rootPath)) {
+                        visitor.accept(dir, attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    visitor.accept(file, attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("FileCatalog.walkTree() : IOException -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds (or replaces) a single entry in the catalog.
+     */
+    private void addEntry(Path path, BasicFileAttributes attrs) {
+        Entry entry = newEntry(path, attrs);
+        entries.put(entry.getLogicalPath(), entry);
+        index.add(entry);
+        notifyChanged(entry);
+    }
+
+    /**
+     * Creates the entry for a file or directory under the root directory.
+     */
+    private Entry newEntry(Path path, BasicFileAttributes attrs) {
+        boolean directory = attrs.isDirectory();
+        long size = directory ? 0 : attrs.size();
+
+        return new Entry(toLogicalPath(path), new File(configuration.rootDir, rootPath.relativize(path).toString()),
+                         directory, size, attrs.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Removes an entry and, if it was a directory, everything beneath it.
+     */
+    private void removeTree(Path path) {
+        String logicalPath = toLogicalPath(path);
+
+        Entry removed = entries.remove(logicalPath);
+        if (removed != null) {
+            index.remove(logicalPath);
+            notifyRemoved(removed);
+        }
+
+        Map<String, Entry> subTree = entries.subMap(logicalPath + "/", true, logicalPath + "/\uffff", true);
+        for (Entry child : subTree.values()) {
+            index.remove(child.getLogicalPath());
+            notifyRemoved(child);
+        }
+        subTree.clear();
+    }
+
+    /**
+     * Refreshes the size and modification time of a modified entry.
+     */
+    private void updateEntry(Path path) {
+        Entry entry = entries.get(toLogicalPath(path));
+
+        if (entry == null) {
+            addTree(path);
+            return;
+        }
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            entry.size = attrs.isDirectory() ? 0 : attrs.size();
+            entry.lastModified = attrs.lastModifiedTime().toMillis();
+            notifyChanged(entry);
+        } catch (IOException e) {
+            // File vanished between the event and the update, a delete event will follow
+        }
+    }
+
+    /**
+     * Tells every listener that an entry was added or changed.
+     */
+    private void notifyChanged(Entry entry) {
+        for (Listener listener : listeners) {
+            listener.entryChanged(entry);
+        }
+    }
+
+    /**
+     * Tells every listener that an entry was removed.
+     */
+    private void notifyRemoved(Entry entry) {
+        for (Listener listener : listeners) {
+            listener.entryRemoved(entry);
+        }
+    }
+
+    /**
+     * Registers a directory with the WatchService.
+     */
+    private void watchDirectory(Path dir) {
+        if (watchService == null) {
+            return;
+        }
+
+        try {
+            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, dir);
+        } catch (IOException e) {
+            System.err.println("FileCatalog.watchDirectory() : IOException -> " + e.getMessage());
+        }
+    }
+}
@@ -1,11 +1,40 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Runnable Task for handling the downloading of files in response to rx 
  * download-result message.
  * 
+ * Data is read from a non-blocking SocketChannel into a large direct buffer and written 
+ * straight to a FileChannel. The file is received into a temporary ".part" file, sized 
+ * up front from the advertised file size, and only renamed to its final name once complete. 
+ * Progress is checkpointed (see DownloadCheckpoint) so an interrupted download can be resumed.
+ * 
+ * When the server has a ChunkManifest for the file, every chunk is checked against its hash as it 
+ * arrives, and chunks that fail the check are fetched again (up to MAX_CHUNK_RETRIES times).
+ * 
+ * Each request names a byte range of the file, and several ranges can be requested one after 
+ * another over the same connection (see requestRange() and receiveRange(), used by SwarmDownload).
+ * 
+ * With compression on, ranges are requested deflate compressed. The server decides per file 
+ * (files that are compressed already are sent as is), and deflated ranges arrive as frames that 
+ * are inflated before being written to disk. The compression ratio and throughput are reported 
+ * once the download completes.
+ * 
  * @author 190015412
  * @since November 2024
  */
@@ -19,29 +48,50 @@ public class FileClient implements Runnable {
     public static final String BLUE = "\033[36;1m";
     public static final String REVERSED = "\u001b[7m";
 
+    public static final int BUFFER_SIZE = 1024 * 1024; // bytes read from socket per write to disk
+    public static final int MAX_CHUNK_RETRIES = 3;      // times a chunk failing verification is fetched again
+
     private int              serverPort;        // The port used by file server to serve files
-    private Socket           clientSocket;      // The socket connected to file server 
+    private long             transferToken;     // Identifies the transfer to the file server
+    private SocketChannel    clientChannel;     // The channel connected to file server 
+    private Selector         selector;          // Used to wait (with timeout) for data on clientChannel
+    private SelectionKey     key;               // Registration of clientChannel with selector
     private String           serverHostname;    // hostname of the server 
     private Configuration    configuration;     // Configuration of current machine
-    private DataInputStream  in;                // input stream from file server
-    private DataOutputStream out;               // not necessary
+    private String           fileName;          // name of file being served, from last response meta-data
+    private long             fileSize;          // total size of file being served, from last response meta-data
+    private byte             encoding;          // encoding of the last range requested (FileServer.ENCODING_*)
+    private boolean          deflated;          // whether any range was received deflated
+    private Inflater         inflater;          // created on the first deflated range
+    private byte[]           frameBytes;        // (compressed) data of the frame being received
+    private byte[]           rawFrame;          // inflated data of the frame being received
+    private long             bytesReceived;     // bytes of file data received
+    private long             bytesOnWire;       // bytes received for that file data, including frame headers
 
 
     /**
      * Constructor
+     * 
+     * @param configuration  : configuration of current machine.
+     * @param serverHostname : hostname of the node serving the file.
+     * @param serverPort     : port of the node's file server.
+     * @param transferToken  : token from the download-result, identifying the transfer.
      */
-    public FileClient(Configuration configuration, String serverHostname, int serverPort) {
+    public FileClient(Configuration configuration, String serverHostname, int serverPort, long transferToken) {
         this.configuration = configuration;
         this.serverHostname = serverHostname;
         this.serverPort = serverPort;
+        this.transferToken = transferToken;
 
         try {
             InetAddress serverAddress = InetAddress.getByName(serverHostname);
-            this.clientSocket = new Socket(serverAddress, serverPort);
-            clientSocket.setSoTimeout(configuration.socketMaxTTL);
+            this.clientChannel = SocketChannel.open();
+            clientChannel.socket().connect(new InetSocketAddress(serverAddress, serverPort), configuration.socketMaxTTL);
 
-            this.in = new DataInputStream(clientSocket.getInputStream());
-            this.out = new DataOutputStream(clientSocket.getOutputStream());
+            // Non-blocking, so that reads can time out through the selector
+            clientChannel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.key = clientChannel.register(selector, SelectionKey.OP_READ);
         } catch (IOException e) {
             System.err.println("FileClient.FileClient() : IOException -> " + e.getMessage());
         }
@@ -53,18 +103,38 @@ public class FileClient implements Runnable {
      */
     @Override
     public void run() {
-        receiveFiles();
+        Metrics.Counter active = configuration.metrics.counter("download.active");
+        active.increment();
+        try {
+            receiveFiles();
+        } finally {
+            active.decrement();
+        }
     }
 
 
     /**
-     * Waits for incoming file data from remote file server.
+     * Requests the whole file from remote file server and waits for incoming file data.
+     * 
+     * Data is received into a ".part" file with a DownloadCheckpoint, forced to disk every chunk 
+     * (of the manifest, or checkpointInterval bytes without one). If the transfer fails and the server
+     * sent a manifest, the ".part" file is kept, and the next download of the same file (same root hash)
+     * resumes from the last checkpoint. Without a manifest the download starts over next time.
      */
     public void receiveFiles() {
+        Path tempPath = null;
+        DownloadCheckpoint checkpoint = null;
+
         try {
-            // Continue waiting as long as there are more files to expect from server
-            String fileName = in.readUTF();
-            long   fileSize = in.readLong();
+            if (selector == null) {
+                return;
+            }
+
+            // Meta-data and manifest only, to find out which file is being served before asking for any data
+            ChunkManifest manifest = requestManifest();
+            if (manifest == null) {
+                System.out.println("No chunk manifest from " + BLUE + serverHostname + RESET + ", file data will not be verified");
+            }
 
             String saveFilePath = configuration.downloadDir + "/" + serverHostname + "/" + fileName;
             File file = new File(saveFilePath);
@@ -75,34 +145,481 @@ public class FileClient implements Runnable {
                 throw new IOException("FileClient.receiveFiles() : Failed to create directory: " + parentDir.getAbsolutePath());
             }
 
-            FileOutputStream fos = new FileOutputStream(file);
+            tempPath = new File(saveFilePath + ".part").toPath();
+            long chunkSize = manifest != null ? manifest.getChunkSize() : Math.max(1, configuration.checkpointInterval);
+            checkpoint = DownloadCheckpoint.load(tempPath, fileSize, chunkSize, manifest != null ? manifest.getRootHash() : null);
+
+            long offset = checkpoint.getResumeOffset();
+            long start = System.nanoTime();
+            MessageDigest digest = manifest != null ? ChunkManifest.newDigest() : null;
+            ArrayList<Integer> badChunks = new ArrayList<>();
+
+            if (offset > 0) {
+                System.out.println("Resuming download of " + REVERSED + "[" + fileName + "]" + RESET + " from byte " + offset + 
+                                   " of " + fileSize);
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // Size the file up front so the file system can lay it out in one go
+                if (fileChannel.size() != fileSize) {
+                    try (RandomAccessFile raf = new RandomAccessFile(tempPath.toFile(), "rw")) {
+                        raf.setLength(fileSize);
+                    }
+                }
+
+                long expectedSize = fileSize;
+                long rangeSize = requestRange(offset, -1);
+                if (fileSize != expectedSize) {
+                    throw new IOException("file changed on " + serverHostname + " during download");
+                }
+
+                // Receive the rest of the file one chunk at a time
+                for (int chunk = (int) (offset / chunkSize); chunk < checkpoint.getNumChunks(); chunk++) {
+                    long position = chunk * chunkSize;
+                    long length = Math.min(chunkSize, fileSize - position);
+
+                    if (receiveRange(fileChannel, position, length, digest) < length) {
+                        break;
+                    }
+
+                    if (manifest != null && !manifest.verify(chunk, digest.digest())) {
+                        configuration.log.writeLog("rx-> chunk " + chunk + " from " + serverHostname + " failed verification");
+                        badChunks.add(chunk);
+                        continue;
+                    }
 
-            byte[] buffer = new byte[2048];
-            long bytesRemaining = fileSize;
-            int bytesRead;
+                    fileChannel.force(false);
+                    checkpoint.complete(chunk);
+                }
 
-            while (bytesRemaining > 0 && 
-                (bytesRead = in.read(buffer,0, (int) Math.min(buffer.length, bytesRemaining))) != -1) {
-                
-                fos.write(buffer,0,bytesRead);
-                bytesRemaining -= bytesRead;
+                // Fetch chunks that failed verification again, rather than the whole file
+                for (int chunk : badChunks) {
+                    long position = chunk * chunkSize;
+                    long length = Math.min(chunkSize, fileSize - position);
+
+                    for (int attempt = 0; attempt < MAX_CHUNK_RETRIES && !checkpoint.isComplete(chunk); attempt++) {
+                        requestRange(position, length);
+                        if (receiveRange(fileChannel, position, length, digest) < length) {
+                            throw new EOFException("connection closed by " + serverHostname);
+                        }
+
+                        if (manifest.verify(chunk, digest.digest())) {
+                            fileChannel.force(false);
+                            checkpoint.complete(chunk);
+                        }
+                    }
+
+                    if (!checkpoint.isComplete(chunk)) {
+                        throw new IOException("chunk " + chunk + " failed verification " + (MAX_CHUNK_RETRIES + 1) + " times");
+                    }
+                }
             }
 
-            if (bytesRemaining <= 0) {
-                System.out.println("Downloaded file " + REVERSED + "[" + fileName + "]" + RESET + " from " + BLUE + serverHostname + RESET);
+            if (checkpoint.isComplete()) {
+                moveIntoPlace(tempPath, file.toPath());
+                checkpoint.delete();
+                tempPath = null;
+
+                long nanos = System.nanoTime() - start;
+                String stats = transferStats(nanos);
+                configuration.metrics.counter("download.bytes").add(fileSize - offset);
+                configuration.metrics.histogram("download.bytes/s").record((long) ((fileSize - offset) / (Math.max(1, nanos) / 1e9)));
+                configuration.log.writeLog("rx-> received " + (fileSize - offset) + " bytes from " + serverHostname + ":" + serverPort + 
+                                           " (" + stats + ")" + (manifest != null ? ", all chunks verified" : ""));
+                System.out.println("Downloaded file " + REVERSED + "[" + fileName + "]" + RESET + " from " + BLUE + serverHostname + RESET + 
+                                   " (" + stats + ")");
             }
             
         } catch (SocketTimeoutException e) {
             System.out.println("FileClient.receiveFiles() : Socket Timed Out for " + BLUE + serverHostname + ":" + serverPort + RESET);
-            return;
         } catch (IOException e) {
             System.err.println("FileClient.receiveFiles() : IOException -> " + e.getMessage());
         } finally {
             try {
-                clientSocket.close();
+                if (tempPath != null && checkpoint != null && checkpoint.isResumable() && checkpoint.getBytesCompleted() > 0) {
+                    // Keep what was received, to be resumed by the next download of the file
+                    System.out.println("Partial download of " + REVERSED + "[" + fileName + "]" + RESET + " kept (" + 
+                                       checkpoint.getBytesCompleted() + " of " + fileSize + " bytes), use " + REVERSED + ":download" + RESET + 
+                                       " again to resume.");
+                } else if (tempPath != null) {
+                    // Never leave a truncated file behind
+                    Files.deleteIfExists(tempPath);
+                    if (checkpoint != null) {
+                        checkpoint.delete();
+                    }
+                }
             } catch (IOException e) {
-                System.err.println("FileServer.handleIncomingRequests() : Failed to close serverSocket -> " + e.getMessage());
+                System.err.println("FileClient.receiveFiles() : Failed to delete " + tempPath + " -> " + e.getMessage());
             }
+            close();
+        }
+    }
+
+    /**
+     * Asks the server for a byte range of the file and reads the meta-data sent before it 
+     * (file name and total size, see getFileName() and getFileSize()).
+     * 
+     * @param offset : first byte of the range.
+     * @param length : number of bytes wanted, or -1 for the rest of the file.
+     * @return number of bytes of file data that follow (the range, cut short at the end of the file).
+     */
+    public long requestRange(long offset, long length) throws IOException {
+        sendRequest(FileServer.OP_RANGE, offset, length);
+
+        long available = Math.max(0, fileSize - offset);
+        return length < 0 ? available : Math.min(length, available);
+    }
+
+    /**
+     * Asks the server for the file's chunk manifest, reading the meta-data sent before it 
+     * (file name and total size, see getFileName() and getFileSize()).
+     * 
+     * @return the manifest, or null if the server has none for the file.
+     */
+    public ChunkManifest requestManifest() throws IOException {
+        sendRequest(FileServer.OP_MANIFEST, 0, 0);
+
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        readFully(lengthBuffer);
+        lengthBuffer.flip();
+        int manifestLength = lengthBuffer.getInt();
+
+        if (manifestLength <= 0) {
+            return null;
+        }
+        if (manifestLength > ChunkManifest.maxLength(fileSize)) {
+            throw new IOException("manifest from " + serverHostname + " too long (" + manifestLength + " bytes)");
+        }
+
+        ByteBuffer manifestBuffer = ByteBuffer.allocate(manifestLength);
+        readFully(manifestBuffer);
+        ChunkManifest manifest = ChunkManifest.read(new DataInputStream(new ByteArrayInputStream(manifestBuffer.array())));
+
+        if (manifest.getFileSize() != fileSize) {
+            throw new IOException("manifest from " + serverHostname + " does not match file size");
+        }
+        return manifest;
+    }
+
+    /**
+     * Sends a request to the server (op, token, offset and length) and reads the file name and size
+     * sent back before the data, and for a range request offering deflate the encoding of the range.
+     */
+    private void sendRequest(byte op, long offset, long length) throws IOException {
+        if (selector == null) {
+            throw new IOException("not connected to " + serverHostname + ":" + serverPort);
+        }
+
+        boolean offerDeflate = op == FileServer.OP_RANGE && configuration.compression;
+        if (offerDeflate) {
+            op |= FileServer.FLAG_DEFLATE;
+        }
+
+        ByteBuffer requestBuffer = ByteBuffer.allocate(FileServer.REQUEST_SIZE);
+        requestBuffer.put(op).putLong(transferToken).putLong(offset).putLong(length);
+        requestBuffer.flip();
+        writeFully(requestBuffer);
+
+        // Read meta-data : file name (as written by writeUTF) then file size, after any QUEUED
+        // sent while the server has no free upload slot (no file name is that long)
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+        while (true) {
+            lengthBuffer.clear();
+            readFully(lengthBuffer);
+            lengthBuffer.flip();
+            if ((lengthBuffer.getShort(0) & 0xFFFF) != FileServer.QUEUED) {
+                break;
+            }
+            configuration.log.writeLog("rx-> queued for an upload slot by " + serverHostname);
+        }
+
+        ByteBuffer nameBuffer = ByteBuffer.allocate(2 + (lengthBuffer.getShort() & 0xFFFF));
+        nameBuffer.putShort(0, lengthBuffer.getShort(0));
+        nameBuffer.position(2);
+        readFully(nameBuffer);
+        fileName = new DataInputStream(new ByteArrayInputStream(nameBuffer.array())).readUTF();
+        fileName = new File(fileName).getName(); // never write outside of the download directory
+
+        ByteBuffer sizeBuffer = ByteBuffer.allocate(8);
+        readFully(sizeBuffer);
+        sizeBuffer.flip();
+        fileSize = sizeBuffer.getLong();
+
+        encoding = FileServer.ENCODING_RAW;
+        if (offerDeflate) {
+            ByteBuffer encodingBuffer = ByteBuffer.allocate(1);
+            readFully(encodingBuffer);
+            encoding = encodingBuffer.get(0);
+            if (encoding != FileServer.ENCODING_RAW && encoding != FileServer.ENCODING_DEFLATE) {
+                throw new IOException("unknown encoding " + encoding + " from " + serverHostname);
+            }
+            deflated |= encoding == FileServer.ENCODING_DEFLATE;
+        }
+    }
+
+    /**
+     * Closes the connection to the server.
+     */
+    public void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (clientChannel != null) {
+                clientChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("FileClient.close() : Failed to close clientChannel -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Getter for the name of the file being served (valid after requestRange()).
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Getter for the total size of the file being served (valid after requestRange()).
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Getter for the number of bytes of file data received so far.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Getter for the number of bytes received from the network for that file data 
+     * (less than getBytesReceived() if ranges were sent compressed).
+     */
+    public long getBytesOnWire() {
+        return bytesOnWire;
+    }
+
+    /**
+     * Whether any range was received deflate compressed.
+     */
+    public boolean isDeflated() {
+        return deflated;
+    }
+
+    /**
+     * Describes the data received so far : throughput, and compression ratio if any range was compressed.
+     * 
+     * @param nanos : time taken to receive it.
+     */
+    public String transferStats(long nanos) {
+        String stats = String.format("%.1f MB/s", bytesReceived / Math.max(1, nanos / 1e9) / (1024 * 1024));
+        if (deflated) {
+            stats += String.format(", %d bytes on the wire, %.2fx compressed", bytesOnWire, (double) bytesReceived / Math.max(1, bytesOnWire));
+        }
+        return stats;
+    }
+
+    /**
+     * Reads the file data of a requested range from the server and writes it into the given 
+     * file channel, starting at the given position.
+     * 
+     * @param fileChannel : channel of (temporary) file to write to, may be shared with other clients.
+     * @param position : position in fileChannel of the first byte of the range.
+     * @param length : number of bytes to receive (as returned by requestRange()).
+     * @return number of bytes received.
+     */
+    public long receiveRange(FileChannel fileChannel, long position, long length) throws IOException {
+        return receiveRange(fileChannel, position, length, null);
+    }
+
+    /**
+     * As receiveRange(), also passing the data through a digest (reset first) so the range can be 
+     * checked against a ChunkManifest.
+     * 
+     * @param digest : digest to update with the data received, or null.
+     */
+    public long receiveRange(FileChannel fileChannel, long position, long length, MessageDigest digest) throws IOException {
+        return receiveRange(fileChannel::write, position, length, digest);
+    }
+
+    /**
+     * As receiveRange(), writing the range into a buffer (from index 0) instead of a file, so that it
+     * can be verified before it is written out (see SwarmDownload).
+     *
+     * @param buffer : buffer of at least length bytes, its position and limit are left as they are.
+     */
+    public long receiveRange(ByteBuffer buffer, long length, MessageDigest digest) throws IOException {
+        return receiveRange((data, position) -> {
+            int n = data.remaining();
+            buffer.put((int) position, data, data.position(), n);
+            data.position(data.limit());
+            return n;
+        }, 0, length, digest);
+    }
+
+    /**
+     * Where the data of a range is written : a file channel or a buffer, at an absolute position.
+     */
+    private interface RangeSink {
+        int write(ByteBuffer data, long position) throws IOException;
+    }
+
+    private long receiveRange(RangeSink sink, long position, long length, MessageDigest digest) throws IOException {
+        if (digest != null) {
+            digest.reset();
+        }
+        if (encoding == FileServer.ENCODING_DEFLATE) {
+            return receiveFrames(sink, position, length, digest);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+        long received = 0;
+
+        while (received < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - received));
+
+            if (read(buffer) == -1) {
+                break;
+            }
+
+            buffer.flip();
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+            while (buffer.hasRemaining()) {
+                received += sink.write(buffer, position + received);
+            }
+        }
+        bytesReceived += received;
+        bytesOnWire += received;
+        return received;
+    }
+
+    /**
+     * Receives a range sent as deflate frames (see FileServer.sendFrames()), inflating each 
+     * frame and writing it to the sink.
+     */
+    private long receiveFrames(RangeSink sink, long position, long length, MessageDigest digest) throws IOException {
+        if (inflater == null) {
+            inflater   = new Inflater();
+            frameBytes = new byte[FileServer.FRAME_SIZE];
+            rawFrame   = new byte[FileServer.FRAME_SIZE];
+        }
+
+        ByteBuffer frameHeader = ByteBuffer.allocate(FileServer.FRAME_HEADER);
+        long received = 0;
+
+        while (received < length) {
+            frameHeader.clear();
+            readFully(frameHeader);
+            int rawLength = frameHeader.getInt(0);
+            int compressedLength = frameHeader.getInt(4);
+
+            if (rawLength <= 0 || rawLength > FileServer.FRAME_SIZE || rawLength > length - received || 
+                compressedLength < 0 || compressedLength > FileServer.FRAME_SIZE) {
+                throw new IOException("invalid frame from " + serverHostname);
+            }
+
+            // Compressed length 0 : data stored as is
+            int dataLength = compressedLength == 0 ? rawLength : compressedLength;
+            readFully(ByteBuffer.wrap(frameBytes, 0, dataLength));
+
+            byte[] data = frameBytes;
+            if (compressedLength > 0) {
+                inflater.reset();
+                inflater.setInput(frameBytes, 0, compressedLength);
+                try {
+                    if (inflater.inflate(rawFrame, 0, rawLength) != rawLength || !inflater.finished()) {
+                        throw new IOException("frame from " + serverHostname + " does not inflate to " + rawLength + " bytes");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("corrupt frame from " + serverHostname + " -> " + e.getMessage());
+                }
+                data = rawFrame;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, rawLength);
+            if (digest != null) {
+                digest.update(buffer.duplicate());
+            }
+            while (buffer.hasRemaining()) {
+                sink.write(buffer, position + received + buffer.position());
+            }
+            received += rawLength;
+            bytesReceived += rawLength;
+            bytesOnWire += FileServer.FRAME_HEADER + dataLength;
+        }
+        return received;
+    }
+
+    /**
+     * Reads at least one byte into the buffer, waiting up to socketMaxTTL ms for data.
+     * 
+     * @return number of bytes read, or -1 at end of stream.
+     */
+    private int read(ByteBuffer buffer) throws IOException {
+        while (true) {
+            int bytesRead = clientChannel.read(buffer);
+            if (bytesRead != 0) {
+                return bytesRead;
+            }
+
+            if (selector.select(configuration.socketMaxTTL) == 0) {
+                throw new SocketTimeoutException();
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * Writes the whole buffer, waiting up to socketMaxTTL ms at a time for room to write.
+     */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (clientChannel.write(buffer) > 0) {
+                continue;
+            }
+
+            key.interestOps(SelectionKey.OP_WRITE);
+            try {
+                if (selector.select(configuration.socketMaxTTL) == 0) {
+                    throw new SocketTimeoutException();
+                }
+                selector.selectedKeys().clear();
+            } finally {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Reads until the buffer is full.
+     */
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (read(buffer) == -1) {
+                throw new EOFException("connection closed by " + serverHostname);
+            }
+        }
+    }
+
+    /**
+     * Renames the completed temporary file to its final name, atomically where supported.
+     */
+    private static void moveIntoPlace(Path tempPath, Path targetPath) throws IOException {
+        try {
+            Files.move(tempPath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
@@ -110,17 +627,18 @@ public class FileClient implements Runnable {
      *  For testing that FileServer will only send file to the client it expects 
      *  to connect (the one that sent the original download-request)
      * 
-     * You must first run "java FileServer" and copy and paste the outputted port as a cmdline argument to this file 
-     * --> java FileClient <server port copied from output of running "java FileServer">
+     * You must first run "java FileServer" and copy and paste the outputted port and token as cmdline arguments to this file 
+     * --> java FileClient <server port> <token> (copied from output of running "java FileServer")
      */
     public static void main(String[] args) {
-        // after running "java FileServer", copy and paste the outputed port as cmd argument for this file
+        // after running "java FileServer", copy and paste the outputed port and token as cmd arguments for this file
         int serverPort = Integer.parseInt(args[0]);
+        long transferToken = Long.parseLong(args[1]);
 
         Configuration configuration = new Configuration("filetreebrowser.properties");
         String fileString = "root_dir/dir1/text1-1.txt";
         String serverHostname = "pc7-033-l.cs.st-andrews.ac.uk";
-        FileClient client = new FileClient(configuration, serverHostname, serverPort);
+        FileClient client = new FileClient(configuration, serverHostname, serverPort, transferToken);
         Thread t = new Thread(client);
         t.start();
     }
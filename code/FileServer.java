@@ -1,10 +1,49 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
 /**
  * Runnable task for handling the serving of files in response to download-request messages.
- * 
+ *
+ * A single FileServer listens on one long-lived TCP port per node (the port advertised in
+ * advertisement messages). Each accepted download-request registers the file to be served
+ * and gets back a token, which is sent to the requester in the download-result message.
+ * The requester connects and sends the token with the byte range it wants, after which
+ * that range is sent. Further ranges of the same file can be requested over the same
+ * connection, which is how a SwarmDownload pulls disjoint chunks from several peers.
+ * A requester can also ask for the file's ChunkManifest (from the ChunkHasher), to verify
+ * the chunks it receives.
+ *
+ * All connections are multiplexed on one selector thread, while the file data is sent by a
+ * small pool of worker threads using FileChannel.transferTo, so the kernel copies it straight
+ * from the page cache to the socket (sendfile) without passing through user space.
+ *
+ * A requester may offer to take a range deflate compressed (FLAG_DEFLATE in the op byte). Unless
+ * the file is of a type that is compressed already (uncompressedTypes) the range is then sent as
+ * independently deflated frames of up to FRAME_SIZE bytes, read through a heap buffer instead of
+ * transferTo. Frames that do not shrink are sent stored (uncompressed), and after a frame that
+ * barely shrinks the next INCOMPRESSIBLE_SKIP frames are stored without trying.
+ *
+ * How many uploads are admitted, queued and sending at once is decided by an UploadScheduler.
+ * A connection waiting in the queue is sent QUEUED every socketMaxTTL / 2 ms, so that the requester
+ * keeps waiting, and is dropped from the queue once the requester has closed it.
+ *
  * @author 190015412
  * @since November 2024
  */
@@ -17,39 +56,262 @@ public class FileServer implements Runnable {
     public static final String GREEN = "\033[32;1m";
     public static final String BLUE = "\033[36;1m";
 
-    private int              port;            // Ephemeral port of server
-    private ServerSocket     serverSocket;    // Ephemeral socket
-    private Configuration    configuration;
-    private String           identifier;
-    private File             fileToTransfer;
-    private String           requestHostname;
+    public static final long CHUNK_SIZE = 8 * 1024 * 1024; // max bytes sent by a worker before yielding
+
+    public static final int  REQUEST_SIZE = 25; // op, token, offset, length
+    public static final byte OP_RANGE     = 0;  // send a byte range of the file
+    public static final byte OP_MANIFEST  = 1;  // send the file's chunk manifest
+    public static final int  OP_MASK      = 0x0F;
+    public static final byte FLAG_DEFLATE = 0x40; // set in the op byte of a range request if the requester accepts deflate
+
+    public static final byte ENCODING_RAW     = 0; // range follows as is
+    public static final byte ENCODING_DEFLATE = 1; // range follows as deflate frames
+    public static final int  FRAME_SIZE       = 256 * 1024; // max file bytes per deflate frame
+    public static final int  FRAME_HEADER     = 8;          // raw length, compressed length (0 if stored)
+    public static final int  INCOMPRESSIBLE_SKIP = 16;      // frames sent stored without trying after one that barely shrinks
+
+    public static final int  QUEUED = 0xFFFF; // sent (2 bytes) in place of the meta-data while waiting for an upload slot
+
+    private int                 port;            // Port of server (advertised)
+    private ServerSocketChannel serverChannel;   // Long-lived server channel
+    private Selector            selector;        // Multiplexes all connections
+    private ExecutorService     workers;         // Sends file data
+    private Configuration       configuration;
+    private String              identifier;
+    private SecureRandom        random;          // Generates transfer tokens
+    private UploadScheduler     uploadScheduler; // Limits concurrent and queued uploads
+    private ChunkHasher         chunkHasher;     // Provides chunk manifests of files
+    private Set<String>         uncompressedTypes; // extensions of files never sent compressed
+    private volatile boolean    stopped;         // set by stop(), ends the selector thread
+    private long                scanInterval;    // ms between checks for expired connections (see removeExpired())
+    private long                lastScan;        // time (ms) of the last check for expired connections
+
+    private final ConcurrentHashMap<Long, Transfer> pendingTransfers; // token -> transfer not yet connected
+    private final ConcurrentLinkedQueue<Connection> writeReady;       // connections to re-arm for OP_WRITE
+    private final ConcurrentLinkedQueue<Connection> readReady;        // connections to re-arm for OP_READ (next range)
+
+    /**
+     * A file registered for download by a particular requester.
+     */
+    private static class Transfer {
+        final File          file;             // file to send
+        final String        requestHostname;  // hostname of requester
+        final InetAddress[] requestAddresses; // addresses allowed to connect for this transfer
+        final long          expiry;           // time (ms) after which the token is no longer valid
+
+        Transfer(File file, String requestHostname, InetAddress[] requestAddresses, long expiry) {
+            this.file             = file;
+            this.requestHostname  = requestHostname;
+            this.requestAddresses = requestAddresses;
+            this.expiry           = expiry;
+        }
+    }
+
+    /**
+     * State of one client connection.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final long          acceptTime;
+        final ByteBuffer    requestBuffer = ByteBuffer.allocate(REQUEST_SIZE);
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        Runnable            begin;          // hands connection to workers once scheduled
+        volatile boolean    started;        // whether the upload scheduler gave it a slot
+        volatile boolean    idle;           // waiting for the client's next range request
+        volatile long       lastActive;     // time (ms) the last range finished, or QUEUED was last sent
+        Transfer            transfer;
+        long                token;
+        FileChannel         fileChannel;
+        ByteBuffer          header;         // meta-data (and manifest) sent before file data, null until built by a worker
+        byte                op;             // operation of the current request
+        byte                encoding = -1;  // encoding of the current range, -1 if the requester did not offer deflate
+        Deflater            deflater;       // created on the first deflated range
+        byte[]              rawFrame;       // file data of the frame being built
+        byte[]              frameBytes;     // frame header and (compressed) data
+        ByteBuffer          frame;          // frame being sent, null if none
+        int                 framesToStore;  // frames left to send stored without trying to deflate them
+        long                bytesOnWire;    // bytes of the current range sent, including frame headers
+        long                rangeStartNanos;
+        long                position;       // next byte of the file to send
+        long                rangeEnd;       // end (exclusive) of the range being sent
+        long                rangeStart;
+        long                fileSize;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.acceptTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Constructor for FileServer runnable task, hashing only the files whose manifest is asked for.
+     *
+     * @param configuration   : configuration of current machine.
+     */
+    public FileServer(Configuration configuration) {
+        this(configuration, onDemandHasher(configuration));
+    }
+
+    /**
+     * Returns a started ChunkHasher that is not following a catalog.
+     */
+    private static ChunkHasher onDemandHasher(Configuration configuration) {
+        ChunkHasher chunkHasher = new ChunkHasher(configuration);
+        chunkHasher.start();
+        return chunkHasher;
+    }
 
     /**
      * Constructor for FileServer runnable task.
-     * 
+     *
      * @param configuration   : configuration of current machine.
+     * @param chunkHasher     : provides the chunk manifests of files being served.
      */
-    public FileServer(Configuration configuration, File fileToTransfer, String requestHostname) {
-        this.configuration   = configuration;
-        this.fileToTransfer  = fileToTransfer;
-        this.identifier      = configuration.identifier;
-        this.requestHostname = requestHostname;
+    public FileServer(Configuration configuration, ChunkHasher chunkHasher) {
+        this.configuration    = configuration;
+        this.chunkHasher      = chunkHasher;
+        this.identifier       = configuration.identifier;
+        this.random           = new SecureRandom();
+        this.pendingTransfers = new ConcurrentHashMap<>();
+        this.writeReady       = new ConcurrentLinkedQueue<>();
+        this.readReady        = new ConcurrentLinkedQueue<>();
+        this.uploadScheduler  = new UploadScheduler(configuration);
+        this.scanInterval     = Math.max(1, Math.min(1000, configuration.socketMaxTTL / 4)); // QUEUED well within socketMaxTTL
+        this.uncompressedTypes = new HashSet<>();
+        for (String type : configuration.uncompressedTypes.split(",")) {
+            uncompressedTypes.add(type.trim().toLowerCase());
+        }
+        this.workers          = Executors.newFixedThreadPool(Math.max(1, configuration.transferWorkers), runnable -> {
+            Thread t = new Thread(runnable);
+            t.setDaemon(true);
+            return t;
+        });
+
         try {
-            // obtain ephemeral socket
-            this.serverSocket = new ServerSocket(0);
-            serverSocket.setSoTimeout(configuration.socketMaxTTL); // set a timeout of 10 seconds in case client has issues
-            this.port = serverSocket.getLocalPort(); 
+            this.serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(configuration.transferPort));
+            serverChannel.configureBlocking(false);
+            this.port = serverChannel.socket().getLocalPort();
+
+            this.selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             System.err.println("FileServer.FileServer() : IOException -> " + e.getMessage());
         }
     }
 
     /**
-     * 
+     * Starts the selector thread.
+     */
+    public void start() {
+        Thread t = new Thread(this);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Selector loop : accepts connections, reads range requests and hands writable connections to workers.
      */
     @Override
     public void run() {
-        handleIncomingRequests();            
+        if (selector == null) {
+            return;
+        }
+
+        while (!stopped && selector.isOpen()) {
+            try {
+                selector.select(scanInterval);
+
+                // Connections whose worker finished a chunk and want to send more
+                Connection ready;
+                while ((ready = writeReady.poll()) != null) {
+                    rearm(ready, SelectionKey.OP_WRITE);
+                }
+
+                // Connections that finished a range and wait for the next request
+                while ((ready = readReady.poll()) != null) {
+                    rearm(ready, SelectionKey.OP_READ);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    // A connection closed by a worker (cancelled key), or a worker pool shut down by stop(),
+                    // only ends that connection
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            readRequest(key);
+                        } else if (key.isWritable()) {
+                            // Hand over to a worker, selector ignores the connection until it is re-armed
+                            key.interestOps(0);
+                            Connection connection = (Connection) key.attachment();
+                            workers.submit(() -> sendChunk(connection));
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("FileServer.run() : " + e.getClass().getSimpleName() + " -> " + e.getMessage());
+                        if (key.attachment() instanceof Connection) {
+                            close((Connection) key.attachment());
+                        }
+                    }
+                }
+
+                // Not on every wakeup : workers re-arm a connection for every chunk sent
+                long now = System.currentTimeMillis();
+                if (now - lastScan >= scanInterval) {
+                    lastScan = now;
+                    removeExpired(now);
+                }
+            } catch (IOException e) {
+                System.err.println("FileServer.run() : IOException -> " + e.getMessage());
+            } catch (RuntimeException e) {
+                System.err.println("FileServer.run() : " + e.getClass().getSimpleName() + " -> " + e.getMessage());
+            }
+        }
+
+        // Stopped : close every connection, and the server
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("FileServer.run() : IOException -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the operations the selector waits for on a connection handed back by a worker,
+     * closing the connection if it was closed in the meantime.
+     */
+    private void rearm(Connection connection, int ops) {
+        SelectionKey key = connection.channel.keyFor(selector);
+        try {
+            if (key != null && key.isValid()) {
+                key.interestOps(ops);
+            }
+        } catch (CancelledKeyException e) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Stops the server : the selector thread closes every connection and the server channel,
+     * and transfers in progress are abandoned.
+     */
+    public void stop() {
+        stopped = true;
+        workers.shutdownNow();
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
 
     /**
@@ -60,63 +322,474 @@ public class FileServer implements Runnable {
     }
 
     /**
-     * Waits for client to initiate download, then upon initiation begins sending the file.
+     * Getter method for the upload scheduler (active upload and queue depth counts).
      */
-    public void handleIncomingRequests() {
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    /**
+     * Registers a file to be served to the given requester, if the upload scheduler admits it.
+     *
+     * @param fileToTransfer  : the file to serve.
+     * @param requestHostname : hostname of the node that sent the download-request.
+     * @return token the requester must send after connecting, or 0 if too busy to serve the file.
+     */
+    public long register(File fileToTransfer, String requestHostname) {
+        if (!uploadScheduler.admit()) {
+            return 0;
+        }
+
+        InetAddress[] requestAddresses;
         try {
-            boolean done = false;
-            while (!done) {
-                Socket clientSocket = serverSocket.accept();
-                // Get client's IP address and port
-                String clientAddress = clientSocket.getInetAddress().getHostName();
-                int clientPort = clientSocket.getPort();
+            requestAddresses = InetAddress.getAllByName(requestHostname);
+        } catch (UnknownHostException e) {
+            System.err.println("FileServer.register() : unknown hostname -> " + requestHostname);
+            requestAddresses = new InetAddress[0];
+        }
+
+        long token;
+        Transfer transfer = new Transfer(fileToTransfer, requestHostname, requestAddresses,
+                                         System.currentTimeMillis() + configuration.socketMaxTTL);
+        do {
+            token = random.nextLong();
+        } while (token == 0 || pendingTransfers.putIfAbsent(token, transfer) != null);
+
+        return token;
+    }
+
+    /**
+     * Accepts a new connection and waits for it to send its token and first range.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
 
-                if (requestHostname.equals(clientAddress)) {
-                    DataOutputStream fileOut = new DataOutputStream(clientSocket.getOutputStream());
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
 
-                    int bytesRead = sendFile(fileOut, fileToTransfer);
+    /**
+     * Reads a request sent by a client : op (1 byte) then token, offset and length (8 bytes each,
+     * a negative length meaning "to the end of the file"). The first request on a connection
+     * claims the registered transfer and waits for an upload slot, later requests (same token)
+     * are sent straight away.
+     */
+    private void readRequest(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
 
-                    configuration.log.writeLog("tx-> " + identifier + " sent " + bytesRead + " bytes to " + clientAddress+":"+clientPort);
-                    done = true;
+        try {
+            if (connection.channel.read(connection.requestBuffer) == -1) {
+                close(connection);
+                return;
+            }
+            if (connection.requestBuffer.hasRemaining()) {
+                return;
+            }
+
+            connection.requestBuffer.flip();
+            byte op     = connection.requestBuffer.get();
+            long token  = connection.requestBuffer.getLong();
+            long offset = connection.requestBuffer.getLong();
+            long length = connection.requestBuffer.getLong();
+            connection.requestBuffer.clear();
+
+            // Next range of a transfer already in progress on this connection
+            if (connection.transfer != null) {
+                if (token != connection.token || !setRequest(connection, op, offset, length)) {
+                    close(connection);
+                    return;
                 }
+                connection.idle = false;
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
             }
-        } catch (SocketTimeoutException e) {
-            System.err.println("FileServer.handleIncomingRequests() : Socket Timed out");
-            return;
-        } catch (IOException e) {
-            System.err.println("FileServer.handleIncomingRequests() : IOException -> " + e.getMessage());
-        } finally {
+
+            Transfer transfer = pendingTransfers.get(token);
+
+            // Unknown token, or token being used by a host other than the requester (the token is
+            // multicast in the download-result, the transfer stays registered for the requester)
+            InetAddress clientAddress = ((InetSocketAddress) connection.channel.getRemoteAddress()).getAddress();
+            if (transfer == null || !Arrays.asList(transfer.requestAddresses).contains(clientAddress) ||
+                !pendingTransfers.remove(token, transfer)) {
+                configuration.log.writeLog("FileServer rejected connection from " + clientAddress.getHostAddress());
+                close(connection);
+                return;
+            }
+
+            connection.transfer = transfer;
+            connection.token = token;
+            key.interestOps(0);
+
             try {
-                serverSocket.close();
+                connection.fileChannel = FileChannel.open(transfer.file.toPath(), StandardOpenOption.READ);
+                connection.fileSize    = connection.fileChannel.size();
             } catch (IOException e) {
-                System.err.println("FileServer.handleIncomingRequests() : Failed to close serverSocket -> " + e.getMessage());
+                uploadScheduler.cancel();
+                throw e;
+            }
+
+            if (!setRequest(connection, op, offset, length)) {
+                uploadScheduler.cancel();
+                close(connection);
+                return;
             }
+
+            // Starts sending straight away if there is a free slot, otherwise once one frees up
+            connection.begin = () -> {
+                synchronized (connection) {
+                    // Closed while waiting for a slot, hand the slot straight on
+                    if (connection.closed.get()) {
+                        uploadScheduler.finish();
+                        return;
+                    }
+                    connection.started = true;
+                }
+                writeReady.add(connection);
+                selector.wakeup();
+            };
+            connection.lastActive = System.currentTimeMillis();
+            uploadScheduler.start(connection.begin);
+        } catch (IOException e) {
+            System.err.println("FileServer.readRequest() : IOException -> " + e.getMessage());
+            close(connection);
         }
+    }
 
+    /**
+     * Sets what to send next : a range of the file, or the manifest (no file data).
+     * The meta-data sent first is built by the worker (see sendChunk()).
+     *
+     * @return false for an unknown op, or a range that does not start within the file.
+     */
+    private boolean setRequest(Connection connection, byte op, long offset, long length) {
+        boolean acceptsDeflate = (op & FLAG_DEFLATE) != 0;
+        op = (byte) (op & OP_MASK);
+
+        if (op == OP_MANIFEST) {
+            offset = 0;
+            length = 0;
+        } else if (op != OP_RANGE || offset < 0 || offset > connection.fileSize) {
+            configuration.log.writeLog("FileServer invalid request from " + connection.transfer.requestHostname);
+            return false;
+        }
+
+        long available = connection.fileSize - offset;
+        connection.op         = op;
+        connection.rangeStart = offset;
+        connection.position   = offset;
+        connection.rangeEnd   = offset + (length < 0 ? available : Math.min(length, available));
+        connection.header     = null;
+        connection.frame      = null;
+        connection.framesToStore = 0;
+        connection.encoding   = op != OP_RANGE || !acceptsDeflate ? -1 : 
+                                isCompressible(connection.transfer.file) ? ENCODING_DEFLATE : ENCODING_RAW;
+        connection.bytesOnWire     = 0;
+        connection.rangeStartNanos = System.nanoTime();
+        return true;
     }
 
     /**
-     * Function to handle sending the file data to a given DataOutputStream
-     * @param fileOut : DataOutputStream of client connection
-     * @param file : the file to send 
-     * 
-     * @return the amount of bytes sent
+     * Whether a file is worth compressing : compression is on and the file is not of a type
+     * that is compressed already.
      */
-    public int sendFile(DataOutputStream fileOut, File file) {
-        int totalBytesSent = 0;
-        try (FileInputStream fis = new FileInputStream(file)) {
-            // write meta-data
-            fileOut.writeUTF(file.getName());
-            fileOut.writeLong(file.length());
+    private boolean isCompressible(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return configuration.compression && !(dot >= 0 && uncompressedTypes.contains(name.substring(dot + 1).toLowerCase()));
+    }
+
+    /**
+     * Builds the meta-data sent in response to the current request : file name and size, followed
+     * for a manifest request by the length of the manifest (4 bytes, 0 if there is none) and the manifest,
+     * or for a range request offering deflate by the encoding the range is sent with (1 byte).
+     */
+    private ByteBuffer response(Connection connection) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        DataOutputStream responseOut = new DataOutputStream(response);
+        responseOut.writeUTF(connection.transfer.file.getName());
+        responseOut.writeLong(connection.fileSize);
+
+        if (connection.op == OP_MANIFEST) {
+            // Not hashed yet : sent without one rather than hashing the file while the requester waits
+            ChunkManifest manifest = chunkHasher.getManifest(connection.transfer.file);
+            if (manifest == null) {
+                configuration.log.writeLog("FileServer manifest of " + connection.transfer.file + " not ready, sent none");
+            }
+
+            // File changed since it was opened, the requester must not verify against the new contents
+            if (manifest != null && manifest.getFileSize() != connection.fileSize) {
+                manifest = null;
+            }
+
+            byte[] manifestBytes = manifest == null ? new byte[0] : manifest.toBytes();
+            responseOut.writeInt(manifestBytes.length);
+            responseOut.write(manifestBytes);
+        } else if (connection.encoding >= 0) {
+            responseOut.writeByte(connection.encoding);
+        }
+        return ByteBuffer.wrap(response.toByteArray());
+    }
+
+    /**
+     * Sends (up to CHUNK_SIZE bytes of) the next part of the requested range. Runs on a worker thread.
+     */
+    private void sendChunk(Connection connection) {
+        try {
+            if (connection.header == null) {
+                connection.header = response(connection);
+            }
+            if (connection.header.hasRemaining()) {
+                connection.channel.write(connection.header);
+            }
+
+            if (!connection.header.hasRemaining()) {
+                long end = Math.min(connection.rangeEnd, connection.position + CHUNK_SIZE);
+
+                if (connection.encoding == ENCODING_DEFLATE) {
+                    sendFrames(connection, end);
+                } else {
+                    while (connection.position < end) {
+                        long bytesSent = connection.fileChannel.transferTo(connection.position, end - connection.position, connection.channel);
+                        if (bytesSent <= 0) {
+                            if (connection.position >= connection.fileChannel.size()) {
+                                throw new EOFException("file truncated while sending " + connection.transfer.file);
+                            }
+                            break; // socket buffer full, wait to become writable again
+                        }
+                        connection.position += bytesSent;
+                        connection.bytesOnWire += bytesSent;
+                    }
+                }
+            }
+
+            // Range sent, the client closes the connection or asks for another range
+            if (!connection.header.hasRemaining() && connection.position >= connection.rangeEnd && 
+                (connection.frame == null || !connection.frame.hasRemaining())) {
+                String clientAddress = connection.transfer.requestHostname;
+                if (connection.op == OP_MANIFEST) {
+                    configuration.log.writeLog("tx-> " + identifier + " sent manifest of " + connection.transfer.file + " to " + clientAddress);
+                } else {
+                    long rangeSize = connection.rangeEnd - connection.rangeStart;
+                    double seconds = Math.max(1, System.nanoTime() - connection.rangeStartNanos) / 1e9;
+                    configuration.metrics.counter("upload.bytes").add(rangeSize);
+                    configuration.metrics.histogram("upload.bytes/s").record((long) (rangeSize / seconds));
+                    configuration.log.writeLog("tx-> " + identifier + " sent " + rangeSize + " bytes [" + connection.rangeStart + "," + 
+                                               connection.rangeEnd + ") to " + clientAddress + String.format(" (%.1f MB/s", rangeSize / seconds / (1024 * 1024)) + 
+                                               (connection.encoding == ENCODING_DEFLATE ? String.format(", deflate %d bytes on the wire, %.2fx", connection.bytesOnWire, 
+                                                                                                        (double) rangeSize / Math.max(1, connection.bytesOnWire)) : "") + ")");
+                }
+                connection.lastActive = System.currentTimeMillis();
+                connection.idle = true;
+                readReady.add(connection);
+                selector.wakeup();
+                return;
+            }
+
+            writeReady.add(connection);
+            selector.wakeup();
+        } catch (IOException e) {
+            System.err.println("FileServer.sendChunk() : IOException -> " + e.getMessage());
+            close(connection);
+        }
+    }
+
+    /**
+     * Sends deflate frames of the range up to the given end, stopping early if the socket buffer fills.
+     * A frame is its raw length and compressed length (4 bytes each, compressed length 0 meaning the
+     * data is stored uncompressed) followed by the (compressed) data.
+     */
+    private void sendFrames(Connection connection, long end) throws IOException {
+        while (true) {
+            if (connection.frame != null && connection.frame.hasRemaining()) {
+                connection.bytesOnWire += connection.channel.write(connection.frame);
+                if (connection.frame.hasRemaining()) {
+                    return; // socket buffer full, wait to become writable again
+                }
+            }
+            if (connection.position >= end) {
+                return;
+            }
+            nextFrame(connection);
+        }
+    }
+
+    /**
+     * Reads the next (up to FRAME_SIZE) bytes of the range from the file and deflates them into a frame.
+     */
+    private void nextFrame(Connection connection) throws IOException {
+        if (connection.deflater == null) {
+            connection.deflater   = new Deflater(configuration.compressionLevel);
+            connection.rawFrame   = new byte[FRAME_SIZE];
+            connection.frameBytes = new byte[FRAME_HEADER + FRAME_SIZE];
+        }
+
+        int rawLength = (int) Math.min(FRAME_SIZE, connection.rangeEnd - connection.position);
+        ByteBuffer raw = ByteBuffer.wrap(connection.rawFrame, 0, rawLength);
+        while (raw.hasRemaining()) {
+            if (connection.fileChannel.read(raw, connection.position + raw.position()) == -1) {
+                throw new EOFException("file truncated while sending " + connection.transfer.file);
+            }
+        }
+
+        int compressedLength = 0;
+        if (connection.framesToStore > 0) {
+            connection.framesToStore--;
+        } else {
+            Deflater deflater = connection.deflater;
+            deflater.reset();
+            deflater.setInput(connection.rawFrame, 0, rawLength);
+            deflater.finish();
+            compressedLength = deflater.deflate(connection.frameBytes, FRAME_HEADER, FRAME_SIZE);
+            if (!deflater.finished()) {
+                compressedLength = rawLength;
+            }
+
+            // Shrank by less than 10%, likely compressed data, stop spending time on it for a while
+            if (compressedLength > rawLength - rawLength / 10) {
+                connection.framesToStore = INCOMPRESSIBLE_SKIP;
+            }
+        }
 
-            byte[] buffer = new byte[2048];
+        // Did not shrink, send as is
+        if (compressedLength == 0 || compressedLength >= rawLength) {
+            System.arraycopy(connection.rawFrame, 0, connection.frameBytes, FRAME_HEADER, rawLength);
+            compressedLength = 0;
+        }
+
+        ByteBuffer frameHeader = ByteBuffer.wrap(connection.frameBytes, 0, FRAME_HEADER);
+        frameHeader.putInt(rawLength).putInt(compressedLength);
+        connection.frame = ByteBuffer.wrap(connection.frameBytes, 0, FRAME_HEADER + (compressedLength == 0 ? rawLength : compressedLength));
+        connection.position += rawLength;
+    }
+
+    /**
+     * Removes tokens that were never used, connections that never sent a token and
+     * connections left idle between ranges, after socketMaxTTL ms. Connections waiting for
+     * an upload slot are sent QUEUED instead (see keepQueued()).
+     */
+    private void removeExpired(long now) {
+
+        Iterator<Transfer> transfers = pendingTransfers.values().iterator();
+        while (transfers.hasNext()) {
+            if (transfers.next().expiry < now) {
+                transfers.remove();
+                uploadScheduler.cancel();
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection connection = (Connection) attachment;
+                if (connection.transfer == null && now - connection.acceptTime > configuration.socketMaxTTL) {
+                    close(connection);
+                } else if (connection.idle && now - connection.lastActive > configuration.socketMaxTTL) {
+                    close(connection);
+                } else if (connection.begin != null && !connection.started && now - connection.lastActive > configuration.socketMaxTTL / 2) {
+                    keepQueued(connection, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the requester of a connection waiting for an upload slot that it is still queued,
+     * closing the connection (and so leaving the queue) if the requester has gone.
+     * Nothing else is written to the connection until it is given a slot and re-armed by the
+     * selector thread, which also runs this.
+     */
+    private void keepQueued(Connection connection, long now) {
+        ByteBuffer queued = ByteBuffer.allocate(2).putShort(0, (short) QUEUED);
+        try {
+            synchronized (connection) {
+                if (connection.started || connection.closed.get()) {
+                    return;
+                }
+                // Socket buffer holds nothing else, a short write means the requester stopped reading
+                if (connection.channel.write(queued) != 2) {
+                    throw new IOException("requester not reading");
+                }
+            }
+            connection.lastActive = now;
+        } catch (IOException e) {
+            configuration.log.writeLog("FileServer dropped queued upload to " + connection.transfer.requestHostname + " -> " + e.getMessage());
+            close(connection);
+        }
+    }
+
+    /**
+     * Closes a connection and its file, releasing its upload slot (or place in the queue).
+     */
+    private void close(Connection connection) {
+        if (!connection.closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        synchronized (connection) {
+            if (connection.started) {
+                uploadScheduler.finish();
+            } else if (connection.begin != null) {
+                uploadScheduler.remove(connection.begin);
+            }
+        }
+
+        try {
+            if (connection.fileChannel != null) {
+                connection.fileChannel.close();
+            }
+            if (connection.deflater != null) {
+                connection.deflater.end();
+            }
+            connection.channel.close();
+        } catch (IOException e) {
+            System.err.println("FileServer.close() : Failed to close connection -> " + e.getMessage());
+        }
+    }
 
-            int bytesRead; // To keep track of how many bytes of file are left to send 
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                fileOut.write(buffer,0, bytesRead);
-                totalBytesSent += bytesRead;
+    /**
+     * Builds the meta-data sent before file data : name then size,
+     * as DataOutputStream.writeUTF()/writeLong() would write them.
+     */
+    private static ByteBuffer header(String fileName, long fileSize) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeUTF(fileName);
+        headerOut.writeLong(fileSize);
+
+        return ByteBuffer.wrap(header.toByteArray());
+    }
+
+    /**
+     * Function to handle sending the file data to a given (blocking) channel.
+     * Writes the meta-data (name then size), then the file contents with FileChannel.transferTo.
+     *
+     * @param out : channel of client connection
+     * @param file : the file to send
+     *
+     * @return the amount of file bytes sent
+     */
+    public static long sendFile(WritableByteChannel out, File file) {
+        long totalBytesSent = 0;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+
+            // write meta-data
+            ByteBuffer headerBuffer = header(file.getName(), fileSize);
+            while (headerBuffer.hasRemaining()) {
+                out.write(headerBuffer);
+            }
+
+            // transferTo may send less than asked for (e.g at most 2GB per call), so keep going until done
+            while (totalBytesSent < fileSize) {
+                long bytesSent = fileChannel.transferTo(totalBytesSent, fileSize - totalBytesSent, out);
+                if (bytesSent <= 0 && totalBytesSent >= fileChannel.size()) {
+                    break; // file was truncated while sending
+                }
+                totalBytesSent += bytesSent;
             }
-            fileOut.flush();
         } catch (IOException e) {
             System.err.println("FileServer.sendFile() : IOException -> " + e.getMessage());
         }
@@ -124,16 +797,19 @@ public class FileServer implements Runnable {
     }
 
     /**
-     *  For testing that FileServer will only send file to the client it expects 
+     *  For testing that FileServer will only send file to the client it expects
      *  to connect (the one that sent the original download-request)
      */
     public static void main(String[] args) {
         Configuration configuration = new Configuration("filetreebrowser.properties");
         File file = new File("root_dir/dir1/text1-1.txt");
         String requesterHostname = "pc7-007-l.cs.st-andrews.ac.uk";
-        FileServer server = new FileServer(configuration, file, requesterHostname);
-        System.out.println(server.getPort()); // copy and paste into other node when running java FileClient <serverPort>
+        FileServer server = new FileServer(configuration);
         Thread t = new Thread(server);
-        t.start();        
+        t.start();
+
+        long token = server.register(file, requesterHostname);
+        // copy and paste into other node when running java FileClient <serverPort> <token>
+        System.out.println(server.getPort() + " " + token);
     }
-}
\ No newline at end of file
+}
@@ -15,6 +15,8 @@ import java.net.UnknownHostException; // used once network code is added
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public final class FileTreeBrowser {
@@ -23,6 +25,7 @@ public final class FileTreeBrowser {
   final static String quit     = new String(":quit");
   final static String help     = new String(":help");
   final static String services = new String(":services");
+  final static String stats    = new String(":stats");
   final static String up       = new String("..");
   final static String list     = new String(".");
   final static String nodes    = new String(":nodes");
@@ -78,7 +81,7 @@ public final class FileTreeBrowser {
 
     while(!quitBrowser) {
 
-      System.out.print("\n[filename | '" + list + "' | '" + up + "' | '" + services + "' | '" + nodes + "' | '" + search + "' | '" + download + "' | '" + quit + "' | '" + help + "'] ");
+      System.out.print("\n[filename | '" + list + "' | '" + up + "' | '" + services + "' | '" + stats + "' | '" + nodes + "' | '" + search + "' | '" + download + "' | '" + quit + "' | '" + help + "'] ");
 
       // what does the user want to do?
       while((userCmd = ByteReader.readLine(keyboard)) == null) {
@@ -101,7 +104,11 @@ public final class FileTreeBrowser {
 
       // service info
       else
-      if (userCmd.equalsIgnoreCase(services)) { displayServices(); }
+      if (userCmd.equalsIgnoreCase(services)) { displayServices(multicastHandler); }
+
+      // runtime metrics
+      else
+      if (userCmd.equalsIgnoreCase(stats)) { System.out.print(configuration.metrics.getStatsString()); }
 
       // list files
       else
@@ -198,9 +205,10 @@ public final class FileTreeBrowser {
       "\t..\t\tTo move up a directory level.",
       "\tfilename\tTo list file details (if it is a file) or to",
       "\t\t\tmove into that directory (if it is a directory name).",
-      "\t:services\tTo list the services offered.",
+      "\t:services\tTo list the services offered (and uploads in progress).",
+      "\t:stats\t\tTo list the runtime metrics (also in logs/<id>.metrics, and through JMX).",
       "\t:nodes\t\tTo list the other nodes discovered.",
-      "\t:download\tTo download a file.",
+      "\t:download\tTo download a file (target '*' downloads from every node with the file).",
       "\t:quit\t\tTo quit the program.",
       "\t:help\t\tTo print this message."
     };
@@ -214,7 +222,7 @@ public final class FileTreeBrowser {
   /**
    * Print config information.
    */
-  static void displayServices() {
+  static void displayServices(MulticastHandler multicastHandler) {
 
     String services = ":";
     services += "id=" + configuration.id + ":";
@@ -224,6 +232,17 @@ public final class FileTreeBrowser {
     services += ":";
 
     System.out.println(services);
+
+    UploadScheduler uploads = multicastHandler.fileServer.getUploadScheduler();
+    System.out.println("uploads: active=" + uploads.getActiveUploads() + "/" + uploads.getMaxConcurrentUploads() +
+                       ", queued=" + uploads.getQueueDepth() + "/" + uploads.getMaxQueuedUploads());
+    System.out.println("advertisements: " + multicastHandler.advertisementSender.getStatsString());
+    if (multicastHandler.transmitQueue != null) {
+      System.out.println("tx queue: " + multicastHandler.transmitQueue.getStatsString());
+    }
+    System.out.println("search cache: " + multicastHandler.searchCache.getStatsString());
+    System.out.println("duplicate requests suppressed: " + multicastHandler.duplicateFilter.getSuppressed());
+    System.out.println("log: waiting=" + configuration.log.getQueued() + " dropped=" + configuration.log.getDropped());
   }
 
   static void nodes() { // TBC
@@ -252,10 +271,16 @@ public final class FileTreeBrowser {
 
     System.out.println("Searching multicast group for : " + GREEN + searchString + RESET + "...\n");
 
-    multicastHandler.txSearchRequest(searchString);
+    // Results are printed as they arrive, wait until every node has answered or sleepTime has passed
+    SearchHandle search = multicastHandler.txSearchRequest(searchString, configuration.sleepTime);
+    List<SearchHandle.Result> results = search.getFuture().join();
 
-    try { Thread.sleep(configuration.sleepTime); }
-    catch (InterruptedException e) { } // Thread.sleep() - do nothing    
+    String latencies = "";
+    for (Map.Entry<String, Double> latency : search.getLatencies().entrySet()) {
+      latencies += (latencies.isEmpty() ? "" : ", ") + latency.getKey() + String.format(" %.1f ms", latency.getValue());
+    }
+    System.out.println("\n" + results.size() + " results, " + search.getNumAnswered() + "/" + search.getNumPeers() + 
+                       " nodes answered" + (latencies.isEmpty() ? "" : " (" + latencies + ")"));
 
   }
 
@@ -270,10 +295,21 @@ public final class FileTreeBrowser {
       return;
     }
 
-    System.out.print("Please enter target identifier (username@hostname) : ");
+    System.out.print("Please enter target identifier (username@hostname, or * to download from every node with the file) : ");
 
     String targetIdentifier = scanner.nextLine();
 
+    // Swarm download : fetch disjoint parts of the file from every node holding a copy
+    if (targetIdentifier.strip().equals("*")) {
+      System.out.println("Sending out download request for " + REVERSED + fileString + RESET + " to all nodes...\n");
+
+      multicastHandler.txSwarmDownloadRequest(fileString);
+
+      try { Thread.sleep(1500); }
+      catch (InterruptedException e) { } // Thread.sleep() - do nothing
+      return;
+    }
+
     System.out.println("Sending out download request for " + REVERSED + fileString + RESET + " to " + BLUE + targetIdentifier + RESET + "...\n");
 
     multicastHandler.txDownloadRequest(fileString, targetIdentifier);
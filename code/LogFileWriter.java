@@ -1,53 +1,269 @@
 /**
  * LogFileWriter - simple logging to local file.
- 
+
  Saleem Bhatti <saleem@st-andrews.ac.uk>
- Sep 2024, check with java 21 on CS Lab Linux machines. 
+ Sep 2024, check with java 21 on CS Lab Linux machines.
  Oct 2023, code check (sjm).
  Sep 2022, code check.
  Sep 2021, code check.
  Sep 2020, code check.
  Sep 2019, code check.
  Oct 2018, initial version.
- 
+
+ Nov 2024, asynchronous (190015412) : writeLog() only appends the entry to a
+ lock-free ring buffer, and a single writer thread writes entries out in
+ batches, flushing at most every flushInterval ms, so disk latency no longer
+ holds up the threads logging (e.g. the receive thread). The file is rotated
+ (name -> name.1 -> ... -> name.maxFiles) once it reaches maxFileSize bytes.
+ When the ring buffer is full, entries are dropped (and counted), or with
+ block=true the logging thread waits for space.
+
  */
 
 import java.io.File;
 import java.io.FileWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
-public class LogFileWriter {
+public class LogFileWriter implements Runnable {
 
   public FileWriter fw;
-  public SimpleDateFormat sdf;
+  public SimpleDateFormat sdf; // writer thread only
+
+  private String  fileName;
+  private int     flushInterval; // ms between flushes, 0 flushes after every batch
+  private long    maxFileSize;   // bytes, the file is rotated once this size, 0 never rotates
+  private int     maxFiles;      // rotated files kept
+  private boolean block;         // whether a full buffer blocks writeLog(), rather than dropping the entry
+
+  private final AtomicReferenceArray<Entry> ring; // entries waiting to be written, null once taken
+  private final int        mask;                  // ring size - 1, a power of two
+  private final AtomicLong tail;                  // next slot claimed by writeLog()
+  private volatile long    head;                  // next slot written out, writer thread only
+  private final AtomicLong dropped;               // entries dropped as the buffer was full
+  private final SimpleDateFormat stdoutSdf;       // for entries also printed, guarded by itself
+  private final Thread     writer;
+  private volatile boolean closed;
+  private long             fileSize;              // bytes, writer thread only
+  private long             second = -1;           // ms, start of the second secondPrefix is for, writer thread only
+  private String           secondPrefix;          // "yyyyMMdd-HHmmss." for second, writer thread only
+
+  private static final int BATCH_SIZE = 256; // most entries written per write()
+  private static final int IDLE_WAIT  = 100; // ms, longest the writer waits for entries
+
+  private static final class Entry {
+    final long   time;
+    final String text;
+
+    Entry(long time, String text) {
+      this.time = time;
+      this.text = text;
+    }
+  }
+
+  public LogFileWriter(String fileName) { this(fileName, 8192, 1000, 16L * 1024 * 1024, 4, false); }
+
+  /**
+   * @param fileName      : file to log to.
+   * @param bufferSize    : entries waiting to be written, rounded up to a power of two.
+   * @param flushInterval : ms between flushes, 0 flushes after every batch.
+   * @param maxFileSize   : bytes, the file is rotated once this size, 0 never rotates.
+   * @param maxFiles      : rotated files kept.
+   * @param block         : whether a full buffer blocks writeLog(), rather than dropping the entry.
+   */
+  public LogFileWriter(String fileName, int bufferSize, int flushInterval, long maxFileSize, int maxFiles, boolean block) {
+    this.fileName      = fileName;
+    this.flushInterval = Math.max(0, flushInterval);
+    this.maxFileSize   = maxFileSize;
+    this.maxFiles      = Math.max(0, maxFiles);
+    this.block         = block;
+
+    int size = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+    this.ring      = new AtomicReferenceArray<>(size);
+    this.mask      = size - 1;
+    this.tail      = new AtomicLong();
+    this.dropped   = new AtomicLong();
+    this.sdf       = new SimpleDateFormat(new String("yyyyMMdd-HHmmss.SSS"));
+    this.stdoutSdf = new SimpleDateFormat(new String("yyyyMMdd-HHmmss.SSS"));
+
+    open();
+
+    writer = new Thread(this, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    // Entries still waiting are written out on exit (e.g. ":quit")
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+  }
+
+  public void writeLog(String logRequest) { writeLog(logRequest, false); }
+
+  public void writeLog(String logRequest, Boolean stdout) {
+    long time = System.currentTimeMillis();
+
+    if (stdout) {
+      String now;
+      synchronized (stdoutSdf) { now = stdoutSdf.format(new Date(time)); }
+      System.out.print(now + "| " + logRequest + "\n");
+    }
+    if (closed) { return; }
+
+    // Claim a slot, unless the buffer is full
+    long slot;
+    while (true) {
+      slot = tail.get();
+      if (slot - head > mask) {
+        if (!block) { dropped.incrementAndGet(); return; }
+        LockSupport.unpark(writer);
+        LockSupport.parkNanos(100000);
+        continue;
+      }
+      if (tail.compareAndSet(slot, slot + 1)) { break; }
+    }
+    ring.lazySet((int) (slot & mask), new Entry(time, logRequest));
+
+    // Wake the writer early once the buffer is half full
+    if (slot - head == (mask + 1) / 2) { LockSupport.unpark(writer); }
+  }
+
+  /**
+   * Writer thread : writes entries out in batches until closed and drained.
+   */
+  @Override
+  public void run() {
+    StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+    long lastFlush = System.currentTimeMillis();
+    boolean unflushed = false;
+
+    while (true) {
+      int n = take(batch);
+      if (n > 0) {
+        write(batch);
+        unflushed = true;
+      }
+
+      long now = System.currentTimeMillis();
+      if (unflushed && now - lastFlush >= flushInterval) {
+        flush();
+        lastFlush = now;
+        unflushed = false;
+      }
+
+      if (n == 0) {
+        if (closed && head == tail.get()) { break; }
+        long wait = unflushed ? Math.min(IDLE_WAIT, flushInterval - (now - lastFlush)) : IDLE_WAIT;
+        LockSupport.parkNanos(Math.max(1, wait) * 1000000L);
+      }
+    }
+    flush();
+  }
 
-  public LogFileWriter(String fileName) {
+  /**
+   * Writes out all entries waiting, and stops the writer thread. Later entries are only printed (if stdout).
+   */
+  public void close() {
+    if (closed) { return; }
+    closed = true;
+    LockSupport.unpark(writer);
+    try { writer.join(5000); }
+    catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    try { if (fw != null) { fw.close(); } }
+    catch (Exception e) { System.err.println("LogFileWriter.close() : " + e.getMessage()); }
+  }
+
+  /** Returns the number of entries dropped as the buffer was full. */
+  public long getDropped() { return dropped.get(); }
+
+  /** Returns the number of entries waiting to be written. */
+  public long getQueued() { return tail.get() - head; }
+
+  private void open() {
     File lf = new File(fileName);
-    sdf = new SimpleDateFormat(new String("yyyyMMdd-HHmmss.SSS"));
 
     try {
-      if (lf.exists()) 
+      if (lf.exists())
           fw = new FileWriter(fileName, true);
       else {
           lf.createNewFile();
           fw = new FileWriter(fileName, true);
       }
+      fileSize = lf.length();
     }
     catch (Exception e) { System.err.println("LogFileWriter.LogFileWriter() : " + e);}
   }
 
-  public void writeLog(String logRequest) { writeLog(logRequest, false); }
+  /**
+   * Moves up to BATCH_SIZE entries from the ring into batch, returning the number moved.
+   */
+  private int take(StringBuilder batch) {
+    int n = 0;
+    long h = head;
+    Entry entry;
+    while (n < BATCH_SIZE && (entry = ring.get((int) (h & mask))) != null) {
+      ring.lazySet((int) (h & mask), null);
+      h++;
+      head = h; // frees the slot for writeLog()
+      appendTimestamp(batch, entry.time);
+      batch.append("| ").append(entry.text).append('\n');
+      n++;
+    }
+    return n;
+  }
 
-  public void writeLog(String logRequest, Boolean stdout) {
+  /**
+   * Appends "yyyyMMdd-HHmmss.SSS", formatting the date only when the second changes.
+   */
+  private void appendTimestamp(StringBuilder batch, long time) {
+    long start = time - Math.floorMod(time, 1000L);
+    if (start != second) {
+      String formatted = sdf.format(new Date(start));
+      secondPrefix = formatted.substring(0, formatted.length() - 3);
+      second = start;
+    }
+
+    int ms = (int) (time - start);
+    batch.append(secondPrefix).append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10)).append((char) ('0' + ms % 10));
+  }
+
+  private void write(StringBuilder batch) {
     try {
-      String now = sdf.format(new Date());
-      String logEntry = new String(now.toString() + "| " + logRequest + "\n");
-      fw.write(logEntry, 0, logEntry.length());
-      fw.flush();
-      if (stdout) { System.out.print(logEntry); }
+      if (fw != null) {
+        fw.write(batch.toString());
+        fileSize += batch.length();
+      }
     }
     catch (Exception e) { System.err.println("LogFileWriter.writeLog() : " + e.getMessage()); }
+    batch.setLength(0);
+
+    if (maxFileSize > 0 && fileSize >= maxFileSize) { rotate(); }
+  }
+
+  private void flush() {
+    try { if (fw != null) { fw.flush(); } }
+    catch (Exception e) { System.err.println("LogFileWriter.flush() : " + e.getMessage()); }
+  }
+
+  /**
+   * Renames name.(maxFiles - 1) -> name.maxFiles, ..., name -> name.1, then starts a new file.
+   */
+  private void rotate() {
+    try {
+      fw.close();
+
+      new File(fileName + "." + maxFiles).delete();
+      for (int i = maxFiles - 1; i >= 1; i--) {
+        File f = new File(fileName + "." + i);
+        if (f.exists()) { f.renameTo(new File(fileName + "." + (i + 1))); }
+      }
+      if (maxFiles > 0) { new File(fileName).renameTo(new File(fileName + ".1")); }
+      else { new File(fileName).delete(); }
+    }
+    catch (Exception e) { System.err.println("LogFileWriter.rotate() : " + e.getMessage()); }
+
+    open();
   }
 
 }
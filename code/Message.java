@@ -31,20 +31,16 @@ public abstract class Message {
     private String identifier;              // The identifier of message (e.g FQDN)
 
     /**
-     * Constructor for tx Message Object.
+     * Constructor for tx Message Object, header from the default MessageFactory.
      */
     public Message() {
-        try {
-            this.username = System.getProperty("user.name");
-            this.hostname = InetAddress.getLocalHost().getCanonicalHostName();
-            this.identifier = this.username + "@" + this.hostname;
-        } catch (UnknownHostException e) {
-            System.out.println("Message() : unknown hostname: " + e.getMessage());
-        }
+        MessageFactory factory = MessageFactory.getDefault();
 
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS");
-        this.timestamp = simpleDateFormat.format(new Date());
-        this.serialNo = System.currentTimeMillis();
+        this.username = factory.getUsername();
+        this.hostname = factory.getHostname();
+        this.identifier = factory.getIdentifier();
+        this.timestamp = factory.timestamp();
+        this.serialNo = factory.nextSerialNo();
     }
 
     /**
@@ -64,6 +60,22 @@ public abstract class Message {
     }
 
 
+    /**
+     * Returns the username part of an identifier (username@hostname).
+     */
+    protected static String usernameOf(String identifier) {
+        int at = identifier.indexOf('@');
+        return at < 0 ? identifier : identifier.substring(0, at);
+    }
+
+    /**
+     * Returns the hostname part of an identifier (username@hostname).
+     */
+    protected static String hostnameOf(String identifier) {
+        int at = identifier.indexOf('@');
+        return at < 0 ? "" : identifier.substring(at + 1);
+    }
+
     /**
      * Converts a time stamp string in format of "yyyyMMdd-HHmmss.SSS" to Date object
      * @param timestamp : the timestamp in string format
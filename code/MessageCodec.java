@@ -0,0 +1,509 @@
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes and decodes control-plane messages in either of the two wire formats :
+ *
+ *   ascii  : the text protocol of protocol_specification.txt, ":identifier:serialNo:timestamp:type:...:"
+ *   binary : a versioned binary form of the same seven messages, read and written straight from a
+ *            (reused) ByteBuffer, without building the message text or splitting it into Strings
+ *
+ * Binary messages start with MAGIC, which can never start an ascii message (always ':'), so a
+ * received datagram is decoded in whichever format it is in. Nodes list "codec=binary" in the
+ * services of their advertisements, and binary is only sent once every known node supports it
+ * (see MulticastHandler.txMessage()). Advertisements themselves are always sent as ascii.
+ *
+ * Binary layout (integers big-endian, strings as a 2 byte length then US-ASCII bytes) :
+ *
+ *   MAGIC (1) | VERSION (1) | type (1) | identifier | serialNo (8) | timestamp | payload
+ *
+ *   advertisement    : port (4), services (1 : SERVICE_* bits), interval (4, ms until next advertisement, 0 if not given)
+ *   search-request   : search-string
+ *   search-result    : response-identifier, response-serialNo (8), result-string (type 3, a single result,
+ *                      decoded but no longer sent)
+ *   search-results   : response-identifier, response-serialNo (8), part (4), flags (1 : 0x01 last part),
+ *                      count (2), count x result-string (type 8, sent for every search-result)
+ *   search-error     : response-identifier, response-serialNo (8)
+ *   download-request : target-identifier, file-string
+ *   download-result  : response-identifier, response-serialNo (8), file-string, port (4), token (8), file-size (8)
+ *   download-error   : response-identifier, response-serialNo (8), matching-files (4), retry-after (8, -1 unless busy)
+ *
+ * As with the ascii protocol, messages this node would ignore (responses to other nodes, requests
+ * for services it does not offer) decode to null. For binary messages this is decided by comparing
+ * bytes, before any String is created.
+ *
+ * Received datagrams may be in heap or direct buffers. Bytes are read through one scratch array,
+ * so decode() must only be called from one thread at a time.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class MessageCodec {
+    public static final byte MAGIC   = (byte) 0xB7; // first byte of every binary message
+    public static final byte VERSION = 1;
+
+    public static final byte ADVERTISEMENT    = 1;
+    public static final byte SEARCH_REQUEST   = 2;
+    public static final byte SEARCH_RESULT    = 3;
+    public static final byte SEARCH_ERROR     = 4;
+    public static final byte DOWNLOAD_REQUEST = 5;
+    public static final byte DOWNLOAD_RESULT  = 6;
+    public static final byte DOWNLOAD_ERROR   = 7;
+    public static final byte SEARCH_RESULTS   = 8;
+
+    public static final int LAST_PART = 0x01; // search-results flags
+
+    public static final int SERVICE_SEARCH   = 0x01;
+    public static final int SERVICE_DOWNLOAD = 0x02;
+    public static final int SERVICE_BINARY   = 0x04;
+
+    private Configuration configuration;
+    private byte[]        localIdentifier; // identifier of this node, to match against without decoding
+    private byte[]        scratch;         // bytes of the string being decoded, grown as needed
+    private Metrics.Histogram parseTime;   // ns in parseMessageString()
+
+    /**
+     * Constructor for MessageCodec.
+     *
+     * @param configuration : configuration of current machine.
+     */
+    public MessageCodec(Configuration configuration) {
+        this.configuration   = configuration;
+        this.localIdentifier = configuration.identifier.getBytes(StandardCharsets.US_ASCII);
+        this.scratch         = new byte[configuration.maximumMessageSize];
+        this.parseTime       = configuration.metrics.histogram("codec.parse.ns");
+    }
+
+    /**
+     * Whether a received datagram is a binary message.
+     */
+    public static boolean isBinary(ByteBuffer buffer) {
+        return buffer.remaining() > 0 && buffer.get(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Decodes a received datagram (position to limit of the buffer), in whichever format it is in.
+     *
+     * @return the message, or null if it is malformed or not for this node.
+     */
+    public Message decode(ByteBuffer buffer) {
+        if (isBinary(buffer)) {
+            return decodeBinary(buffer);
+        }
+
+        int length = buffer.remaining();
+        String messageString = new String(getBytes(buffer, length), 0, length, StandardCharsets.US_ASCII).trim();
+        return parseMessageString(messageString);
+    }
+
+    /**
+     * Encodes a message in binary into the buffer, from its position.
+     *
+     * @throws BufferOverflowException if the message does not fit.
+     */
+    public void encode(Message message, ByteBuffer buffer) {
+        buffer.put(MAGIC).put(VERSION);
+
+        if (message instanceof AdvertisementMessage) {
+            AdvertisementMessage m = (AdvertisementMessage) message;
+            putHeader(buffer, ADVERTISEMENT, m);
+            buffer.putInt(m.getServerPort());
+            buffer.put((byte) ((m.isSearchPossible() ? SERVICE_SEARCH : 0) | (m.isDownloadPossible() ? SERVICE_DOWNLOAD : 0) |
+                               (m.isBinaryCodec() ? SERVICE_BINARY : 0)));
+            buffer.putInt((int) Math.min(Integer.MAX_VALUE, m.getInterval()));
+        } else if (message instanceof SearchRequestMessage) {
+            SearchRequestMessage m = (SearchRequestMessage) message;
+            putHeader(buffer, SEARCH_REQUEST, m);
+            putString(buffer, m.getSearchString());
+        } else if (message instanceof SearchResultMessage) {
+            SearchResultMessage m = (SearchResultMessage) message;
+            putHeader(buffer, SEARCH_RESULTS, m);
+            putString(buffer, m.getResponseIdentifier());
+            buffer.putLong(m.getResponseSerialNo());
+            buffer.putInt(m.getPartNo());
+            buffer.put((byte) (m.isLastPart() ? LAST_PART : 0));
+            buffer.putShort((short) m.getSearchResults().size());
+            for (String result : m.getSearchResults()) {
+                putString(buffer, result);
+            }
+        } else if (message instanceof SearchErrorMessage) {
+            SearchErrorMessage m = (SearchErrorMessage) message;
+            putHeader(buffer, SEARCH_ERROR, m);
+            putString(buffer, m.getResponseIdentifier());
+            buffer.putLong(m.getResponseSerialNo());
+        } else if (message instanceof DownloadRequestMessage) {
+            DownloadRequestMessage m = (DownloadRequestMessage) message;
+            putHeader(buffer, DOWNLOAD_REQUEST, m);
+            putString(buffer, m.getTargetIdentifier());
+            putString(buffer, m.getFileString());
+        } else if (message instanceof DownloadResultMessage) {
+            DownloadResultMessage m = (DownloadResultMessage) message;
+            putHeader(buffer, DOWNLOAD_RESULT, m);
+            putString(buffer, m.getResponseIdentifier());
+            buffer.putLong(m.getResponseSerialNo());
+            putString(buffer, m.getFileString());
+            buffer.putInt(m.getFileTransferPort());
+            buffer.putLong(m.getTransferToken());
+            buffer.putLong(m.getFileSize());
+        } else if (message instanceof DownloadErrorMessage) {
+            DownloadErrorMessage m = (DownloadErrorMessage) message;
+            putHeader(buffer, DOWNLOAD_ERROR, m);
+            putString(buffer, m.getResponseIdentifier());
+            buffer.putLong(m.getResponseSerialNo());
+            buffer.putInt(m.getNumMatchingFiles());
+            buffer.putLong(m.getRetryAfter());
+        } else {
+            throw new IllegalArgumentException("no binary encoding for " + message.getType());
+        }
+    }
+
+    /**
+     * Decodes a binary message.
+     *
+     * @return the message, or null if it is malformed, of an unknown version or not for this node.
+     */
+    private Message decodeBinary(ByteBuffer buffer) {
+        try {
+            buffer.get(); // MAGIC
+            if (buffer.get() != VERSION) {
+                return null;
+            }
+
+            byte type = buffer.get();
+            String identifier = getString(buffer);
+            long serialNo = buffer.getLong();
+            String timestamp = getString(buffer);
+
+            if (identifier.indexOf('@') < 0) {
+                return null;
+            }
+
+            switch (type) {
+                case ADVERTISEMENT : {
+                    int port = buffer.getInt();
+                    int services = buffer.get();
+
+                    AdvertisementMessage advertisementMessage = new AdvertisementMessage(port, timestamp, identifier, serialNo);
+                    advertisementMessage.setSearchPossible((services & SERVICE_SEARCH) != 0);
+                    advertisementMessage.setDownloadPossible((services & SERVICE_DOWNLOAD) != 0);
+                    advertisementMessage.setBinaryCodec((services & SERVICE_BINARY) != 0);
+                    if (buffer.remaining() >= 4) {
+                        advertisementMessage.setInterval(buffer.getInt());
+                    }
+                    return advertisementMessage;
+                }
+                case SEARCH_REQUEST :
+                    if (!configuration.search) {
+                        return null;
+                    }
+                    return new SearchRequestMessage(getString(buffer), timestamp, identifier, serialNo);
+
+                case SEARCH_RESULT : {
+                    if (!isLocalIdentifier(buffer)) {
+                        return null;
+                    }
+                    long responseSerialNo = buffer.getLong();
+                    return new SearchResultMessage(getString(buffer), responseSerialNo, configuration.identifier, timestamp, identifier, serialNo);
+                }
+                case SEARCH_RESULTS : {
+                    if (!isLocalIdentifier(buffer)) {
+                        return null;
+                    }
+                    long responseSerialNo = buffer.getLong();
+                    int partNo = buffer.getInt();
+                    boolean lastPart = (buffer.get() & LAST_PART) != 0;
+                    int count = buffer.getShort() & 0xFFFF;
+
+                    ArrayList<String> results = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        results.add(getString(buffer));
+                    }
+                    return new SearchResultMessage(results, partNo, lastPart, responseSerialNo, configuration.identifier, timestamp, identifier, serialNo);
+                }
+                case SEARCH_ERROR :
+                    if (!isLocalIdentifier(buffer)) {
+                        return null;
+                    }
+                    return new SearchErrorMessage(configuration.identifier, buffer.getLong(), timestamp, identifier, serialNo);
+
+                case DOWNLOAD_REQUEST :
+                    if (!isLocalIdentifier(buffer) || !configuration.download) {
+                        return null;
+                    }
+                    return new DownloadRequestMessage(getString(buffer), configuration.identifier, timestamp, identifier, serialNo);
+
+                case DOWNLOAD_RESULT : {
+                    if (!isLocalIdentifier(buffer)) {
+                        return null;
+                    }
+                    long responseSerialNo = buffer.getLong();
+                    String fileString = getString(buffer);
+                    int fileTransferPort = buffer.getInt();
+                    long transferToken = buffer.getLong();
+                    long fileSize = buffer.getLong();
+                    return new DownloadResultMessage(fileString, configuration.identifier, responseSerialNo, fileTransferPort,
+                                                     transferToken, fileSize, timestamp, identifier, serialNo);
+                }
+                case DOWNLOAD_ERROR : {
+                    if (!isLocalIdentifier(buffer)) {
+                        return null;
+                    }
+                    long responseSerialNo = buffer.getLong();
+                    int numMatchingFiles = buffer.getInt();
+                    long retryAfter = buffer.getLong();
+
+                    DownloadErrorMessage downloadErrorMessage =
+                                    new DownloadErrorMessage(configuration.identifier, responseSerialNo, numMatchingFiles, timestamp, identifier, serialNo);
+                    if (retryAfter >= 0) {
+                        downloadErrorMessage.setRetryAfter(retryAfter);
+                    }
+                    return downloadErrorMessage;
+                }
+                default :
+                    return null;
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            configuration.log.writeLog("MessageCodec : ignoring malformed binary message");
+            return null;
+        }
+    }
+
+    /**
+     * Given message string, breaks down into components and creates an appropriate Message object.
+     * @param messageString : the message in string form.
+     * @return Message object containing data from message string, or null if it is malformed.
+     */
+    public Message parseMessageString(String messageString) {
+        long start = System.nanoTime();
+        try {
+            return parse(messageString);
+        } catch (RuntimeException e) {
+            configuration.log.writeLog("MessageCodec : ignoring malformed message -> " + e.getMessage());
+            return null;
+        } finally {
+            parseTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Parses a text message, see parseMessageString().
+     */
+    private Message parse(String messageString) {
+        // Split string into components
+        String[] components = messageString.split(":");
+
+        if (components.length < 5) {
+           return null;
+        }
+
+        String identifier  = components[1];
+        long serialNo      = Long.parseLong(components[2]);
+        String timestamp   = components[3];
+        String messageType = components[4];
+
+        String[] payload = Arrays.copyOfRange(components, 5, components.length);
+        Long responseSerialNo;
+        String responseIdentifier;
+
+        switch (messageType) {
+            case "advertisement" :
+                int port = Integer.parseInt(payload[0]);
+
+                AdvertisementMessage advertisementMessage =
+                                        new AdvertisementMessage(port, timestamp, identifier, serialNo);
+
+                // Obtain array of services
+                String[] services = payload[1].split(",");
+
+                for (String service : services) {
+                    String[] servicePair = service.split("=");
+                    if (servicePair.length < 2) {
+                        continue;
+                    }
+                    String serviceName   = servicePair[0];
+                    boolean serviceValue = servicePair[1].equals("true");
+
+                    if (serviceName.equals("search")) {
+                        advertisementMessage.setSearchPossible(serviceValue);
+                    } else if (serviceName.equals("download")) {
+                        advertisementMessage.setDownloadPossible(serviceValue);
+                    } else if (serviceName.equals("codec")) {
+                        advertisementMessage.setBinaryCodec(servicePair[1].equals("binary"));
+                    } else if (serviceName.equals("interval")) {
+                        advertisementMessage.setInterval(Long.parseLong(servicePair[1]));
+                    }
+                }
+                return advertisementMessage;
+            case "search-request" :
+                String searchString = payload[0]; // the search string to query
+
+                // only if current machine has search capability will it respond to search-request
+                if (configuration.search) {
+                    SearchRequestMessage searchRequestMessage =
+                                        new SearchRequestMessage(searchString, timestamp, identifier, serialNo);
+
+                    return searchRequestMessage;
+                }
+                return null;
+
+            case "search-result" :
+                // should be <current machine's identifier> : <response serialNo>
+                responseIdentifier = payload[0];
+
+                if (responseIdentifier.equals(configuration.identifier)) {
+                     // should be same serial no as used for tx search-request
+                    responseSerialNo   = Long.parseLong(payload[1]);
+
+                    // <part number> : <more | end> : <result string> | <result string> ...
+                    if (payload.length >= 4) {
+                        int partNo = Integer.parseInt(payload[2]);
+                        boolean lastPart = payload[3].equals(SearchResultMessage.END);
+                        List<String> results = payload.length > 4 ? 
+                                               SearchResultMessage.splitResults(payload[4]) : 
+                                               new ArrayList<>();
+
+                        return new SearchResultMessage(results, partNo, lastPart, responseSerialNo, responseIdentifier, timestamp, identifier, serialNo);
+                    }
+
+                    // a single result, without part number
+                    String searchResultString = payload[2];
+
+                    SearchResultMessage searchResultMessage =
+                                            new SearchResultMessage(searchResultString, responseSerialNo, responseIdentifier, timestamp, identifier, serialNo);
+
+                    return searchResultMessage;
+                }
+                return null;
+
+            case "search-error" :
+                // should be <current machine's identifier> : <response serialNo>
+                responseIdentifier = payload[0];
+
+                if (responseIdentifier.equals(configuration.identifier)) {
+                     // should be same serial no as used for tx search-request (responseSerialNo == serialNo)
+                    responseSerialNo   = Long.parseLong(payload[1]);
+
+                    SearchErrorMessage searchErrorMessage =
+                                            new SearchErrorMessage(responseIdentifier, responseSerialNo, timestamp, identifier, serialNo);
+
+                    return searchErrorMessage;
+                }
+                return null;
+            case "download-request" :
+                String targetIdentifier = payload[0];
+
+                // If download-request was intended for current machine and current machine does have download capability
+                if (targetIdentifier.equals(configuration.identifier) && configuration.download) {
+                    String fileString = payload[1];
+
+                    DownloadRequestMessage downloadRequestMessage =
+                                            new DownloadRequestMessage(fileString, targetIdentifier, timestamp, identifier, serialNo);
+                    return downloadRequestMessage;
+                }
+                return null;
+            case "download-result" :
+                responseIdentifier = payload[0];
+
+                if (responseIdentifier.equals(configuration.identifier)) {
+                    responseSerialNo = Long.parseLong(payload[1]);
+                    String fileString = payload[2];
+                    int fileTransferPort = Integer.parseInt(payload[3]);
+                    long transferToken = payload.length > 4 ? Long.parseLong(payload[4]) : 0; // none from older nodes
+                    long fileSize = payload.length > 5 ? Long.parseLong(payload[5]) : -1;
+
+                    DownloadResultMessage downloadResultMessage =
+                                        new DownloadResultMessage(fileString, responseIdentifier, responseSerialNo, fileTransferPort,
+                                                                  transferToken, fileSize, timestamp, identifier,serialNo);
+                    return downloadResultMessage;
+                }
+                return null;
+            case "download-error" :
+                responseIdentifier = payload[0];
+
+                if (responseIdentifier.equals(configuration.identifier)) {
+                    responseSerialNo = Long.parseLong(payload[1]);
+                    int numMatchingFiles = Integer.parseInt(payload[2]);
+
+                    DownloadErrorMessage downloadErrorMessage =
+                                        new DownloadErrorMessage(responseIdentifier, responseSerialNo, numMatchingFiles, timestamp, identifier, serialNo);
+
+                    // "busy" variant : file found, but node has too many uploads in progress
+                    if (payload.length > 4 && payload[3].equals("busy")) {
+                        downloadErrorMessage.setRetryAfter(Long.parseLong(payload[4]));
+                    }
+                    return downloadErrorMessage;
+                }
+                return null;
+        } // end switch
+        return null;
+    }
+
+    /**
+     * Writes the message type and the header fields common to all messages.
+     */
+    private static void putHeader(ByteBuffer buffer, byte type, Message message) {
+        buffer.put(type);
+        putString(buffer, message.getIdentifier());
+        buffer.putLong(message.getSerialNo());
+        putString(buffer, message.getTimestamp());
+    }
+
+    /**
+     * Writes a string : length (2 bytes) then its characters as US-ASCII bytes ('?' for any other character).
+     */
+    private static void putString(ByteBuffer buffer, String s) {
+        int length = s.length();
+        if (length > 0xFFFF) {
+            throw new BufferOverflowException();
+        }
+
+        buffer.putShort((short) length);
+        if (length > buffer.remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        // Straight into the backing array, a put() per character costs more than building the text
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            array[offset + i] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Reads a string written by putString().
+     */
+    private String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        return new String(getBytes(buffer, length), 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads the next bytes of the buffer into the scratch array.
+     *
+     * @return the scratch array, holding the bytes from index 0.
+     */
+    private byte[] getBytes(ByteBuffer buffer, int length) {
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, 2 * scratch.length)];
+        }
+        buffer.get(scratch, 0, length);
+        return scratch;
+    }
+
+    /**
+     * Reads a string written by putString(), returning whether it is this node's identifier.
+     * Compares the bytes in place, without creating a String.
+     */
+    private boolean isLocalIdentifier(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        return Arrays.equals(getBytes(buffer, length), 0, length, localIdentifier, 0, localIdentifier.length);
+    }
+}
@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Hands received messages of one type to their handler, on a small number of dedicated
+ * consumer threads that wake as soon as a message is queued.
+ *
+ * Replaces the receivers being run every sleepTime ms by a ScheduledExecutorService, which
+ * delayed responses by up to a tick and left threads of the pool blocked forever in take().
+ * The queue is bounded, and dispatch() never blocks the thread receiving from the multicast
+ * group : a message arriving when the queue is full is dropped (and counted), as it would have
+ * been had the socket buffer overflowed.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class MessageDispatcher<T> {
+    private String      name;         // names the consumer threads, e.g "search-request"
+    private Consumer<T> handler;
+    private int         numThreads;
+
+    private final BlockingQueue<T>  queue;
+    private final ArrayList<Thread> consumers;
+    private final AtomicLong        dispatched;
+    private final AtomicLong        dropped;
+
+    private volatile boolean running;
+
+    /**
+     * Constructor for MessageDispatcher, use start() to start the consumer threads.
+     *
+     * @param name       : name of the message type, used to name the consumer threads.
+     * @param capacity   : maximum number of messages waiting to be handled.
+     * @param numThreads : number of consumer threads (messages are handled in order if 1).
+     * @param handler    : handles one message, called on a consumer thread.
+     */
+    public MessageDispatcher(String name, int capacity, int numThreads, Consumer<T> handler) {
+        this.name       = name;
+        this.handler    = handler;
+        this.numThreads = Math.max(1, numThreads);
+        this.queue      = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.consumers  = new ArrayList<>();
+        this.dispatched = new AtomicLong();
+        this.dropped    = new AtomicLong();
+    }
+
+    /**
+     * Returns the name of the message type.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Starts the consumer threads.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+
+        for (int i = 0; i < numThreads; i++) {
+            Thread t = new Thread(this::consume, name + "-" + i);
+            t.setDaemon(true);
+            consumers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops the consumer threads, messages still queued are discarded.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Thread t : consumers) {
+            t.interrupt();
+        }
+        consumers.clear();
+        queue.clear();
+    }
+
+    /**
+     * Queues a message for its handler without blocking.
+     *
+     * @return false if the queue was full and the message was dropped.
+     */
+    public boolean dispatch(T message) {
+        if (message == null) {
+            return false;
+        }
+        if (!queue.offer(message)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        dispatched.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the number of messages waiting to be handled.
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of messages queued since starting.
+     */
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    /**
+     * Returns the number of messages dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Consumer thread : takes messages as they arrive and hands them to the handler.
+     */
+    private void consume() {
+        while (running) {
+            T message;
+            try {
+                message = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                handler.accept(message);
+            } catch (RuntimeException e) {
+                // One bad message must not stop the consumer
+                System.err.println("MessageDispatcher.consume() : " + name + " handler -> " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Sends and receives the datagrams of the multicast group, implemented with a MulticastSocket
+ * (MulticastEndpoint) or a DatagramChannel (ChannelMulticastEndpoint), as chosen by the
+ * endpoint option of the properties file.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public interface MessageEndpoint {
+    /**
+     * Joins the multicast group.
+     */
+    void join();
+
+    /**
+     * Leaves the multicast group and closes the endpoint.
+     */
+    void leave();
+
+    /**
+     * Receives the next datagram, waiting for one to arrive (for up to soTimeout ms for some endpoints).
+     *
+     * @return buffer holding the datagram (position to limit), to be handed back with release() once
+     *         read, or null if nothing was received.
+     */
+    ByteBuffer receive();
+
+    /**
+     * Hands back a buffer returned by receive().
+     */
+    void release(ByteBuffer buffer);
+
+    /**
+     * Sends a datagram to the group.
+     *
+     * @param b : bytes to send, from the start of the array.
+     * @param length : number of bytes to send.
+     * @return true / false for successful / non-successful transmission
+     */
+    boolean send(byte[] b, int length);
+}
@@ -0,0 +1,187 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of the header (identifier, timestamp, serial number) of every message this node sends,
+ * used by the tx Message() constructor.
+ *
+ * The identifier is resolved once, from the Configuration (or, before one is set, by a single
+ * look up of the local host), instead of a reverse DNS look up for each message. Timestamps
+ * ("yyyyMMdd-HHmmss.SSS", local time) are written digit by digit from a "yyyyMMdd-HHmmss." prefix
+ * computed once a second, instead of with a new SimpleDateFormat each. Serial numbers come from an
+ * atomic counter kept at or after the current time in ms, so they are unique even for messages sent
+ * in the same ms, and not re-used after a restart.
+ *
+ * Each MulticastHandler binds its factory to the thread that creates it, and so to every thread the
+ * handler starts (see setCurrent()), so that several nodes can run in one JVM (see ClusterSimulator)
+ * each sending with its own identifier.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class MessageFactory {
+    private static final int TIMESTAMP_LENGTH = 19;  // "yyyyMMdd-HHmmss.SSS"
+
+    private static volatile MessageFactory defaultFactory; // used by the tx Message() constructor
+    private static final InheritableThreadLocal<MessageFactory> currentFactory = new InheritableThreadLocal<>(); // per thread, in place of the default
+
+    private final String     username;
+    private final String     hostname;
+    private final String     identifier;  // username@hostname
+    private final AtomicLong serialNo;    // last serial number issued
+    private final ZoneId     zone;
+
+    private volatile Second second;       // the second of the last timestamp written
+
+    /**
+     * A second of local time, and the timestamp prefix "yyyyMMdd-HHmmss." for it.
+     */
+    private static final class Second {
+        final long   start;   // ms, first ms of the second
+        final char[] prefix;  // TIMESTAMP_LENGTH chars, the last 3 (ms) left to fill
+
+        Second(long millis, ZoneId zone) {
+            this.start  = millis - Math.floorMod(millis, 1000L);
+            this.prefix = new char[TIMESTAMP_LENGTH];
+
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(start), zone);
+            writeDigits(prefix, 0, time.getYear(), 4);
+            writeDigits(prefix, 4, time.getMonthValue(), 2);
+            writeDigits(prefix, 6, time.getDayOfMonth(), 2);
+            prefix[8] = '-';
+            writeDigits(prefix, 9, time.getHour(), 2);
+            writeDigits(prefix, 11, time.getMinute(), 2);
+            writeDigits(prefix, 13, time.getSecond(), 2);
+            prefix[15] = '.';
+        }
+    }
+
+    /**
+     * Constructor for MessageFactory, with the identity of the current machine from its configuration.
+     *
+     * @param configuration : configuration of current machine.
+     */
+    public MessageFactory(Configuration configuration) {
+        this(configuration.username, configuration.hostname);
+    }
+
+    /**
+     * Constructor for MessageFactory.
+     *
+     * @param username : username in the identifier of messages sent.
+     * @param hostname : hostname in the identifier of messages sent.
+     */
+    public MessageFactory(String username, String hostname) {
+        this.username   = username;
+        this.hostname   = hostname;
+        this.identifier = username + "@" + hostname;
+        this.serialNo   = new AtomicLong();
+        this.zone       = ZoneId.systemDefault();
+        this.second     = new Second(System.currentTimeMillis(), zone);
+    }
+
+    /**
+     * Returns the factory used by the tx Message() constructor : the one bound to this thread by
+     * setCurrent(), else the default, resolving the local host once if none has been set.
+     */
+    public static MessageFactory getDefault() {
+        MessageFactory factory = currentFactory.get();
+        if (factory != null) {
+            return factory;
+        }
+
+        factory = defaultFactory;
+        if (factory == null) {
+            synchronized (MessageFactory.class) {
+                if (defaultFactory == null) {
+                    String hostname;
+                    try {
+                        hostname = InetAddress.getLocalHost().getCanonicalHostName();
+                    } catch (UnknownHostException e) {
+                        System.out.println("MessageFactory() : unknown hostname: " + e.getMessage());
+                        hostname = "FileTreeBrowser-host";
+                    }
+                    defaultFactory = new MessageFactory(System.getProperty("user.name"), hostname);
+                }
+                factory = defaultFactory;
+            }
+        }
+        return factory;
+    }
+
+    /**
+     * Sets the factory used by the tx Message() constructor.
+     */
+    public static void setDefault(MessageFactory factory) {
+        defaultFactory = factory;
+    }
+
+    /**
+     * Sets the factory used by the tx Message() constructor on this thread, and on the threads it
+     * starts from now on, in place of the default (null to use the default again).
+     */
+    public static void setCurrent(MessageFactory factory) {
+        if (factory == null) {
+            currentFactory.remove();
+        } else {
+            currentFactory.set(factory);
+        }
+    }
+
+    /**
+     * Returns a new serial number, greater than any issued before and no less than the current time in ms.
+     */
+    public long nextSerialNo() {
+        long now = System.currentTimeMillis();
+        return serialNo.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+    }
+
+    /**
+     * Returns the current local time as "yyyyMMdd-HHmmss.SSS".
+     */
+    public String timestamp() {
+        return timestamp(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the given time (ms since the epoch) in local time as "yyyyMMdd-HHmmss.SSS".
+     */
+    public String timestamp(long millis) {
+        Second s = second;
+        if (millis < s.start || millis >= s.start + 1000) {
+            s = new Second(millis, zone);
+            second = s;
+        }
+
+        char[] chars = Arrays.copyOf(s.prefix, TIMESTAMP_LENGTH);
+        writeDigits(chars, 16, (int) (millis - s.start), 3);
+        return new String(chars);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * Writes value as exactly length decimal digits (zero padded) into chars from offset.
+     */
+    private static void writeDigits(char[] chars, int offset, int value, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
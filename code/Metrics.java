@@ -0,0 +1,239 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the node's runtime metrics, by name : counters, gauges (read when shown) and
+ * histograms (of latencies in ns, or throughputs), recorded on the hot paths without locking.
+ *
+ * Metrics are shown by the ":stats" command, through JMX (an MBean with one attribute per value,
+ * see MetricsMBean) and written to a snapshot file every metricsInterval ms.
+ *
+ *   rx.datagrams, rx.dropped         : datagrams received, and those not decoded (malformed, or not for this node)
+ *   rx.<type>, rx.<type>.ns          : messages received, and ns from receiving to handing each over
+ *   tx.<type>, tx.<type>.ns          : messages sent, and ns to encode and send each
+ *   tx.failed, tx.dropped            : messages not sent, and datagrams dropped as the send buffer stayed full
+ *   codec.parse.ns                   : ns to parse a text message (MessageCodec.parseMessageString())
+ *   queue.<dispatcher>[.dropped]     : rx messages waiting to be handled (and dropped), tx.queue likewise
+ *   search.ns                        : ns to evaluate a search (MulticastHandler.getMatchingFiles())
+ *   upload.bytes, upload.bytes/s     : file data sent, and throughput of each range sent
+ *   download.bytes, download.bytes/s : file data received, and throughput of each download
+ *   upload.active, download.active   : transfers in progress
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class Metrics {
+    private final ConcurrentSkipListMap<String, Counter>      counters   = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges     = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, Histogram>    histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * A count, which may also go down (e.g transfers in progress).
+     */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void decrement() {
+            value.decrement();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, in log-linear buckets : 8 buckets for each power of two,
+     * so percentiles are within 12.5% of the value recorded.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB      = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+        private final LongAdder       count   = new LongAdder();
+        private final LongAdder       sum     = new LongAdder();
+        private final AtomicLong      max     = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(indexOf(value));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns the value below which the given fraction (e.g 0.99) of values recorded fall, 0 if none.
+         */
+        public long getPercentile(double fraction) {
+            long target = (long) Math.ceil(fraction * count.sum());
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(1, target)) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        private static int indexOf(long value) {
+            if (value < SUB) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BITS + 1) * SUB + (int) ((value >>> (exponent - SUB_BITS)) & (SUB - 1));
+        }
+
+        private static long upperBoundOf(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int shift = index / SUB - 1;
+            long lower = (long) (SUB + index % SUB) << shift;
+            return lower + (1L << shift) - 1;
+        }
+    }
+
+    /**
+     * Returns the counter of the given name, created if new.
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * Returns the histogram of the given name, created if new.
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Adds (or replaces) a gauge, a value read from elsewhere whenever the metrics are shown.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Returns every value by name, histograms as name.count, name.mean, name.p50, name.p99 and name.max.
+     */
+    public Map<String, Long> snapshot() {
+        TreeMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            values.put(entry.getKey() + ".count", histogram.getCount());
+            values.put(entry.getKey() + ".mean", histogram.getMean());
+            values.put(entry.getKey() + ".p50", histogram.getPercentile(0.50));
+            values.put(entry.getKey() + ".p99", histogram.getPercentile(0.99));
+            values.put(entry.getKey() + ".max", histogram.getMax());
+        }
+        return values;
+    }
+
+    /**
+     * Returns every metric, one per line, for ":stats".
+     */
+    public String getStatsString() {
+        StringBuilder stats = new StringBuilder();
+
+        TreeMap<String, String> lines = new TreeMap<>();
+        for (Map.Entry<String, Counter> counter : counters.entrySet()) {
+            lines.put(counter.getKey(), Long.toString(counter.getValue().get()));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            lines.put(gauge.getKey(), Long.toString(gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            String name = entry.getKey();
+            lines.put(name, "count=" + histogram.getCount() + " mean=" + valueString(name, histogram.getMean()) +
+                            " p50=" + valueString(name, histogram.getPercentile(0.50)) + " p99=" + valueString(name, histogram.getPercentile(0.99)) +
+                            " max=" + valueString(name, histogram.getMax()));
+        }
+
+        for (Map.Entry<String, String> line : lines.entrySet()) {
+            stats.append(String.format("%-32s %s%n", line.getKey(), line.getValue()));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Appends a snapshot of every value to a file, one "timestamp| name value" line each.
+     */
+    public void writeSnapshot(String fileName) {
+        String now = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new Date());
+
+        StringBuilder snapshot = new StringBuilder();
+        for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+            snapshot.append(now).append("| ").append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+
+        try (FileWriter writer = new FileWriter(fileName, true)) {
+            writer.write(snapshot.toString());
+        } catch (IOException e) {
+            System.err.println("Metrics.writeSnapshot() : IOException -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, as "FileTreeBrowser:type=Metrics,id=<identifier>".
+     */
+    public void registerMBean(String identifier) {
+        try {
+            ObjectName name = new ObjectName("FileTreeBrowser:type=Metrics,id=" + ObjectName.quote(String.valueOf(identifier)));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), name);
+            }
+        } catch (Exception e) {
+            System.err.println("Metrics.registerMBean() : " + e);
+        }
+    }
+
+    /**
+     * Returns a value for display, ns values (names ending ".ns") in us.
+     */
+    private static String valueString(String name, long value) {
+        return name.endsWith(".ns") ? String.format("%.1fus", value / 1000.0) : Long.toString(value);
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Read-only JMX view of a Metrics registry (e.g in jconsole) : one Long attribute for each value
+ * in Metrics.snapshot(), so metrics added while running appear as they are.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class MetricsMBean implements DynamicMBean {
+    private Metrics metrics;
+
+    /**
+     * Constructor for MetricsMBean.
+     *
+     * @param metrics : the registry to show.
+     */
+    public MetricsMBean(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = metrics.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = metrics.snapshot();
+
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : metrics.snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+        }
+
+        return new MBeanInfo(MetricsMBean.class.getName(), "FileTreeBrowser runtime metrics",
+                             attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -25,8 +25,9 @@ import java.net.MulticastSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 
-public class MulticastEndpoint
+public class MulticastEndpoint implements MessageEndpoint
 {
   MulticastSocket mSocket;
   // InetAddress mInetAddr4;
@@ -34,6 +35,8 @@ public class MulticastEndpoint
   // InetSocketAddress mGroup4;
   InetSocketAddress mGroup6;
   Configuration c;
+  DatagramPacket rxPacket; // reused by rx(ByteBuffer), only called from one thread
+  ByteBuffer rxBuffer;     // reused by receive(), only called from one thread
 
   public enum PktType { none, ip4, ip6 } // for dual stack flexibility
 
@@ -94,7 +97,7 @@ public class MulticastEndpoint
   /**
    * Join multicast group(s).
    */
-  void join()
+  public void join()
   {
     try {
       // if (mGroup4 != null) {
@@ -115,7 +118,7 @@ public class MulticastEndpoint
   /**
    * Leave multicast group(s).
    */
-  void leave()
+  public void leave()
   {
     if (mSocket == null) return;
 
@@ -170,12 +173,87 @@ public class MulticastEndpoint
     return p;
   }
 
+  /** 
+   * Receive a multicast packet into a (heap) buffer, reused between calls.
+   * @param b : buffer for received data, position 0 and limit the packet length on return
+   * @return : type of packet received, IPv4 or IPv6
+   */
+  PktType rx(ByteBuffer b)
+  {
+    if (b == null || mSocket == null) return PktType.none;
+
+    PktType p = PktType.none;
+    b.clear();
+
+    try {
+      if (rxPacket == null || rxPacket.getData() != b.array()) {
+        rxPacket = new DatagramPacket(b.array(), b.arrayOffset(), b.capacity());
+      }
+      rxPacket.setLength(b.capacity());
+
+      mSocket.receive(rxPacket);
+      final int l = rxPacket.getLength();
+      b.limit(l);
+
+      if (l > 0) {
+        int addrLen = rxPacket.getAddress().getAddress().length;
+        if (addrLen == 16) p = PktType.ip6; // 16 bytes, IPv6
+      }
+    }
+    catch (SocketTimeoutException e) {
+      b.limit(0);
+    }
+    catch (IOException e) {
+      b.limit(0);
+      System.out.println("MulticastEndpoint.rx(): IOException - " + e.getMessage());
+    }
+
+    return p;
+  }
+
+  /**
+   * MessageEndpoint : receive an IPv6 packet, waiting up to soTimeout ms.
+   * @return : buffer holding the packet (reused by the next call), or null if none arrived
+   */
+  public ByteBuffer receive()
+  {
+    if (rxBuffer == null) rxBuffer = ByteBuffer.allocate(c.maximumMessageSize);
+
+    return rx(rxBuffer) == PktType.ip6 ? rxBuffer : null;
+  }
+
+  /**
+   * MessageEndpoint : nothing to hand back, receive() always reuses the same buffer.
+   */
+  public void release(ByteBuffer b)
+  {
+  }
+
+  /**
+   * MessageEndpoint : send an IPv6 packet.
+   */
+  public boolean send(byte b[], int length)
+  {
+    return tx(PktType.ip6, b, length);
+  }
+
   /**
    * @param p : select IPv4 or IPv6
    * @param b : bytes to send
    * @return true / false for successful / non-successful transmission
    */
   boolean tx(PktType p, byte b[])
+  {
+    return b != null && tx(p, b, b.length);
+  }
+
+  /**
+   * @param p : select IPv4 or IPv6
+   * @param b : bytes to send, from the start of the array
+   * @param length : number of bytes to send
+   * @return true / false for successful / non-successful transmission
+   */
+  boolean tx(PktType p, byte b[], int length)
   {
     if (p == PktType.none || b == null || mSocket == null) return false;
 
@@ -196,7 +274,7 @@ public class MulticastEndpoint
 
     done = false;
     try {
-      d = new DatagramPacket(b, b.length, mGroup);
+      d = new DatagramPacket(b, length, mGroup);
       mSocket.send(d);
       done = true;
     }
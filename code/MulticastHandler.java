@@ -1,5 +1,6 @@
-import java.io.File;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.text.ParseException;
 import java.util.concurrent.ExecutorService;
@@ -8,6 +9,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit ;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * Class for handling multicast connections.
@@ -30,7 +32,7 @@ public class MulticastHandler implements Runnable {
     public static final String REVERSED = "\u001b[7m";
 
 
-    private MulticastEndpoint multicastEndpoint; 
+    private MessageEndpoint multicastEndpoint; 
     public Configuration configuration;
     private ScheduledExecutorService scheduler;
 
@@ -40,6 +42,19 @@ public class MulticastHandler implements Runnable {
     public SearchResponseReceiver searchResponseReceiver;
     public DownloadRequestReceiver downloadRequestReceiver;
     public DownloadResponseReceiver downloadResponseReceiver;
+    public FileCatalog fileCatalog;
+    public SearchCache searchCache;
+    public ChunkHasher chunkHasher;
+    public FileServer fileServer;
+    public MessageCodec messageCodec;
+    public DuplicateFilter duplicateFilter;
+    public TransmitQueue transmitQueue; // null if sends are not paced (txRate=0)
+    public MessageFactory messageFactory; // header of every message this node sends
+
+    private volatile boolean running = true; // cleared by close(), ends the receiving thread
+
+    private ByteBuffer txBuffer; // reused for every binary message sent, guarded by itself
+    private long rxStart; // ns the message being handled was received, receiving thread only
 
     /**
      * Constructor for MulticastHandler.
@@ -47,10 +62,22 @@ public class MulticastHandler implements Runnable {
      */
     public MulticastHandler(Configuration configuration) {
         this.configuration = configuration;
+        // Header of every message sent, identity resolved once by the configuration. Also bound to this
+        // thread, and so to every thread started below, as other nodes may run in the same JVM
+        this.messageFactory = new MessageFactory(configuration);
+        MessageFactory.setDefault(messageFactory);
+        MessageFactory.setCurrent(messageFactory);
+        this.messageCodec = new MessageCodec(configuration);
+        this.duplicateFilter = new DuplicateFilter(configuration.duplicateCacheSize, configuration.duplicateWindow);
+        this.txBuffer = ByteBuffer.allocate(configuration.maximumMessageSize);
 
         try {
-            // Initialize multicast socket with configurations
-            multicastEndpoint = new MulticastEndpoint(this.configuration);
+            // Initialize multicast socket (or channel) with configurations
+            if (configuration.endpoint.equals("channel")) {
+                multicastEndpoint = new ChannelMulticastEndpoint(this.configuration);
+            } else {
+                multicastEndpoint = new MulticastEndpoint(this.configuration);
+            }
 
             configuration.log.writeLog("Multicast Endpoint Created : " + this.configuration.mAddr6 + ":" + this.configuration.mPort);
 
@@ -58,40 +85,61 @@ public class MulticastHandler implements Runnable {
             multicastEndpoint.join();
             configuration.log.writeLog(configuration.identifier + " Joined Multicast Group");
 
-            // Create scheduled threadpool
-            scheduler = Executors.newScheduledThreadPool(6);
+            // Pace outgoing messages, highest priority first
+            if (configuration.txRate > 0) {
+                transmitQueue = new TransmitQueue(configuration, this::sendMessage);
+                transmitQueue.start();
+            }
+
+            // Build in-memory catalog of root directory and keep it up to date
+            fileCatalog = new FileCatalog(configuration);
+            fileCatalog.start();
+
+            // Cache search results, dropping those a change to the catalog affects
+            searchCache = new SearchCache(configuration, fileCatalog);
+
+            // Hash every file's chunks in the background for download verification
+            chunkHasher = new ChunkHasher(configuration);
+            chunkHasher.start(fileCatalog);
+
+            // Start the node's single long-lived file transfer server
+            fileServer = new FileServer(configuration, chunkHasher);
+            fileServer.start();
+            configuration.log.writeLog("File transfer server listening on port " + fileServer.getPort());
+
+            // Create scheduled threadpool, for periodic tasks only
+            scheduler = Executors.newScheduledThreadPool(2);
 
             // Create advertisement receiver an add to threadpool
             advertisementReceiver = new AdvertisementReceiver(this);
             // Schedule the advertisement receiver task (of removing expired advertisements)
             scheduler.scheduleAtFixedRate(advertisementReceiver, 0, configuration.sleepTime, TimeUnit.MILLISECONDS);
             
-            // Create advertisement sender and add to threadpool
+            // Create advertisement sender, sending out ads at adaptive (Trickle) intervals
             advertisementSender = new AdvertisementSender(this);
-            // Create random delay between 100 to 500 ms
-            int randomDelay = 100 + (int) (Math.random() * (500 - 100 + 1));
-            // Schedule the advertisement sender to send out ad at an interval
-            scheduler.scheduleAtFixedRate(advertisementSender, randomDelay, configuration.sleepTime, TimeUnit.MILLISECONDS);
+            advertisementSender.start(scheduler);
+            advertisementReceiver.addListener(advertisementSender);
 
-            // Create search request receiever and add to threadpool
+            // Create search request receiever, answering search-requests on its own consumer thread(s) as they arrive
             searchRequestReceiver = new SearchRequestReceiver(this);
-            // Schedule the receiver to process received search-requests at some interval 
-            scheduler.scheduleAtFixedRate(searchRequestReceiver, 0, configuration.sleepTime, TimeUnit.MILLISECONDS);
+            searchRequestReceiver.start();
 
-            // Create search response receiver task to process incoming search responses
+            // Create search response receiver task to print incoming search responses as they arrive
             searchResponseReceiver = new SearchResponseReceiver(this);
-            // submit task to threadpool to run constantly 
-            scheduler.scheduleAtFixedRate(searchResponseReceiver, 0, configuration.sleepTime, TimeUnit.MILLISECONDS);
+            searchResponseReceiver.start();
+            // Report responders whose search-result parts stopped arriving
+            scheduler.scheduleAtFixedRate(searchResponseReceiver::removeIncompleteResults, configuration.sleepTime, configuration.sleepTime, TimeUnit.MILLISECONDS);
 
-            // Create download request receiver runnable task to process incoming download requests
+            // Create download request receiver task to answer incoming download requests as they arrive
             downloadRequestReceiver = new DownloadRequestReceiver(this);
-            // submit task to threadpool to run at an interval
-            scheduler.scheduleAtFixedRate(downloadRequestReceiver, 0, configuration.sleepTime, TimeUnit.MILLISECONDS);
+            downloadRequestReceiver.start();
 
-            // Create download response receiver task to process incoming download responses
+            // Create download response receiver task to process incoming download responses as they arrive
             downloadResponseReceiver = new DownloadResponseReceiver(this);
-            // Submit task to threadpool to run 
-            scheduler.scheduleAtFixedRate(downloadResponseReceiver, 0, configuration.sleepTime, TimeUnit.MILLISECONDS);
+            downloadResponseReceiver.start();
+
+            // Runtime metrics : shown by ":stats", through JMX, and in snapshots written to logs/
+            registerMetrics();
 
             Thread t = new Thread(this);
             t.start();
@@ -105,15 +153,28 @@ public class MulticastHandler implements Runnable {
     /**
      * Waits for incoming messagse and delegates handling of message to
      * the appropriate thread based on the message type.
+     * Messages are decoded here, on the one receiving thread, and handed over without blocking.
      */
     @Override
     public void run() {
-        while (true) {
+        while (running) {
             // Receive incoming message
             Message message = rxMessage();
 
+            // Drop this node's own messages, looped back if several nodes share a host (loopback=false)
+            if (message != null && message.getIdentifier().equals(configuration.identifier)) {
+                continue;
+            }
+
+            // Drop requests already received, before any work is queued for them
+            if (message != null && isRequest(message) && duplicateFilter.isDuplicate(message)) {
+                configuration.log.writeLog("duplicate " + message.getType() + " suppressed : " + message.getIdentifier() + ":" + message.getSerialNo());
+                continue;
+            }
+
             if (message != null) {
                 // Determine message type and delegate to appropriate task thread
+                configuration.metrics.counter("rx." + message.getType()).increment();
                 switch (message.getType()) {
                     case "advertisement":
                         advertisementReceiver.addAdvertisement((AdvertisementMessage) message);
@@ -137,33 +198,95 @@ public class MulticastHandler implements Runnable {
                         downloadResponseReceiver.addDownloadResponse(message);
                         break;
                 }
+                configuration.metrics.histogram("rx." + message.getType() + ".ns").record(System.nanoTime() - rxStart);
             }
         }
     }
 
+    /**
+     * Adds the gauges of this node's queues and transfers to the metrics, registers the metrics MBean,
+     * and schedules snapshots of the metrics every metricsInterval ms.
+     */
+    private void registerMetrics() {
+        Metrics metrics = configuration.metrics;
+
+        for (MessageDispatcher<?> dispatcher : new MessageDispatcher<?>[] {searchRequestReceiver.getDispatcher(), searchResponseReceiver.getDispatcher(),
+                                                                           downloadRequestReceiver.getDispatcher(), downloadResponseReceiver.getDispatcher()}) {
+            metrics.gauge("queue." + dispatcher.getName(), dispatcher::getQueued);
+            metrics.gauge("queue." + dispatcher.getName() + ".dropped", dispatcher::getDropped);
+        }
+        if (transmitQueue != null) {
+            metrics.gauge("queue.tx", transmitQueue::getQueueDepth);
+            metrics.gauge("queue.tx.dropped", transmitQueue::getDropped);
+        }
+        metrics.gauge("upload.active", fileServer.getUploadScheduler()::getActiveUploads);
+        metrics.gauge("nodes", () -> advertisementReceiver.getAdvertisementMessages().size());
+
+        metrics.registerMBean(configuration.identifier);
+
+        if (configuration.metricsInterval > 0) {
+            String snapshotFile = "logs/" + configuration.identifier + ".metrics";
+            scheduler.scheduleAtFixedRate(() -> metrics.writeSnapshot(snapshotFile), configuration.metricsInterval, 
+                                          configuration.metricsInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Whether a message is a request that other nodes answer (and so must only answer once).
+     */
+    private static boolean isRequest(Message message) {
+        return message instanceof SearchRequestMessage || message instanceof DownloadRequestMessage;
+    }
+
     public void stopExecutorService() {
         scheduler.shutdown();
+        searchRequestReceiver.stop();
+        searchResponseReceiver.stop();
+        downloadRequestReceiver.stop();
+        downloadResponseReceiver.stop();
+    }
+
+    /**
+     * Takes the node out of the multicast group : stops every thread the handler started, leaves
+     * the group and stops the file server. Other nodes see it leave once its advertisement expires.
+     * The configuration (and its log and metrics) is left open.
+     */
+    public void close() {
+        running = false;
+        stopExecutorService();
+        if (transmitQueue != null) {
+            transmitQueue.stop();
+        }
+        multicastEndpoint.leave();
+        fileServer.stop();
+        chunkHasher.stop();
+        fileCatalog.stop();
+        configuration.log.writeLog(configuration.identifier + " Left Multicast Group");
     }
 
 
     /**
-     * Given an incoming message (in bytes), reads into buffer, converts to string and extracts
-     * message protocol information into appropriate Message object.
+     * Given an incoming message (in bytes), reads into buffer and extracts message protocol 
+     * information into appropriate Message object (see MessageCodec, for ascii and binary messages).
      * @return : message object containing protocol information of received message.
      */
     public Message rxMessage() {
-        // Setup buffer with max-size from configuration 
-        byte[] buffer = new byte[configuration.maximumMessageSize];
-
         // Read from group into buffer and check it is not none
-        if (multicastEndpoint.rx(buffer) != MulticastEndpoint.PktType.none) {
-            // decode bytes into string 
-            String messageString = new String(buffer, StandardCharsets.US_ASCII).trim();
-
-            Message message = parseMessageString(messageString);
+        ByteBuffer buffer = multicastEndpoint.receive();
+        if (buffer != null) {
+            rxStart = System.nanoTime();
+            configuration.metrics.counter("rx.datagrams").increment();
+            Message message;
+            try {
+                message = messageCodec.decode(buffer);
+            } finally {
+                multicastEndpoint.release(buffer);
+            }
 
             if (message != null) {
                 configuration.log.writeLog("rx-> " + message.toString());
+            } else {
+                configuration.metrics.counter("rx.dropped").increment();
             }
             return message;
         }
@@ -177,142 +300,69 @@ public class MulticastHandler implements Runnable {
      * @return Message object containing data from message string.
      */
     public Message parseMessageString(String messageString) {
-        // Split string into components
-        String[] components = messageString.split(":");
+        return messageCodec.parseMessageString(messageString);
+    }
 
-        if (components.length < 3) {
-           return null;
+    /**
+     * Method for sending out a message into multicast group.
+     * Messages are queued on the TransmitQueue to be sent at the paced rate, unless pacing is off.
+     * @param message : the Message object to send out to multicast group.
+     * @return boolean indicating whether transmission was successful (or the message was queued) or not.
+     */
+    public boolean txMessage(Message message) {
+        if (message != null && transmitQueue != null) {
+            return transmitQueue.offer(message);
         }
-
-        String identifier  = components[1];
-        long serialNo      = Long.parseLong(components[2]);
-        String timestamp   = components[3];
-        String messageType = components[4];
-
-        String[] payload = Arrays.copyOfRange(components, 5, components.length);
-        Long responseSerialNo;
-        String responseIdentifier;
-
-        switch (messageType) {
-            case "advertisement" :
-                int port = Integer.parseInt(payload[0]);
-
-                AdvertisementMessage advertisementMessage = 
-                                        new AdvertisementMessage(port, timestamp, identifier, serialNo);
-
-                // Obtain array of services 
-                String[] services = payload[1].split(",");
-
-                for (String service : services) {
-                    String[] servicePair = service.split("=");
-                    String serviceName   = servicePair[0];
-                    boolean serviceValue = servicePair[1].equals("true");
-
-                    if (serviceName.equals("search")) {
-                        advertisementMessage.setSearchPossible(serviceValue);
-                    } else if (serviceName.equals("download")) {
-                        advertisementMessage.setDownloadPossible(serviceValue);
-                    }
-                }
-                return advertisementMessage;
-            case "search-request" :
-                String searchString = payload[0]; // the search string to query 
-
-                // only if current machine has search capability will it respond to search-request
-                if (configuration.search) {
-                    SearchRequestMessage searchRequestMessage = 
-                                        new SearchRequestMessage(searchString, timestamp, identifier, serialNo);
-
-                    return searchRequestMessage;
-                }
-                return null;
-               
-            case "search-result" :
-                // should be <current machine's identifier> : <response serialNo>
-                responseIdentifier = payload[0]; 
-                
-                if (responseIdentifier.equals(configuration.identifier)) {
-                     // should be same serial no as used for tx search-request
-                    responseSerialNo   = Long.parseLong(payload[1]); 
-                    String searchResultString = payload[2];
-
-                    SearchResultMessage searchResultMessage = 
-                                            new SearchResultMessage(searchResultString, responseSerialNo, responseIdentifier, timestamp, identifier, serialNo);
-
-                    return searchResultMessage;
-                }
-                return null;
-               
-            case "search-error" :
-                // should be <current machine's identifier> : <response serialNo>
-                responseIdentifier = payload[0]; 
-
-                if (responseIdentifier.equals(configuration.identifier)) {
-                     // should be same serial no as used for tx search-request (responseSerialNo == serialNo)
-                    responseSerialNo   = Long.parseLong(payload[1]); 
-
-                    SearchErrorMessage searchErrorMessage = 
-                                            new SearchErrorMessage(responseIdentifier, responseSerialNo, timestamp, identifier, serialNo);
-
-                    return searchErrorMessage;
-                }
-                return null;
-            case "download-request" :
-                String targetIdentifier = payload[0];
-
-                // If download-request was intended for current machine and current machine does have download capability
-                if (targetIdentifier.equals(configuration.identifier) && configuration.download) {
-                    String fileString = payload[1];
-
-                    DownloadRequestMessage downloadRequestMessage = 
-                                            new DownloadRequestMessage(fileString, targetIdentifier, timestamp, identifier, serialNo);
-                    return downloadRequestMessage;
-                }
-                return null;
-            case "download-result" :
-                responseIdentifier = payload[0];
-
-                if (responseIdentifier.equals(configuration.identifier)) {
-                    responseSerialNo = Long.parseLong(payload[1]);
-                    String fileString = payload[2];
-                    int fileTransferPort = Integer.parseInt(payload[3]);
-
-                    DownloadResultMessage downloadResultMessage = 
-                                        new DownloadResultMessage(fileString, responseIdentifier, responseSerialNo, fileTransferPort, timestamp, identifier,serialNo);
-                    return downloadResultMessage;
-                }
-                return null;
-            case "download-error" :
-                responseIdentifier = payload[0];
-
-                if (responseIdentifier.equals(configuration.identifier)) {
-                    responseSerialNo = Long.parseLong(payload[1]);
-                    int numMatchingFiles = Integer.parseInt(payload[2]);
-
-                    DownloadErrorMessage downloadErrorMessage = 
-                                        new DownloadErrorMessage(responseIdentifier, responseSerialNo, numMatchingFiles, timestamp, identifier, serialNo);
-                    return downloadErrorMessage;                    
-                }
-                return null;                
-        } // end switch 
-        return null;
+        return sendMessage(message);
     }
 
     /**
-     * Method for sending out a message into multicast group.
+     * Sends a message into the multicast group straight away.
      * @param message : the Message object to send out to multicast group.
      * @return boolean indicating whether transmission was successful or not.
      */
-    public boolean txMessage(Message message) {
+    private boolean sendMessage(Message message) {
+        long start = System.nanoTime();
+        boolean done = send(message);
+
+        if (message != null) {
+            Metrics metrics = configuration.metrics;
+            metrics.counter(done ? "tx." + message.getType() : "tx.failed").increment();
+            metrics.histogram("tx." + message.getType() + ".ns").record(System.nanoTime() - start);
+        }
+        return done;
+    }
+
+    /**
+     * Encodes and sends a message, see sendMessage().
+     */
+    private boolean send(Message message) {
         boolean done = false;
         byte buffer[];
 
+        if (message != null && useBinaryCodec(message)) {
+            synchronized (txBuffer) {
+                try {
+                    txBuffer.clear();
+                    messageCodec.encode(message, txBuffer);
+
+                    if (multicastEndpoint.send(txBuffer.array(), txBuffer.position())) {
+                        done = true;
+                        configuration.log.writeLog("tx-> " + message + " (binary, " + txBuffer.position() + " bytes)");
+                    }
+                    return done;
+                } catch (BufferOverflowException e) {
+                    // Too long for maximumMessageSize, send as text instead
+                }
+            }
+        }
+
         if (message != null) {
             String messageString = message.toString();
             buffer = messageString.getBytes(StandardCharsets.US_ASCII);
          
             // Check if message was successfully sent out
-            if (multicastEndpoint.tx(MulticastEndpoint.PktType.ip6, buffer)) {
+            if (multicastEndpoint.send(buffer, buffer.length)) {
                 done = true;
                 configuration.log.writeLog("tx-> " + messageString);
             }         
@@ -324,14 +374,47 @@ public class MulticastHandler implements Runnable {
     }
 
 
+    /**
+     * Whether to send a message binary encoded : the codec is set to binary and every node in the 
+     * group has advertised that it can receive binary messages. Advertisements are always sent as 
+     * text, so that nodes with either codec can find each other.
+     */
+    private boolean useBinaryCodec(Message message) {
+        return configuration.codec.equals("binary") && !(message instanceof AdvertisementMessage) && 
+               advertisementReceiver != null && advertisementReceiver.allSupportBinaryCodec();
+    }
+
     /**
      * Method to send out tx search-request message 
      * In resposne to user using ":search" command
+     * @param searchString : the string to search for.
+     * @param deadline     : ms to wait for responses, the search completes sooner if every node offering search answers.
+     * @return handle on the search, gathering the responses.
      */
-    public void txSearchRequest(String searchString)  {
+    public SearchHandle txSearchRequest(String searchString, long deadline)  {
         SearchRequestMessage searchRequestMessage = new SearchRequestMessage(searchString);
 
+        // Every node advertising search is expected to answer
+        HashSet<String> peers = new HashSet<>();
+        for (AdvertisementMessage advertisementMessage : advertisementReceiver.getAdvertisementMessages()) {
+            if (advertisementMessage.isSearchPossible()) {
+                peers.add(advertisementMessage.getIdentifier());
+            }
+        }
+
+        SearchHandle search = new SearchHandle(searchString, searchRequestMessage.getSerialNo(), peers);
+        searchResponseReceiver.addSearch(search);
+        scheduler.schedule(search::complete, deadline, TimeUnit.MILLISECONDS);
+
         txMessage(searchRequestMessage);
+        return search;
+    }
+
+    /**
+     * Method to send out tx search-request message, waiting up to sleepTime ms for responses.
+     */
+    public SearchHandle txSearchRequest(String searchString)  {
+        return txSearchRequest(searchString, configuration.sleepTime);
     }
 
 
@@ -361,68 +444,57 @@ public class MulticastHandler implements Runnable {
     }
 
     /**
-     * Method to retrieve all files and directories that substring-match a search string.
-     * @param searchString : the search string provided by search-request.
-     * @return ArrayList of files whose paths/file name substring match the given search string.
-     */
-    public ArrayList<File> getMatchingFiles(String searchString, boolean substringMatch) {
-        ArrayList<File> matchingFiles = new ArrayList<>();
-
-        // instantiate file object around directory to perform directory walk
-        // File rootDirectory = new File(thisDir); // thisDir = root_dir
-        File rootDirectory = new File(configuration.rootDir);
-
-        // Make sure the given directory path is valid
-        if (!rootDirectory.exists() || !rootDirectory.isDirectory()) {
-            System.err.println("FileTreeBrowser.getMatchingFiles() : Error - invalid directory path.");
-            return null;
-        } 
-
-        searchDirectory(rootDirectory, searchString, "", matchingFiles, substringMatch);
-        return matchingFiles;
-    }
-
-    /**
-     * Helper function which recursively looks through a directory for files/sub-directories that 
-     * match a given search string.
-     * 
-     * @param currentDirectory : the current directory to perform the search in.
-     * @param searchString : the string to perform substring matching to
-     * @param relativePath : the current relative path built so far 
-     * @param matchingFiles : ArrayList of files whose paths/file name substring match the given search string.
+     * Method to send out a tx download-request message to every node with download capability,
+     * in response to user using :download command with "*" as the target.
+     * All requests share one serial number, so that the download-results can be gathered 
+     * by a single SwarmDownload.
      */
-    public void searchDirectory(File currentDirectory, String searchString, 
-                                     String relativePath, ArrayList<File> matchingFiles, boolean substringMatch) {
-        // Obtain all files/subdirectories in current directory
-        File[] files = currentDirectory.listFiles();
+    public void txSwarmDownloadRequest(String fileString) {
+        ArrayList<DownloadRequestMessage> downloadRequestMessages = new ArrayList<>();
+
+        for (AdvertisementMessage advertisementMessage : advertisementReceiver.getAdvertisementMessages()) {
+            if (advertisementMessage.isDownloadPossible()) {
+                DownloadRequestMessage downloadRequestMessage = new DownloadRequestMessage(fileString, advertisementMessage.getIdentifier());
+                if (!downloadRequestMessages.isEmpty()) {
+                    downloadRequestMessage.setSerialNo(downloadRequestMessages.get(0).getSerialNo());
+                }
+                downloadRequestMessages.add(downloadRequestMessage);
+            }
+        }
 
-        if (files == null) {
+        if (downloadRequestMessages.isEmpty()) {
+            System.out.println(RED + "[DOWNLOAD ERROR]" + RESET + " : no nodes with download capability in multicast group.");
+            System.out.println(DOWNRIGHTARROW + "HINT : use the " + REVERSED + ":nodes" + RESET + " command before to check capabilities.");
             return;
         }
 
-        // Iterate through files 
-        for (File file : files ) {
-            String currentRelativePath = 
-                        relativePath.isEmpty() ? file.getName() : relativePath + File.separator + file.getName();
+        long serialNo = downloadRequestMessages.get(0).getSerialNo();
+        SwarmDownload swarmDownload = new SwarmDownload(this, fileString, serialNo, downloadRequestMessages.size());
+        downloadResponseReceiver.addSwarmDownload(serialNo, swarmDownload);
 
-            // System.out.println("------------------------");
-            // System.out.println(file.getAbsolutePath());
-            // System.out.println(searchString);
+        for (DownloadRequestMessage downloadRequestMessage : downloadRequestMessages) {
+            txMessage(downloadRequestMessage);
+        }
 
-            // if we get a substring match
-            if (substringMatch && file.getAbsolutePath().contains(searchString)) {
-                matchingFiles.add(file);
-            } else if (!substringMatch && file.getAbsolutePath().split("code/")[1].equals(searchString)) {
-                matchingFiles.add(file);
-            }
+        Thread t = new Thread(swarmDownload);
+        t.start();
+    }
 
-            // if directory, further explore the sub-directory
-            if (file.isDirectory()) {
-                searchDirectory(file, searchString, currentRelativePath, matchingFiles, substringMatch);
-            }
+    /**
+     * Method to retrieve all files and directories that match a search string.
+     * Answered from the in-memory file catalog, so no directory walk is performed, 
+     * and from the search cache when the same search was made before.
+     * @param searchString : the search string provided by search-request.
+     * @param searchType : one of "path", "path-filename" or "path-filename-substring".
+     * @return ArrayList of catalog entries whose paths/file name match the given search string.
+     */
+    public ArrayList<FileCatalog.Entry> getMatchingFiles(String searchString, String searchType) {
+        long start = System.nanoTime();
+        try {
+            return searchCache.search(searchString, searchType);
+        } finally {
+            configuration.metrics.histogram("search.ns").record(System.nanoTime() - start);
         }
-  
-  }
-
+    }
 
 }
\ No newline at end of file
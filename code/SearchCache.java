@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of search results, in front of FileCatalog.search(), as the same
+ * few queries tend to be sent by many nodes.
+ *
+ * Results are keyed by search type and the lower case search string (every search type is case
+ * insensitive). The cache follows the FileCatalog, and when an entry under the root directory is
+ * added, changed or removed only the cached queries that entry matches are dropped, so a cached
+ * result is never out of date and unrelated queries stay cached.
+ *
+ * The cache is bounded by an estimate of the memory it holds (maxBytes), rather than by the number
+ * of queries, as one broad query can match the whole catalog.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class SearchCache implements FileCatalog.Listener {
+    private static final int ENTRY_OVERHEAD  = 96; // bytes, estimate of map entry, key and list objects
+    private static final int RESULT_OVERHEAD = 8;  // bytes, estimate of each reference in a result list
+
+    private Configuration configuration;
+    private FileCatalog   fileCatalog;
+    private long          maxBytes;     // most bytes held, 0 disables the cache
+    private long          bytes;        // estimate of bytes held, guarded by cache
+
+    private final LinkedHashMap<String, Cached> cache; // searchType:query -> results, least recently used first
+
+    private final AtomicLong changes;        // catalog changes seen, results computed across a change are not cached
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong invalidations;  // cached queries dropped because a matching entry changed
+    private final AtomicLong evictions;      // cached queries dropped to stay under maxBytes
+
+    /**
+     * Cached results of one query.
+     */
+    private static class Cached {
+        final String                       searchString;
+        final String                       searchType;
+        final ArrayList<FileCatalog.Entry> results;
+        final long                         bytes;
+
+        Cached(String searchString, String searchType, ArrayList<FileCatalog.Entry> results, long bytes) {
+            this.searchString = searchString;
+            this.searchType   = searchType;
+            this.results      = results;
+            this.bytes        = bytes;
+        }
+    }
+
+    /**
+     * Constructor for SearchCache, following changes to the given catalog.
+     *
+     * @param configuration : configuration of current machine.
+     * @param fileCatalog   : the catalog searches are answered from.
+     */
+    public SearchCache(Configuration configuration, FileCatalog fileCatalog) {
+        this.configuration = configuration;
+        this.fileCatalog   = fileCatalog;
+        this.maxBytes      = configuration.searchCacheSize;
+        this.cache         = new LinkedHashMap<>(16, 0.75f, true);
+        this.changes       = new AtomicLong();
+        this.hits          = new AtomicLong();
+        this.misses        = new AtomicLong();
+        this.invalidations = new AtomicLong();
+        this.evictions     = new AtomicLong();
+
+        fileCatalog.addListener(this);
+    }
+
+    /**
+     * Returns all entries matching the search string, from the cache if possible.
+     *
+     * @param searchString : the string to match against.
+     * @param searchType   : one of "path", "path-filename" or "path-filename-substring".
+     * @return ArrayList of matching entries, the caller's own copy.
+     */
+    public ArrayList<FileCatalog.Entry> search(String searchString, String searchType) {
+        if (maxBytes <= 0) {
+            return fileCatalog.search(searchString, searchType);
+        }
+
+        String key = searchType + ":" + searchString.toLowerCase(Locale.ROOT);
+
+        synchronized (cache) {
+            Cached cached = cache.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return new ArrayList<>(cached.results);
+            }
+        }
+        misses.incrementAndGet();
+
+        long changesBefore = changes.get();
+        ArrayList<FileCatalog.Entry> results = fileCatalog.search(searchString, searchType);
+        long size = ENTRY_OVERHEAD + 2L * key.length() + (long) RESULT_OVERHEAD * results.size();
+
+        synchronized (cache) {
+            // Not cached if the catalog changed while searching (it may already be out of date), or it would fill the cache alone
+            if (changes.get() == changesBefore && size <= maxBytes / 4) {
+                Cached replaced = cache.put(key, new Cached(searchString, searchType, new ArrayList<>(results), size));
+                bytes += size - (replaced == null ? 0 : replaced.bytes);
+                evict();
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void entryChanged(FileCatalog.Entry entry) {
+        invalidate(entry);
+    }
+
+    @Override
+    public void entryRemoved(FileCatalog.Entry entry) {
+        invalidate(entry);
+    }
+
+    @Override
+    public void catalogRebuilt() {
+        changes.incrementAndGet();
+        synchronized (cache) {
+            invalidations.addAndGet(cache.size());
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Returns the hit/miss counts, e.g "hits=12 misses=3 (80.0%), 5 cached (1 KB), 2 invalidated, 0 evicted".
+     */
+    public String getStatsString() {
+        long h = hits.get();
+        long m = misses.get();
+        int cached;
+        long cachedBytes;
+        synchronized (cache) {
+            cached = cache.size();
+            cachedBytes = bytes;
+        }
+
+        return "hits=" + h + " misses=" + m + String.format(" (%.1f%%)", h + m == 0 ? 0.0 : 100.0 * h / (h + m)) + ", " +
+               cached + " cached (" + (cachedBytes / 1024) + " KB), " + invalidations.get() + " invalidated, " + evictions.get() + " evicted";
+    }
+
+    /**
+     * Returns the number of searches answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of searches answered from the catalog.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Drops every cached query the added, changed or removed entry matches.
+     */
+    private void invalidate(FileCatalog.Entry entry) {
+        changes.incrementAndGet();
+        synchronized (cache) {
+            Iterator<Cached> iterator = cache.values().iterator();
+            while (iterator.hasNext()) {
+                Cached cached = iterator.next();
+                if (fileCatalog.matches(entry, cached.searchString, cached.searchType)) {
+                    iterator.remove();
+                    bytes -= cached.bytes;
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the least recently used queries until under maxBytes. Caller must hold the cache lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Cached>> iterator = cache.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
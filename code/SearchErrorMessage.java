@@ -45,13 +45,27 @@ public class SearchErrorMessage extends Message {
          * responseSerialNo == serialNo
          */
 
-        super(identifier.split("@")[0], identifier.split("@")[1], timestamp, identifier, serialNo);
+        super(usernameOf(identifier), hostnameOf(identifier), timestamp, identifier, serialNo);
 
         this.responseIdentifier = responseIdentifier;
         this.responseSerialNo = responseSerialNo;
     }
 
 
+    /**
+     * Getter function for responseIdentifier.
+     */
+    public String getResponseIdentifier() {
+        return responseIdentifier;
+    }
+
+    /**
+     * Getter function for responseSerialNo.
+     */
+    public long getResponseSerialNo() {
+        return responseSerialNo;
+    }
+
     /**
      * Returns the a string indicating the type of message
      */
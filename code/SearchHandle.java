@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handle on a search-request sent by this node, returned by MulticastHandler.txSearchRequest().
+ *
+ * The search-results and search-errors answering the request (matched by their response serial
+ * number) are gathered here as they arrive. The search is complete once every node known to offer
+ * search has answered (a search-error, or every part of its search-results), or at the deadline,
+ * whichever is first, and getFuture() then completes with every result received.
+ *
+ * The time from sending the request to each node's first response is recorded as that node's latency.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class SearchHandle {
+    private String      searchString;
+    private long        serialNo;      // serial number of the search-request
+    private long        startTime;     // ns (System.nanoTime()) the search-request was sent
+    private Set<String> peers;         // identifiers of the nodes expected to answer
+
+    private final ArrayList<Result>           results;
+    private final Set<String>                 answered;   // nodes that have answered in full
+    private final LinkedHashMap<String, Long> latencies;  // node identifier -> ns to first response, in order of response
+    private final CompletableFuture<List<Result>> future;
+
+    /**
+     * A single search result : a file path on a node.
+     */
+    public static class Result {
+        private final String identifier; // node holding the file
+        private final String path;       // logical path of the file on that node
+
+        public Result(String identifier, String path) {
+            this.identifier = identifier;
+            this.path       = path;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return path + " @ " + identifier;
+        }
+    }
+
+    /**
+     * Constructor for SearchHandle.
+     *
+     * @param searchString : the search string sent.
+     * @param serialNo     : serial number of the search-request, responses carry it as their response serial number.
+     * @param peers        : identifiers of the nodes expected to answer (those advertising search).
+     */
+    public SearchHandle(String searchString, long serialNo, Set<String> peers) {
+        this.searchString = searchString;
+        this.serialNo     = serialNo;
+        this.startTime    = System.nanoTime();
+        this.peers        = new HashSet<>(peers);
+        this.results      = new ArrayList<>();
+        this.answered     = new HashSet<>();
+        this.latencies    = new LinkedHashMap<>();
+        this.future       = new CompletableFuture<>();
+    }
+
+    /**
+     * Adds the results of a search-result (or records a search-error) from a node.
+     *
+     * @param message  : a SearchResultMessage or SearchErrorMessage answering this search.
+     * @param complete : whether the node has now answered in full (a search-error, or its last search-result part).
+     */
+    public synchronized void addResponse(Message message, boolean complete) {
+        if (future.isDone()) {
+            return;
+        }
+
+        String identifier = message.getIdentifier();
+        latencies.putIfAbsent(identifier, System.nanoTime() - startTime);
+
+        if (message instanceof SearchResultMessage) {
+            for (String path : ((SearchResultMessage) message).getSearchResults()) {
+                results.add(new Result(identifier, path));
+            }
+        }
+
+        if (complete) {
+            answered.add(identifier);
+            if (!peers.isEmpty() && answered.containsAll(peers)) {
+                complete();
+            }
+        }
+    }
+
+    /**
+     * Completes the search with the results received so far (called at the deadline), if not already complete.
+     */
+    public synchronized void complete() {
+        future.complete(Collections.unmodifiableList(new ArrayList<>(results)));
+    }
+
+    /**
+     * Returns a future completing with every result, once every node has answered or at the deadline.
+     */
+    public CompletableFuture<List<Result>> getFuture() {
+        return future;
+    }
+
+    /**
+     * Returns the results received so far.
+     */
+    public synchronized List<Result> getResults() {
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Returns the ms from sending the search-request to each node's first response, in order of response.
+     */
+    public synchronized Map<String, Double> getLatencies() {
+        LinkedHashMap<String, Double> latenciesMs = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> latency : latencies.entrySet()) {
+            latenciesMs.put(latency.getKey(), latency.getValue() / 1e6);
+        }
+        return latenciesMs;
+    }
+
+    /**
+     * Returns the number of nodes that answered in full.
+     */
+    public synchronized int getNumAnswered() {
+        return answered.size();
+    }
+
+    /**
+     * Returns the number of nodes expected to answer.
+     */
+    public int getNumPeers() {
+        return peers.size();
+    }
+
+    public String getSearchString() {
+        return searchString;
+    }
+
+    public long getSerialNo() {
+        return serialNo;
+    }
+}
@@ -37,7 +37,7 @@ public class SearchRequestMessage extends Message {
      * @param serialNo      : serialNo of received advertisement.
      */
     public SearchRequestMessage(String searchString, String timestamp, String identifier, long serialNo) {
-        super(identifier.split("@")[0], identifier.split("@")[1], timestamp, identifier, serialNo);
+        super(usernameOf(identifier), hostnameOf(identifier), timestamp, identifier, serialNo);
 
         this.searchString = searchString;
     }
@@ -73,10 +73,18 @@ public class SearchRequestMessage extends Message {
 
         SearchRequestMessage msg = (SearchRequestMessage) obj;
 
-        return (msg.getIdentifier() == this.getIdentifier()) &&
+        return msg.getIdentifier().equals(this.getIdentifier()) &&
                (msg.getSerialNo() == this.getSerialNo());
     }
 
+    /**
+     * hashCode consistent with equals(), on identifier and serial number.
+     */
+    @Override
+    public int hashCode() {
+        return 31 * getIdentifier().hashCode() + Long.hashCode(getSerialNo());
+    }
+
     /**
      * 
      */
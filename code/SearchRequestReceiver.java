@@ -9,18 +9,20 @@ import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * Runnable task for managing received search-request messages from other nodes.
+ * Task for managing received search-request messages from other nodes.
  * In charge of receiving incoming requests, storing them, and then responding to them
  * with search-response messages.
  * 
+ * Requests are queued on a MessageDispatcher and answered by searchRequestThreads 
+ * consumer threads as soon as they arrive.
  * 
  * @author 190015412
  * @since November 2024
  */
-public class SearchRequestReceiver implements Runnable {
+public class SearchRequestReceiver {
     private MulticastHandler multicastHandler;
     private Configuration configuration;
-    private final BlockingQueue<SearchRequestMessage> searchRequests;
+    private final MessageDispatcher<SearchRequestMessage> searchRequests;
 
     /**
      * Constructor. 
@@ -28,33 +30,38 @@ public class SearchRequestReceiver implements Runnable {
     public SearchRequestReceiver(MulticastHandler multicastHandler) {
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
-        this.searchRequests = new LinkedBlockingQueue<>();
+        this.searchRequests = new MessageDispatcher<>("search-request", configuration.dispatchQueueSize, 
+                                                      configuration.searchRequestThreads, this::processSearchRequest);
     }
 
     /**
-     * Process a rx search-request messages
-     * This task should be scheduled by threadpool to constantly be processing 
-     * received search-request messages at some interval.
+     * Starts answering rx search-request messages.
      */
-    @Override
-    public void run() {
-        try {
-            processSearchRequests();
-        } catch (InterruptedException e) {
-            System.out.println("SearchRequestReceiver.run() : InterruptedException -> " + e.getMessage());
-        }
-        
+    public void start() {
+        searchRequests.start();
     }
 
+    /**
+     * Stops answering rx search-request messages.
+     */
+    public void stop() {
+        searchRequests.stop();
+    }
 
     /**
-     * Function for processing search requests
+     * Returns the dispatcher queueing rx search-request messages.
+     */
+    public MessageDispatcher<SearchRequestMessage> getDispatcher() {
+        return searchRequests;
+    }
+
+
+    /**
+     * Function for processing a search request
      * This includes processing the information in the rx search-request,
      * then sending out a corresponding search-response. 
      */
-    public void processSearchRequests() throws InterruptedException {
-        SearchRequestMessage msg = searchRequests.take();
-
+    public void processSearchRequest(SearchRequestMessage msg) {
         // Shouldn't ever be null, but check just in case
         if (msg != null) {
             // the query [filename | filepath | substring]
@@ -67,21 +74,21 @@ public class SearchRequestReceiver implements Runnable {
             Long serialNo     = msg.getSerialNo();
             String timestamp  = msg.getTimestamp();
 
-            ArrayList<File> matchingFiles = multicastHandler.getMatchingFiles(searchString, true);
+            ArrayList<FileCatalog.Entry> matchingFiles = multicastHandler.getMatchingFiles(searchString, configuration.searchType);
 
             // If no matching results were found 
             if (matchingFiles == null || matchingFiles.isEmpty()) {
                 SearchErrorMessage response = new SearchErrorMessage(identifier, serialNo);
                 multicastHandler.txMessage(response);
             } else {
-                // iterate through each result and send separate search-result for each
-                for (File file : matchingFiles) {
-                    String rootDir = configuration.rootDir;
-
-                    // Get path relative to root_dir
-                    String path = rootDir + file.getAbsolutePath().split(rootDir)[1];
-                    SearchResultMessage response = new SearchResultMessage(identifier, serialNo, path);
+                // Logical paths are already relative to root_dir
+                ArrayList<String> paths = new ArrayList<>(matchingFiles.size());
+                for (FileCatalog.Entry entry : matchingFiles) {
+                    paths.add(entry.getLogicalPath());
+                }
 
+                // pack as many results as fit into each search-result
+                for (SearchResultMessage response : SearchResultMessage.pack(identifier, serialNo, paths, configuration.maximumMessageSize)) {
                     multicastHandler.txMessage(response);
                 }
             }
@@ -94,11 +101,7 @@ public class SearchRequestReceiver implements Runnable {
      * Adds an incoming search-request message to queue.
      */
     public void addSearchRequest(SearchRequestMessage searchRequestMessage) {
-        // if (!searchRequests.contains(searchRequestMessage)) {
-        //     searchRequests.add(searchRequestMessage);
-        // } else {
-
-        // }
-        searchRequests.add(searchRequestMessage);
+        // Repeats have already been dropped by the MulticastHandler's DuplicateFilter
+        searchRequests.dispatch(searchRequestMessage);
     }
 } 
\ No newline at end of file
@@ -7,15 +7,24 @@ import java.util.concurrent.TimeUnit;
 
 
 /**
- * Runnable task for managing rx search-response messaages from other remote nodes
+ * Task for managing rx search-response messaages from other remote nodes
  * in multicast group.
  * 
  * Takes incoming response messages, queues them, then processes them (prints them out)
+ * on a MessageDispatcher consumer thread as soon as they arrive.
+ * 
+ * The results of one responder come in numbered parts (see SearchResultMessage), which are 
+ * tracked until the last part and every part before it has arrived. Results are printed as 
+ * each part arrives, and a responder whose parts are still incomplete 2 x sleepTime after its 
+ * latest part is reported with the parts that were lost.
+ * 
+ * Responses to a search started with MulticastHandler.txSearchRequest() are also handed to its 
+ * SearchHandle (matched by response serial number), which gathers them for the caller.
  * 
  * @author 190015412
  * @since November 2024
  */
-public class SearchResponseReceiver implements Runnable {
+public class SearchResponseReceiver {
     /**
      * ANSI escape codes for colored cmd output
      */
@@ -27,7 +36,19 @@ public class SearchResponseReceiver implements Runnable {
 
     private MulticastHandler multicastHandler;
     private Configuration configuration;
-    private final BlockingQueue<Message> searchResponses;
+    private final MessageDispatcher<Message> searchResponses;
+    private final ConcurrentHashMap<String, ResultParts> resultParts; // responder identifier:request serialNo -> parts received
+    private final ConcurrentHashMap<Long, SearchHandle>  searches;    // serial no of search-request -> handle on the search
+
+    /**
+     * Parts of the results from one responder received so far.
+     */
+    private static class ResultParts {
+        final BitSet received = new BitSet();
+        int  lastPart = -1;   // number of the part marked "end", -1 until it arrives
+        int  numResults;
+        long deadline;        // ms, when the parts still missing are reported lost
+    }
 
     /**
      * Constructor for SearchResponseReceiver.
@@ -35,19 +56,32 @@ public class SearchResponseReceiver implements Runnable {
     public SearchResponseReceiver(MulticastHandler multicastHandler) {
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
-        this.searchResponses = new LinkedBlockingQueue<>();
+        this.resultParts = new ConcurrentHashMap<>();
+        this.searches = new ConcurrentHashMap<>();
+        this.searchResponses = new MessageDispatcher<>("search-response", configuration.dispatchQueueSize, 
+                                                       configuration.searchResponseThreads, this::processSearchResponses);
     }
 
 
     /**
-     * Print out search-resposnes messages while there are any in the queue
+     * Starts printing out rx search-response messages.
      */
-    @Override 
-    public void run() {
-        while (!searchResponses.isEmpty()) {
-            Message responseMessage = searchResponses.poll();
-            processSearchResponses(responseMessage);
-        }
+    public void start() {
+        searchResponses.start();
+    }
+
+    /**
+     * Stops printing out rx search-response messages.
+     */
+    public void stop() {
+        searchResponses.stop();
+    }
+
+    /**
+     * Returns the dispatcher queueing rx search-response messages.
+     */
+    public MessageDispatcher<Message> getDispatcher() {
+        return searchResponses;
     }
 
     /**
@@ -56,24 +90,107 @@ public class SearchResponseReceiver implements Runnable {
      */
     public void processSearchResponses(Message responseMessage) {
         if (responseMessage.getType().equals("search-result")) {
-            String result = ((SearchResultMessage) responseMessage).getSearchResultString();
-            System.out.println(GREEN + "[Search Result] : " + RESET + REVERSED + result + RESET + " @ " + BLUE + responseMessage.getIdentifier() + RESET);
+            SearchResultMessage searchResultMessage = (SearchResultMessage) responseMessage;
+            for (String result : searchResultMessage.getSearchResults()) {
+                System.out.println(GREEN + "[Search Result] : " + RESET + REVERSED + result + RESET + " @ " + BLUE + responseMessage.getIdentifier() + RESET);
+            }
+            boolean complete = addResultPart(searchResultMessage);
+
+            SearchHandle search = searches.get(searchResultMessage.getResponseSerialNo());
+            if (search != null) {
+                search.addResponse(responseMessage, complete);
+            }
         } else if (responseMessage.getType().equals("search-error")) {
             System.out.println(RED + "[Search Error] :" +  RESET + " No Result @ " + BLUE + responseMessage.getIdentifier() + RESET);
+
+            SearchHandle search = searches.get(((SearchErrorMessage) responseMessage).getResponseSerialNo());
+            if (search != null) {
+                search.addResponse(responseMessage, true);
+            }
         }
     }
 
+    /**
+     * Registers a search, to be given the responses to the search-request with its serial number 
+     * until it completes.
+     */
+    public void addSearch(SearchHandle search) {
+        searches.put(search.getSerialNo(), search);
+        search.getFuture().whenComplete((results, e) -> searches.remove(search.getSerialNo()));
+    }
+
+    /**
+     * Records a part of a responder's results, reporting the results complete once every part has arrived.
+     * 
+     * @return whether every part of the responder's results has now arrived.
+     */
+    private boolean addResultPart(SearchResultMessage message) {
+        String key = message.getIdentifier() + ":" + message.getResponseSerialNo();
+        ResultParts parts = resultParts.computeIfAbsent(key, k -> new ResultParts());
+
+        synchronized (parts) {
+            parts.received.set(message.getPartNo());
+            parts.numResults += message.getSearchResults().size();
+            parts.deadline = System.currentTimeMillis() + 2L * configuration.sleepTime;
+            if (message.isLastPart()) {
+                parts.lastPart = message.getPartNo();
+            }
+
+            if (parts.lastPart >= 0 && parts.received.cardinality() == parts.lastPart + 1) {
+                resultParts.remove(key);
+                if (parts.lastPart > 0) {
+                    System.out.println(GREEN + "[Search Result] : " + RESET + parts.numResults + " results in " + (parts.lastPart + 1) + 
+                                       " parts @ " + BLUE + message.getIdentifier() + RESET);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reports and forgets the results of responders whose parts have stopped arriving before all of 
+     * them did. Scheduled by the MulticastHandler every sleepTime ms.
+     */
+    public void removeIncompleteResults() {
+        long now = System.currentTimeMillis();
+
+        resultParts.entrySet().removeIf(entry -> {
+            ResultParts parts = entry.getValue();
+            synchronized (parts) {
+                if (now < parts.deadline) {
+                    return false;
+                }
+
+                // Parts missing before the last part (or the latest part received, if the last has not come)
+                int last = parts.lastPart >= 0 ? parts.lastPart : parts.received.length() - 1;
+                ArrayList<Integer> missing = new ArrayList<>();
+                for (int part = parts.received.nextClearBit(0); part <= last; part = parts.received.nextClearBit(part + 1)) {
+                    missing.add(part);
+                }
+
+                String identifier = entry.getKey().substring(0, entry.getKey().lastIndexOf(':'));
+                System.out.println(RED + "[Search Error] :" + RESET + " Incomplete results @ " + BLUE + identifier + RESET + " : " + 
+                                   parts.numResults + " results received" + (missing.isEmpty() ? "" : ", parts " + missing + " lost") + 
+                                   (parts.lastPart < 0 ? ", last part not received" : ""));
+                configuration.log.writeLog("search-result parts lost @ " + entry.getKey() + " : " + missing + 
+                                           (parts.lastPart < 0 ? " and last part" : ""));
+                return true;
+            }
+        });
+    }
+
     /**
      * Adds an incoming search-response message to queue.
      */
     public void addSearchResponse(Message searchResponseMessage) {
-        searchResponses.add(searchResponseMessage);
+        searchResponses.dispatch(searchResponseMessage);
     }
 
     /**
-     * 
+     * Returns whether every rx search-response message queued has been taken for printing.
      */
     public boolean isEmpty() {
-        return searchResponses.isEmpty();
+        return searchResponses.getQueued() == 0;
     }
 }
\ No newline at end of file
@@ -6,39 +6,70 @@ import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.SocketAddress;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 
 /**
  * Class for SearchResultMessage.
  * Contains all protocol information for a search-result message 
  * 
+ * A search-result carries as many matching paths as fit in maximumMessageSize (see pack()).
+ * The results for one search-request are sent as parts numbered from 0, the last one marked
+ * "end", so that the requester can tell when it has them all and whether any were lost.
+ * 
+ * In text form the paths of a part are joined by SEPARATOR, with any "|" or "\" within a
+ * path escaped by a "\" (see joinResults() and splitResults()).
+ * 
  * @author 190015412 
  * @since November 2024
  */
 public class SearchResultMessage extends Message {
-    private String searchResultString;  // The path to file matching request query
-    private String responseIdentifier;  // The response identifier 
-    private long   responseSerialNo;    // the response serial number
+    public static final String SEPARATOR   = "|";    // between the paths of one part (escaped within a path)
+    public static final char   ESCAPE      = '\\';   // escapes a SEPARATOR or ESCAPE within a path
+    public static final String MORE        = "more"; // marks a part followed by more
+    public static final String END         = "end";  // marks the last part
+    public static final int    PACK_SLACK  = 16;     // bytes kept free when packing, the binary header is a little longer than the text one
+
+    private List<String> searchResults;       // The paths to files matching request query
+    private String       responseIdentifier;  // The response identifier 
+    private long         responseSerialNo;    // the response serial number
+    private int          partNo;              // number of this part of the results, from 0
+    private boolean      lastPart;            // whether this is the last part of the results
 
 
     /**
-     * Constructor for tx SearchResultMessage.
+     * Constructor for tx SearchResultMessage holding a single result, as the only part.
      * @param responseIdentifier   : the identifier of the host the sent received search-request
      * @param responseSerialNo     : the serial number used in the received search request - used to generate <response-id>
      * @param searchResultString     : the filepath to the files corresponding to searchquery in request.
      */
     public SearchResultMessage(String responseIdentifier, long responseSerialNo, String searchResultString) {
+        this(responseIdentifier, responseSerialNo, 0, true, new ArrayList<>(List.of(searchResultString)));
+    }
+
+    /**
+     * Constructor for tx SearchResultMessage holding one part of the results.
+     * @param responseIdentifier : the identifier of the host the sent received search-request
+     * @param responseSerialNo   : the serial number used in the received search request - used to generate <response-id>
+     * @param partNo             : number of this part of the results, from 0.
+     * @param lastPart           : whether this is the last part of the results.
+     * @param searchResults      : the filepaths in this part.
+     */
+    public SearchResultMessage(String responseIdentifier, long responseSerialNo, int partNo, boolean lastPart, List<String> searchResults) {
         super();
 
-        this.searchResultString = searchResultString;
+        this.searchResults = searchResults;
         this.responseIdentifier = responseIdentifier;
         this.responseSerialNo = responseSerialNo;
+        this.partNo = partNo;
+        this.lastPart = lastPart;
     }
 
     /**
-     * Constructor for rx SearchResultMessage.
+     * Constructor for rx SearchResultMessage holding a single result (a search-result without part number).
      * @param searchResultString : the result file string returned by remote machine.
      * @param responseSerialNo   : serial number used for original search-request
      * @param responseIdentifier : the identifier used by current machine for search-request.
@@ -48,19 +79,157 @@ public class SearchResultMessage extends Message {
      */
     public SearchResultMessage(String searchResultString, long responseSerialNo, String responseIdentifier, 
                                String timestamp, String identifier, long serialNo) {
+        this(List.of(searchResultString), 0, true, responseSerialNo, responseIdentifier, timestamp, identifier, serialNo);
+    }
+
+    /**
+     * Constructor for rx SearchResultMessage holding one part of the results.
+     * @param searchResults      : the result file strings in this part.
+     * @param partNo             : number of this part of the results, from 0.
+     * @param lastPart           : whether this is the last part of the results.
+     * @param responseSerialNo   : serial number used for original search-request
+     * @param responseIdentifier : the identifier used by current machine for search-request.
+     * @param timestamp          : the timestamp of the incoming search-result.
+     * @param identifier         : the identifier of the server that sent search-result.
+     * @param serialNo           : serialNo of received search-result.
+     */
+    public SearchResultMessage(List<String> searchResults, int partNo, boolean lastPart, long responseSerialNo, 
+                               String responseIdentifier, String timestamp, String identifier, long serialNo) {
 
-        super(identifier.split("@")[0], identifier.split("@")[1], timestamp, identifier, serialNo);
+        super(usernameOf(identifier), hostnameOf(identifier), timestamp, identifier, serialNo);
 
-        this.searchResultString = searchResultString;
+        this.searchResults = searchResults;
+        this.partNo = partNo;
+        this.lastPart = lastPart;
         this.responseSerialNo = responseSerialNo;
         this.responseIdentifier = responseIdentifier;
     }
 
     /**
-     * Getter function for searchResultString.
+     * Splits the results of a search-request into as few search-result messages as possible, 
+     * each no longer than maximumMessageSize (unless a single path is longer on its own).
+     * 
+     * @param responseIdentifier : the identifier of the host the sent received search-request
+     * @param responseSerialNo   : the serial number used in the received search request
+     * @param paths              : the matching filepaths, at least one.
+     * @param maximumMessageSize : maximum length of each message, in bytes.
+     * @return the parts, numbered from 0 with the last marked as such.
+     */
+    public static ArrayList<SearchResultMessage> pack(String responseIdentifier, long responseSerialNo, 
+                                                      List<String> paths, int maximumMessageSize) {
+        ArrayList<SearchResultMessage> parts = new ArrayList<>();
+        SearchResultMessage part = null;
+        int length = 0;
+
+        for (String path : paths) {
+            // Each path costs its (escaped) length + 2 : a separator as text, a length as binary
+            int pathLength = escape(path).length();
+            if (part != null && length + pathLength + 2 > maximumMessageSize) {
+                parts.add(part);
+                part = null;
+            }
+            if (part == null) {
+                part = new SearchResultMessage(responseIdentifier, responseSerialNo, parts.size(), false, new ArrayList<>());
+                length = part.toString().length() + PACK_SLACK;
+            }
+            part.searchResults.add(path);
+            length += pathLength + 2;
+        }
+
+        if (part != null) {
+            part.lastPart = true;
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * Getter function for the results in this part, joined by SEPARATOR (see joinResults()).
      */
     public String getSearchResultString() {
-        return searchResultString;
+        return joinResults(searchResults);
+    }
+
+    /**
+     * Joins paths by SEPARATOR, escaping any SEPARATOR or ESCAPE within a path.
+     */
+    public static String joinResults(List<String> paths) {
+        StringBuilder joined = new StringBuilder();
+        for (String path : paths) {
+            if (joined.length() > 0) {
+                joined.append(SEPARATOR);
+            }
+            joined.append(escape(path));
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Splits a string of paths joined by joinResults() back into the paths.
+     */
+    public static List<String> splitResults(String joined) {
+        ArrayList<String> paths = new ArrayList<>();
+        StringBuilder path = new StringBuilder();
+
+        for (int i = 0; i < joined.length(); i++) {
+            char c = joined.charAt(i);
+            if (c == ESCAPE && i + 1 < joined.length()) {
+                path.append(joined.charAt(++i));
+            } else if (c == SEPARATOR.charAt(0)) {
+                paths.add(path.toString());
+                path.setLength(0);
+            } else {
+                path.append(c);
+            }
+        }
+        paths.add(path.toString());
+        return paths;
+    }
+
+    /**
+     * Escapes any SEPARATOR or ESCAPE within a path.
+     */
+    private static String escape(String path) {
+        if (path.indexOf(SEPARATOR.charAt(0)) < 0 && path.indexOf(ESCAPE) < 0) {
+            return path;
+        }
+        return path.replace(String.valueOf(ESCAPE), String.valueOf(ESCAPE) + ESCAPE)
+                   .replace(SEPARATOR, ESCAPE + SEPARATOR);
+    }
+
+    /**
+     * Getter function for the results in this part.
+     */
+    public List<String> getSearchResults() {
+        return searchResults;
+    }
+
+    /**
+     * Getter function for responseIdentifier.
+     */
+    public String getResponseIdentifier() {
+        return responseIdentifier;
+    }
+
+    /**
+     * Getter function for responseSerialNo.
+     */
+    public long getResponseSerialNo() {
+        return responseSerialNo;
+    }
+
+    /**
+     * Getter function for partNo.
+     */
+    public int getPartNo() {
+        return partNo;
+    }
+
+    /**
+     * Returns whether this is the last part of the results.
+     */
+    public boolean isLastPart() {
+        return lastPart;
     }
 
     /**
@@ -73,12 +242,14 @@ public class SearchResultMessage extends Message {
 
     /**
      * toString method for converting message protocol information into suitable protocol message string.
-     * : <current identifier> : <current serialNo> : <current timestamp> : search-result : <identifier of request> : <request serialNo> : <result string> : 
+     * : <current identifier> : <current serialNo> : <current timestamp> : search-result : <identifier of request> : <request serialNo> : 
+     *   <part number> : <"more" | "end"> : <result string> | <result string> ... : 
      */
     @Override 
     public String toString() {
         String header = ":" + getIdentifier() + ":" + getSerialNo() + ":" + getTimestamp();
-        String payload = ":search-result:" + responseIdentifier + ":" + responseSerialNo + ":" + searchResultString + ":";
+        String payload = ":search-result:" + responseIdentifier + ":" + responseSerialNo + ":" + partNo + ":" + 
+                         (lastPart ? END : MORE) + ":" + getSearchResultString() + ":";
         return header + payload; 
     } 
-}
\ No newline at end of file
+}
@@ -0,0 +1,613 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Runnable task for downloading one file from several nodes at once (":download" with target "*").
+ *
+ * A download-request is sent to every node with download capability, all with the same serial
+ * number. The download-results received within the response window are grouped by file size, and
+ * the largest group is taken to be the candidate nodes. Each node is first asked for its
+ * ChunkManifest : the first manifest received fixes the chunks of the download and is used to
+ * verify every chunk, and nodes whose manifest has a different root hash are dropped as holding
+ * a different copy. Chunks failing verification are put back on the queue, and a node sending
+ * MAX_BAD_CHUNKS bad chunks is dropped.
+ *
+ * The file is split into the manifest's chunks (or chunks of swarmChunkSize bytes if no node has a
+ * manifest). Each node gets one FileClient connection,
+ * over which a worker thread requests one chunk (byte range) at a time from a shared queue,
+ * receives it into a buffer of its own and, once verified, writes it to its place in a shared
+ * ".part" file. Fast nodes therefore come back for more chunks more often, and work moves away
+ * from slow nodes as the download runs :
+ *   - a node much slower than the fastest one stops taking new chunks near the end of the file,
+ *   - once the queue is empty, idle fast nodes also fetch chunks still held by slower nodes
+ *     (whichever verified copy arrives first is written, later copies are dropped),
+ *   - chunks held by a node that fails are put back on the queue for the others.
+ *
+ * Completed chunks are recorded in a DownloadCheckpoint, so a swarm download of the same file
+ * that fails (or is interrupted by a restart) only fetches the chunks still missing next time,
+ * provided a node had a manifest (otherwise it starts over).
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class SwarmDownload implements Runnable {
+    /**
+     * ANSI escape codes for coloured cmd output
+     */
+    public static final String RESET = "\033[0m";
+    public static final String RED = "\033[31;1m";
+    public static final String GREEN = "\033[32;1m";
+    public static final String BLUE = "\033[36;1m";
+    public static final String REVERSED = "\u001b[7m";
+
+    public static final int SLOW_PEER_RATIO = 4; // a peer this many times slower than the fastest leaves the tail to others
+    public static final int MAX_BAD_CHUNKS  = 3; // chunks failing verification before a peer is dropped
+
+    private MulticastHandler multicastHandler;
+    private Configuration    configuration;
+    private String           fileString;        // file string of download-requests
+    private long             serialNo;          // serial number shared by the download-requests
+    private int              numRequests;       // number of download-requests sent
+    private long             responseDeadline;  // time (ms) after which no more responses are waited for
+
+    private final ArrayList<DownloadResultMessage> results;  // download-results received
+    private int                                     numResponses;
+
+    // Chunk state, guarded by this (set up once the first manifest is received, see manifestReceived())
+    private ArrayList<Peer>    peers;
+    private int                peersReported;     // peers that sent their manifest (or had none, or failed first)
+    private ChunkManifest      manifest;          // manifest every chunk is verified against, null if no peer had one
+    private Path               tempPath;          // shared ".part" file
+    private long               fileSize;
+    private long               chunkSize;
+    private int                numChunks;
+    private ArrayDeque<Integer> pendingChunks;    // chunks no peer has started
+    private BitSet             completedChunks;
+    private BitSet             writingChunks;     // verified chunks being written by a peer
+    private int[]              chunkHolders;      // number of peers fetching each chunk
+    private int                activePeers;       // peers whose worker has not finished
+    private FileChannel        fileChannel;       // shared ".part" file
+    private DownloadCheckpoint checkpoint;        // on-disk record of completed chunks
+
+    /**
+     * A node serving the file, and the download progress from it.
+     */
+    private class Peer implements Runnable {
+        final String identifier;
+        final String hostname;
+        final int    port;
+        final long   token;
+        long         bytesReceived;  // bytes of completed chunks
+        long         activeNanos;    // time spent receiving completed chunks
+        int          chunk = -1;     // chunk being fetched
+        int          numChunks;      // chunks completed first by this peer
+        int          badChunks;      // chunks that failed verification
+        boolean      reported;       // whether manifestReceived() has been called for this peer
+        boolean      writing;        // whether this peer is writing its chunk to the ".part" file
+        String       compression;    // compression ratio of the data received, null if none was compressed
+        boolean      failed;
+
+        Peer(DownloadResultMessage result) {
+            this.identifier = result.getIdentifier();
+            this.hostname   = result.getHostname();
+            this.port       = result.getFileTransferPort();
+            this.token      = result.getTransferToken();
+        }
+
+        /**
+         * Throughput in bytes per second, 0 until a chunk has been received.
+         */
+        double rate() {
+            return activeNanos == 0 ? 0 : bytesReceived / (activeNanos / 1e9);
+        }
+
+        /**
+         * Fetches chunks from this peer until there are none left for it.
+         */
+        @Override
+        public void run() {
+            FileClient fileClient = new FileClient(configuration, hostname, port, token);
+            Exception  failure = null;
+
+            try {
+                ChunkManifest peerManifest = fileClient.requestManifest();
+                if (fileClient.getFileSize() != fileSize || !manifestReceived(this, peerManifest)) {
+                    throw new IOException("copy differs from other nodes");
+                }
+
+                MessageDigest digest = ChunkManifest.newDigest();
+                ByteBuffer    buffer = null;
+
+                int chunk;
+                while ((chunk = nextChunk(this)) >= 0) {
+                    // Chunks are only set up once every peer has reported (see nextChunk())
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocate((int) chunkSize);
+                    }
+                    long offset = chunk * chunkSize;
+                    long length = Math.min(chunkSize, fileSize - offset);
+                    long start  = System.nanoTime();
+
+                    long rangeSize = fileClient.requestRange(offset, length);
+                    if (fileClient.getFileSize() != fileSize || rangeSize != length) {
+                        throw new IOException("file changed on " + identifier);
+                    }
+                    if (fileClient.receiveRange(buffer, length, digest) != length) {
+                        throw new EOFException("connection closed by " + hostname);
+                    }
+
+                    if (manifest != null && !manifest.verify(chunk, digest.digest())) {
+                        configuration.log.writeLog("rx-> chunk " + chunk + " from " + identifier + " failed verification");
+                        chunkFailed(this, chunk);
+                        if (++badChunks >= MAX_BAD_CHUNKS) {
+                            throw new IOException(badChunks + " chunks failed verification");
+                        }
+                        continue;
+                    }
+
+                    // Another copy of the chunk may have been written already (endgame)
+                    boolean written = claimChunk(this, chunk);
+                    if (written) {
+                        ByteBuffer data = buffer.duplicate().position(0).limit((int) length);
+                        while (data.hasRemaining()) {
+                            fileChannel.write(data, offset + data.position());
+                        }
+
+                        // Only recorded as done once it is on disk
+                        fileChannel.force(false);
+                        checkpoint.complete(chunk);
+                    }
+
+                    chunkCompleted(this, chunk, length, System.nanoTime() - start, written);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Any failure puts back the chunk held, or the other peers would wait for it forever
+                failure = e;
+            } finally {
+                if (fileClient.isDeflated()) {
+                    compression = String.format("%.2fx compressed", (double) fileClient.getBytesReceived() / Math.max(1, fileClient.getBytesOnWire()));
+                }
+                fileClient.close();
+                peerFinished(this, failure);
+            }
+        }
+    }
+
+    /**
+     * Constructor for SwarmDownload.
+     *
+     * @param multicastHandler : central multicast handler.
+     * @param fileString       : file string of the download-requests.
+     * @param serialNo         : serial number shared by the download-requests.
+     * @param numRequests      : number of download-requests sent.
+     */
+    public SwarmDownload(MulticastHandler multicastHandler, String fileString, long serialNo, int numRequests) {
+        this.multicastHandler = multicastHandler;
+        this.configuration    = multicastHandler.configuration;
+        this.fileString       = fileString;
+        this.serialNo         = serialNo;
+        this.numRequests      = numRequests;
+        this.results          = new ArrayList<>();
+        this.peers            = new ArrayList<>();
+
+        // allow slower nodes two sleepTime periods to respond
+        this.responseDeadline = System.currentTimeMillis() + 2L * configuration.sleepTime;
+    }
+
+    /**
+     * Adds a download-result or download-error received for one of the swarm's download-requests.
+     */
+    public synchronized void addResponse(Message responseMessage) {
+        numResponses++;
+
+        if (responseMessage.getType().equals("download-result")) {
+            results.add((DownloadResultMessage) responseMessage);
+        } else {
+            DownloadErrorMessage downloadErrorMessage = (DownloadErrorMessage) responseMessage;
+            if (downloadErrorMessage.isBusy()) {
+                System.out.println(RED + "[DOWNLOAD ERROR]" + RESET + " : Busy @ " + BLUE + responseMessage.getIdentifier() + RESET +
+                                   ", not used for swarm download");
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for the download-results, then downloads the file from every node holding an identical copy.
+     */
+    @Override
+    public void run() {
+        Metrics.Counter active = configuration.metrics.counter("download.active");
+        active.increment();
+        try {
+            List<DownloadResultMessage> sources = awaitSources();
+
+            if (sources.isEmpty()) {
+                System.out.println(RED + "[DOWNLOAD ERROR]" + RESET + " : No node found with a unique match for " +
+                                   REVERSED + fileString + RESET);
+                return;
+            }
+
+            download(sources);
+        } catch (InterruptedException e) {
+            System.err.println("SwarmDownload.run() : InterruptedException -> " + e.getMessage());
+        } finally {
+            active.decrement();
+            multicastHandler.downloadResponseReceiver.removeSwarmDownload(serialNo);
+        }
+    }
+
+    /**
+     * Waits until every node has responded (or the response window is over), then picks
+     * the nodes to download from : the largest group of download-results with the same file size.
+     */
+    private synchronized List<DownloadResultMessage> awaitSources() throws InterruptedException {
+        long now;
+        while (numResponses < numRequests && (now = System.currentTimeMillis()) < responseDeadline) {
+            wait(responseDeadline - now);
+        }
+
+        HashMap<Long, List<DownloadResultMessage>> resultsBySize = new HashMap<>();
+        for (DownloadResultMessage result : results) {
+            if (result.getFileSize() >= 0) {
+                resultsBySize.computeIfAbsent(result.getFileSize(), k -> new ArrayList<>()).add(result);
+            }
+        }
+
+        List<DownloadResultMessage> sources = new ArrayList<>();
+        for (List<DownloadResultMessage> group : resultsBySize.values()) {
+            if (group.size() > sources.size()) {
+                sources = group;
+            }
+        }
+
+        for (DownloadResultMessage result : results) {
+            if (!sources.contains(result)) {
+                System.out.println("Skipping " + BLUE + result.getIdentifier() + RESET + " : copy differs from other nodes");
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Downloads the file in chunks from the given nodes, one worker thread per node.
+     */
+    private void download(List<DownloadResultMessage> sources) throws InterruptedException {
+        String fileName = new File(fileString).getName();
+        File file = new File(configuration.downloadDir + "/swarm/" + fileName);
+        tempPath = new File(file.getPath() + ".part").toPath();
+
+        System.out.println(GREEN + "[DOWNLOAD RESULT]" + RESET + " found file @ " + BLUE + sources.size() + RESET + " nodes");
+        System.out.println("Initiating swarm file transfer...");
+
+        long start = System.nanoTime();
+        boolean complete;
+
+        try {
+            File parentDir = file.getParentFile();
+            if (!parentDir.exists() && !parentDir.mkdirs()) {
+                throw new IOException("Failed to create directory: " + parentDir.getAbsolutePath());
+            }
+
+            fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+            synchronized (this) {
+                fileSize = sources.get(0).getFileSize();
+
+                // Size the file up front so the file system can lay it out in one go
+                if (fileChannel.size() != fileSize) {
+                    try (RandomAccessFile raf = new RandomAccessFile(tempPath.toFile(), "rw")) {
+                        raf.setLength(fileSize);
+                    }
+                }
+
+                for (DownloadResultMessage source : sources) {
+                    peers.add(new Peer(source));
+                }
+                activePeers = peers.size();
+            }
+
+            for (Peer peer : peers) {
+                Thread t = new Thread(peer);
+                t.setDaemon(true);
+                t.start();
+            }
+
+            synchronized (this) {
+                while (!isComplete() && activePeers > 0) {
+                    wait();
+                }
+                complete = isComplete();
+            }
+
+            // Workers still fetching duplicated chunks stop once the file is closed
+            fileChannel.close();
+
+            if (complete) {
+                moveIntoPlace(tempPath, file.toPath());
+                checkpoint.delete();
+                tempPath = null;
+            }
+        } catch (IOException e) {
+            System.err.println("SwarmDownload.download() : IOException -> " + e.getMessage());
+            complete = false;
+        } finally {
+            try {
+                if (fileChannel != null) {
+                    fileChannel.close();
+                }
+                if (tempPath != null && checkpoint != null && checkpoint.isResumable() && checkpoint.getBytesCompleted() > 0) {
+                    // Keep what was received, to be resumed by the next swarm download of the file
+                    System.out.println("Partial download of " + REVERSED + "[" + fileName + "]" + RESET + " kept (" + 
+                                       checkpoint.getBytesCompleted() + " of " + fileSize + " bytes), use " + REVERSED + ":download" + RESET + 
+                                       " again to resume.");
+                } else if (tempPath != null) {
+                    // Never leave a truncated file behind
+                    Files.deleteIfExists(tempPath);
+                    if (checkpoint != null) {
+                        checkpoint.delete();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("SwarmDownload.download() : Failed to delete " + tempPath + " -> " + e.getMessage());
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (!complete) {
+            System.out.println(RED + "[DOWNLOAD ERROR]" + RESET + " : swarm download of " + REVERSED + fileName + RESET + " failed");
+            return;
+        }
+
+        configuration.metrics.counter("download.bytes").add(fileSize);
+        configuration.metrics.histogram("download.bytes/s").record((long) (fileSize / Math.max(seconds, 1e-9)));
+        configuration.log.writeLog("rx-> received " + fileSize + " bytes of " + fileName + " from " + peers.size() + " nodes" + 
+                                   (manifest != null ? ", all chunks verified" : ""));
+        System.out.println("Downloaded file " + REVERSED + "[" + fileName + "]" + RESET + " from " + BLUE + peers.size() + RESET +
+                           " nodes in " + String.format("%.2f", seconds) + " s");
+
+        synchronized (this) {
+            for (Peer peer : peers) {
+                System.out.println("     " + BLUE + peer.identifier + RESET + " : " + peer.numChunks + " chunks, " +
+                                   String.format("%.1f", peer.rate() / (1024 * 1024)) + " MB/s" + (peer.compression != null ? ", " + peer.compression : "") + 
+                                   (peer.failed ? RED + " (failed)" + RESET : ""));
+            }
+        }
+    }
+
+    /**
+     * Records the manifest sent by a peer. The first manifest sets up the chunks of the download 
+     * (resuming from any checkpoint), later ones must have the same root hash. Without any manifest 
+     * the chunks are set up once every peer has reported.
+     * 
+     * @param peerManifest : the peer's manifest, or null if it has none.
+     * @return false if the peer's copy differs from the one being downloaded.
+     */
+    private synchronized boolean manifestReceived(Peer peer, ChunkManifest peerManifest) {
+        peer.reported = true;
+        peersReported++;
+
+        if (completedChunks != null) {
+            return peerManifest == null || manifest == null || Arrays.equals(peerManifest.getRootHash(), manifest.getRootHash());
+        }
+
+        if (peerManifest != null) {
+            setUpChunks(peerManifest);
+        } else if (peersReported == peers.size()) {
+            setUpChunks(null);
+        }
+        return true;
+    }
+
+    /**
+     * Splits the file into chunks, loading the checkpoint of any earlier attempt.
+     * 
+     * @param manifest : manifest to verify chunks against, or null to use swarmChunkSize unverified chunks.
+     */
+    private void setUpChunks(ChunkManifest manifest) {
+        this.manifest   = manifest;
+        chunkSize       = manifest != null ? manifest.getChunkSize() : Math.max(1, configuration.swarmChunkSize);
+        checkpoint      = DownloadCheckpoint.load(tempPath, fileSize, chunkSize, manifest != null ? manifest.getRootHash() : null);
+        numChunks       = checkpoint.getNumChunks();
+        pendingChunks   = new ArrayDeque<>();
+        chunkHolders    = new int[numChunks];
+        completedChunks = new BitSet(numChunks);
+        writingChunks   = new BitSet(numChunks);
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            if (checkpoint.isComplete(chunk)) {
+                completedChunks.set(chunk);
+            } else {
+                pendingChunks.add(chunk);
+            }
+        }
+
+        if (completedChunks.cardinality() > 0) {
+            System.out.println("Resuming swarm download, " + completedChunks.cardinality() + " of " + numChunks + 
+                               " chunks already received");
+        }
+        if (manifest == null) {
+            System.out.println("No chunk manifest from any node, file data will not be verified");
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the next chunk for a peer to fetch, waiting while none is worth giving it.
+     *
+     * @return chunk number, or -1 once the download is complete.
+     */
+    private synchronized int nextChunk(Peer peer) {
+        peer.chunk = -1;
+
+        while (!isComplete()) {
+            // Still waiting for the other peers' manifests
+            if (completedChunks == null) {
+                try {
+                    wait(configuration.sleepTime);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+                continue;
+            }
+
+            // Near the end of the file, leave the remaining chunks to faster peers
+            boolean leaveTail = pendingChunks.size() <= activePeers && isSlow(peer);
+
+            if (!pendingChunks.isEmpty() && !leaveTail) {
+                return hold(peer, pendingChunks.poll());
+            }
+
+            // Endgame : also fetch the chunk held by the slowest peer that is slower than this one
+            if (pendingChunks.isEmpty()) {
+                Peer slowest = null;
+                for (Peer other : peers) {
+                    if (other != peer && other.chunk >= 0 && chunkHolders[other.chunk] == 1 &&
+                        (slowest == null || other.rate() < slowest.rate())) {
+                        slowest = other;
+                    }
+                }
+                if (slowest != null && peer.rate() > slowest.rate()) {
+                    return hold(peer, slowest.chunk);
+                }
+            }
+
+            try {
+                wait(configuration.sleepTime);
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records that a peer is fetching a chunk.
+     */
+    private int hold(Peer peer, int chunk) {
+        peer.chunk = chunk;
+        chunkHolders[chunk]++;
+        return chunk;
+    }
+
+    /**
+     * Claims the writing of a verified chunk for a peer, false if the chunk has already been
+     * written (or is being written) from another peer's copy.
+     */
+    private synchronized boolean claimChunk(Peer peer, int chunk) {
+        if (completedChunks.get(chunk) || writingChunks.get(chunk)) {
+            return false;
+        }
+        writingChunks.set(chunk);
+        peer.writing = true;
+        return true;
+    }
+
+    /**
+     * Records a verified chunk received from a peer.
+     *
+     * @param written : whether the peer's copy was written to the ".part" file (see claimChunk()).
+     */
+    private synchronized void chunkCompleted(Peer peer, int chunk, long length, long nanos, boolean written) {
+        chunkHolders[chunk]--;
+        peer.chunk = -1;
+        peer.bytesReceived += length;
+        peer.activeNanos += nanos;
+
+        if (written) {
+            writingChunks.clear(chunk);
+            peer.writing = false;
+            completedChunks.set(chunk);
+            peer.numChunks++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Records that a chunk received from a peer failed verification, putting it back on the queue.
+     */
+    private synchronized void chunkFailed(Peer peer, int chunk) {
+        chunkHolders[chunk]--;
+        peer.chunk = -1;
+
+        if (chunkHolders[chunk] == 0 && !completedChunks.get(chunk)) {
+            pendingChunks.addFirst(chunk);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Records that a peer's worker has finished, putting back the chunk it held if it failed.
+     */
+    private synchronized void peerFinished(Peer peer, Exception failure) {
+        activePeers--;
+
+        // Failed before its manifest, the others may have been waiting for it
+        if (!peer.reported) {
+            peer.reported = true;
+            peersReported++;
+            if (completedChunks == null && peersReported == peers.size()) {
+                setUpChunks(null);
+            }
+        }
+
+        if (failure != null && !isComplete()) {
+            peer.failed = true;
+            System.out.println(RED + "[DOWNLOAD ERROR]" + RESET + " : " + BLUE + peer.identifier + RESET +
+                               " dropped from swarm download -> " +
+                               (failure instanceof IOException ? failure.getMessage() : failure.toString()));
+
+            if (peer.chunk >= 0) {
+                chunkHolders[peer.chunk]--;
+                if (peer.writing) {
+                    writingChunks.clear(peer.chunk);
+                    peer.writing = false;
+                }
+                if (chunkHolders[peer.chunk] == 0 && !completedChunks.get(peer.chunk)) {
+                    pendingChunks.addFirst(peer.chunk);
+                }
+            }
+        }
+        peer.chunk = -1;
+        notifyAll();
+    }
+
+    /**
+     * Whether a peer is much slower than the fastest active peer.
+     */
+    private boolean isSlow(Peer peer) {
+        double fastest = 0;
+        for (Peer other : peers) {
+            if (!other.failed) {
+                fastest = Math.max(fastest, other.rate());
+            }
+        }
+        return peer.rate() * SLOW_PEER_RATIO < fastest;
+    }
+
+    /**
+     * Whether every chunk has been received (false until the chunks are set up).
+     */
+    private boolean isComplete() {
+        return completedChunks != null && completedChunks.cardinality() == numChunks;
+    }
+
+    /**
+     * Renames the completed temporary file to its final name, atomically where supported.
+     */
+    private static void moveIntoPlace(Path tempPath, Path targetPath) throws IOException {
+        try {
+            Files.move(tempPath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
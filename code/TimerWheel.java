@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel : a deadline for each key, found again when it passes at a cost proportional
+ * to the keys expiring rather than to every key held.
+ *
+ * Time (System.nanoTime()) is split into ticks, and each key is held in the slot of the tick its
+ * deadline falls in, modulo the number of slots. advance() visits only the slots of the ticks
+ * passed since it was last called, expiring the keys there whose deadline has passed; a key whose
+ * deadline is one or more turns of the wheel away stays in its slot until then. Rescheduling a key
+ * (a node advertising again) moves it to its new slot in O(1).
+ *
+ * Keys expire up to one tick late, never early.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class TimerWheel<K> {
+    private long tickNanos;   // ns covered by each slot
+    private int  mask;        // number of slots - 1, a power of two
+
+    private final List<HashSet<K>>   slots;     // keys by the tick of their deadline
+    private final HashMap<K, Long>   deadlines; // key -> ns deadline
+    private long                     tick;      // next tick to visit
+
+    /**
+     * Constructor for TimerWheel.
+     *
+     * @param tickMillis : ms covered by each slot, the most a key can expire late.
+     * @param numSlots   : number of slots, rounded up to a power of two. Deadlines up to tickMillis * numSlots
+     *                     ms ahead expire at the first visit of their slot.
+     */
+    public TimerWheel(long tickMillis, int numSlots) {
+        int size = Integer.highestOneBit(Math.max(1, numSlots - 1)) << 1;
+
+        this.tickNanos = Math.max(1, tickMillis) * 1000000L;
+        this.mask      = size - 1;
+        this.slots     = new ArrayList<>(size);
+        this.deadlines = new HashMap<>();
+        this.tick      = Math.floorDiv(System.nanoTime(), tickNanos);
+
+        for (int i = 0; i < size; i++) {
+            slots.add(new HashSet<>());
+        }
+    }
+
+    /**
+     * Sets (or moves) the deadline of a key.
+     *
+     * @param key      : the key to expire.
+     * @param deadline : ns, System.nanoTime() at or after which the key expires.
+     */
+    public synchronized void schedule(K key, long deadline) {
+        Long previous = deadlines.put(key, deadline);
+        if (previous != null) {
+            slots.get(slotOf(previous)).remove(key);
+        }
+        slots.get(slotOf(deadline)).add(key);
+    }
+
+    /**
+     * Removes a key, returning whether it was held.
+     */
+    public synchronized boolean cancel(K key) {
+        Long previous = deadlines.remove(key);
+        if (previous == null) {
+            return false;
+        }
+        slots.get(slotOf(previous)).remove(key);
+        return true;
+    }
+
+    /**
+     * Removes and returns the keys whose deadline has passed.
+     *
+     * @param now : ns, System.nanoTime().
+     */
+    public synchronized List<K> advance(long now) {
+        ArrayList<K> expired = new ArrayList<>();
+        long nowTick = Math.floorDiv(now, tickNanos);
+
+        // Only ticks wholly passed are visited, so a key due later in the current tick is not skipped
+        // for a turn of the wheel; every slot is visited at most once, however long since the last call
+        long last = Math.min(nowTick - 1, tick + mask);
+        for (; tick <= last; tick++) {
+            Iterator<K> keys = slots.get((int) (tick & mask)).iterator();
+            while (keys.hasNext()) {
+                K key = keys.next();
+                if (deadlines.get(key) <= now) {
+                    keys.remove();
+                    deadlines.remove(key);
+                    expired.add(key);
+                }
+            }
+        }
+        tick = Math.max(tick, nowTick);
+
+        return expired;
+    }
+
+    /**
+     * Returns the number of keys held.
+     */
+    public synchronized int size() {
+        return deadlines.size();
+    }
+
+    /**
+     * Returns the slot for a deadline, the slot to be visited next if it has passed. Caller must hold the lock.
+     */
+    private int slotOf(long deadline) {
+        return (int) (Math.max(Math.floorDiv(deadline, tickNanos), tick) & mask);
+    }
+}
@@ -0,0 +1,231 @@
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paced queue of messages waiting to be sent to the multicast group, in front of the endpoint.
+ *
+ * Messages are sent by one thread at no more than txRate datagrams per second on average, with
+ * bursts of up to txBurst (a token bucket), so that a burst of search-results does not overflow
+ * the socket buffers of slower nodes, which would drop datagrams without anyone knowing.
+ *
+ * Each message is queued at one of three priorities, and the highest priority message waiting is
+ * always sent next :
+ *
+ *   CONTROL : advertisements and errors, which keep the group's view of its nodes up to date
+ *   REQUEST : search/download-requests and download-results
+ *   BULK    : search-results
+ *
+ * Each priority holds at most txQueueSize messages, and a message queued when its priority is full
+ * is dropped (and counted).
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class TransmitQueue implements Runnable {
+    public static final int CONTROL = 0;
+    public static final int REQUEST = 1;
+    public static final int BULK    = 2;
+
+    /**
+     * Sends a message straight to the multicast group.
+     */
+    public interface Sender {
+        boolean send(Message message);
+    }
+
+    private Configuration configuration;
+    private Sender        sender;
+    private double        rate;         // tokens (datagrams) added per ns
+    private double        burst;        // most tokens held
+    private int           capacity;     // most messages queued at each priority
+
+    private final List<ArrayDeque<Message>> queues; // one per priority, guarded by this
+    private double tokens;                          // guarded by this
+    private long   lastRefill;                      // ns, guarded by this
+
+    private final AtomicLong queued;   // messages accepted into the queue
+    private final AtomicLong sent;     // messages sent
+    private final AtomicLong paced;    // messages that waited for a token
+    private final AtomicLong dropped;  // messages dropped as their priority was full
+
+    private Thread sending;            // null until started
+
+    /**
+     * Constructor for TransmitQueue, use start() to start the sending thread.
+     *
+     * @param configuration : configuration of current machine.
+     * @param sender        : sends a message straight to the multicast group.
+     */
+    public TransmitQueue(Configuration configuration, Sender sender) {
+        this.configuration = configuration;
+        this.sender        = sender;
+        this.rate          = configuration.txRate / 1e9;
+        this.burst         = Math.max(1, configuration.txBurst);
+        this.capacity      = Math.max(1, configuration.txQueueSize);
+        this.queues        = List.of(new ArrayDeque<>(), new ArrayDeque<>(), new ArrayDeque<>());
+        this.tokens        = burst;
+        this.lastRefill    = System.nanoTime();
+        this.queued        = new AtomicLong();
+        this.sent          = new AtomicLong();
+        this.paced         = new AtomicLong();
+        this.dropped       = new AtomicLong();
+    }
+
+    /**
+     * Starts the sending thread.
+     */
+    public void start() {
+        sending = new Thread(this, "transmit-queue");
+        sending.setDaemon(true);
+        sending.start();
+    }
+
+    /**
+     * Stops the sending thread, messages still queued are not sent.
+     */
+    public void stop() {
+        if (sending != null) {
+            sending.interrupt();
+        }
+    }
+
+    /**
+     * Returns the priority a message is sent at.
+     */
+    public static int priorityOf(Message message) {
+        if (message instanceof AdvertisementMessage || message instanceof SearchErrorMessage || message instanceof DownloadErrorMessage) {
+            return CONTROL;
+        }
+        if (message instanceof SearchResultMessage) {
+            return BULK;
+        }
+        return REQUEST;
+    }
+
+    /**
+     * Queues a message to be sent, without blocking.
+     *
+     * @return false if the message's priority was full and it was dropped.
+     */
+    public synchronized boolean offer(Message message) {
+        ArrayDeque<Message> queue = queues.get(priorityOf(message));
+        if (queue.size() >= capacity) {
+            dropped.incrementAndGet();
+            configuration.log.writeLog("tx queue full, dropped " + message.getType());
+            return false;
+        }
+
+        queue.add(message);
+        queued.incrementAndGet();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Sends queued messages, highest priority first, waiting for a token before each.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            Message message;
+            try {
+                message = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                sender.send(message);
+                sent.incrementAndGet();
+            } catch (RuntimeException e) {
+                // One bad message must not stop the sending thread
+                System.err.println("TransmitQueue.run() : " + message.getType() + " -> " + e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent.
+     */
+    public synchronized int getQueueDepth() {
+        return queues.get(CONTROL).size() + queues.get(REQUEST).size() + queues.get(BULK).size();
+    }
+
+    /**
+     * Returns the counters, e.g "queued=120 sent=118 paced=40 dropped=0, waiting=2".
+     */
+    public String getStatsString() {
+        return "queued=" + queued.get() + " sent=" + sent.get() + " paced=" + paced.get() + " dropped=" + dropped.get() +
+               ", waiting=" + getQueueDepth();
+    }
+
+    /**
+     * Returns the number of messages accepted into the queue.
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Returns the number of messages sent.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Returns the number of messages that waited for a token before being sent.
+     */
+    public long getPaced() {
+        return paced.get();
+    }
+
+    /**
+     * Returns the number of messages dropped as their priority was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits for a message and a token to send it with, then takes both.
+     * The message is chosen once the token is available, so a higher priority message queued
+     * meanwhile goes first.
+     */
+    private synchronized Message take() throws InterruptedException {
+        while (getQueueDepth() == 0) {
+            wait();
+        }
+
+        boolean waited = false;
+        refill();
+        while (tokens < 1) {
+            long waitNanos = (long) Math.ceil((1 - tokens) / rate);
+            wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            refill();
+            waited = true;
+        }
+        tokens -= 1;
+
+        if (waited) {
+            paced.incrementAndGet();
+        }
+
+        for (ArrayDeque<Message> queue : queues) {
+            if (!queue.isEmpty()) {
+                return queue.poll();
+            }
+        }
+        return null; // not reached, only this thread takes messages
+    }
+
+    /**
+     * Adds the tokens earned since the last refill, up to burst. Caller must hold the lock.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,416 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trigram index over the logical paths held in the FileCatalog.
+ *
+ * Every path is normalised to lower case and relative to the root directory with a
+ * leading "/" (e.g /dir1/text1-1.txt). Each distinct three character sequence of a path
+ * has a posting list of the ids of paths that contain it, so a substring query becomes
+ * an intersection of the posting lists for the query's trigrams, followed by a
+ * confirmation of the (few) remaining candidates. A substring query starting within the root
+ * directory name (e.g "dir/dir1") matches the paths that start with the rest of the query.
+ *
+ * Supports the search types of Configuration.searchOptions :
+ *   path                    : exact case-insensitive match on the path
+ *   path-filename           : exact case-insensitive match on the path or the file name
+ *   path-filename-substring : case-insensitive substring match on the path
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class TrigramIndex {
+    private final String rootPrefix;    // normalised root directory name followed by "/"
+
+    private final ReentrantReadWriteLock lock;
+
+    private ArrayList<String>            keys;           // id -> normalised path (null once removed)
+    private ArrayList<FileCatalog.Entry> entries;        // id -> catalog entry (null once removed)
+    private HashMap<String, Integer>     idsByLogical;   // logical path (case-sensitive) -> id
+    private HashMap<String, IntList>     idsByPath;      // normalised path -> ids
+    private HashMap<String, IntList>     idsByFilename;  // lower case file name -> ids
+    private HashMap<Long, IntList>       postings;       // packed trigram -> ids (ascending)
+    private int                          removed;        // number of ids removed since last compaction
+
+    /**
+     * Growable array of ints, used for posting lists.
+     */
+    private static class IntList {
+        private int[] data = new int[4];
+        private int   size = 0;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (data[i] == value) {
+                    System.arraycopy(data, i + 1, data, i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor for TrigramIndex.
+     *
+     * @param rootDir : name of root directory, as used as the prefix of logical paths.
+     */
+    public TrigramIndex(String rootDir) {
+        this.rootPrefix = rootDir.toLowerCase(Locale.ROOT) + "/";
+        this.lock = new ReentrantReadWriteLock();
+        clear();
+    }
+
+    /**
+     * Removes everything from the index.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            keys          = new ArrayList<>();
+            entries       = new ArrayList<>();
+            idsByLogical  = new HashMap<>();
+            idsByPath     = new HashMap<>();
+            idsByFilename = new HashMap<>();
+            postings      = new HashMap<>();
+            removed       = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds an entry to the index, replacing any entry with the same path.
+     */
+    public void add(FileCatalog.Entry entry) {
+        String key = normalise(entry.getLogicalPath(), true);
+
+        lock.writeLock().lock();
+        try {
+            Integer existing = idsByLogical.get(entry.getLogicalPath());
+            if (existing != null) {
+                entries.set(existing, entry);
+                return;
+            }
+            insert(key, entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the entry with the given logical path from the index.
+     */
+    public void remove(String logicalPath) {
+        String key = normalise(logicalPath, true);
+
+        lock.writeLock().lock();
+        try {
+            Integer id = idsByLogical.remove(logicalPath);
+            if (id == null) {
+                return;
+            }
+
+            IntList samePath = idsByPath.get(key);
+            if (samePath != null) {
+                samePath.remove(id);
+            }
+
+            IntList sameName = idsByFilename.get(filename(key));
+            if (sameName != null) {
+                sameName.remove(id);
+            }
+
+            // Posting lists keep the stale id until the next compaction, candidates are confirmed against keys
+            keys.set(id, null);
+            entries.set(id, null);
+            removed++;
+
+            if (removed > 1024 && removed > idsByLogical.size()) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of paths in the index.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return idsByLogical.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns all entries matching the search string under the given search type.
+     *
+     * @param searchString : the query.
+     * @param searchType   : one of "path", "path-filename" or "path-filename-substring".
+     * @return ArrayList of matching catalog entries (empty for unknown search types).
+     */
+    public ArrayList<FileCatalog.Entry> search(String searchString, String searchType) {
+        ArrayList<FileCatalog.Entry> matchingEntries = new ArrayList<>();
+        String query = normalise(searchString, true);
+
+        lock.readLock().lock();
+        try {
+            switch (searchType) {
+                case "path" :
+                    addAll(idsByPath.get(query), new HashSet<>(), matchingEntries);
+                    break;
+                case "path-filename" :
+                    HashSet<Integer> seen = new HashSet<>();
+                    addAll(idsByPath.get(query), seen, matchingEntries);
+                    addAll(idsByFilename.get(searchString.toLowerCase(Locale.ROOT)), seen, matchingEntries);
+                    break;
+                case "path-filename-substring" :
+                    addSubstring(searchString.toLowerCase(Locale.ROOT), matchingEntries);
+                    break;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return matchingEntries;
+    }
+
+    /**
+     * Returns whether a logical path matches the search string under the given search type, 
+     * i.e whether search() would return it were it in the index.
+     */
+    public boolean matches(String logicalPath, String searchString, String searchType) {
+        String key = normalise(logicalPath, true);
+
+        switch (searchType) {
+            case "path" :
+                return key.equals(normalise(searchString, true));
+            case "path-filename" :
+                return key.equals(normalise(searchString, true)) || 
+                       filename(key).equals(searchString.toLowerCase(Locale.ROOT));
+            case "path-filename-substring" :
+                String query = searchString.toLowerCase(Locale.ROOT);
+                if (rootPrefix.contains(query) || key.contains(query)) {
+                    return true;
+                }
+                for (String rest : rootOverlaps(query)) {
+                    if (key.startsWith(rest)) {
+                        return true;
+                    }
+                }
+                return false;
+            default :
+                return false;
+        }
+    }
+
+    /**
+     * Adds the entries of a list of ids that are not already in the results.
+     */
+    private void addAll(IntList ids, HashSet<Integer> seen, ArrayList<FileCatalog.Entry> matchingEntries) {
+        if (ids == null) {
+            return;
+        }
+
+        for (int i = 0; i < ids.size; i++) {
+            FileCatalog.Entry entry = entries.get(ids.data[i]);
+            if (entry != null && seen.add(ids.data[i])) {
+                matchingEntries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Adds every entry whose logical path contains the query.
+     *
+     * @param query : lower case query as entered by the user.
+     */
+    private void addSubstring(String query, ArrayList<FileCatalog.Entry> matchingEntries) {
+        // Every logical path starts with the root directory, so any part of it matches everything
+        if (rootPrefix.contains(query)) {
+            for (FileCatalog.Entry entry : entries) {
+                if (entry != null) {
+                    matchingEntries.add(entry);
+                }
+            }
+            return;
+        }
+
+        BitSet matched = new BitSet(keys.size());
+        addCandidates(query, false, matched);
+        for (String rest : rootOverlaps(query)) {
+            addCandidates(rest, true, matched);
+        }
+
+        for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+            matchingEntries.add(entries.get(id));
+        }
+    }
+
+    /**
+     * For a query starting within the root directory name, returns what is left of the query after
+     * the end of the name, once for each place in the name the query can start (e.g "dir/dir1" gives "/dir1"
+     * for the root directory "root_dir"). A path matches the query there if it starts with what is left.
+     */
+    private ArrayList<String> rootOverlaps(String query) {
+        ArrayList<String> rests = new ArrayList<>();
+        int rootLength = rootPrefix.length() - 1;
+
+        for (int start = 0; start < rootLength; start++) {
+            int overlap = rootLength - start;
+            if (query.length() > overlap && query.startsWith(rootPrefix.substring(start, rootLength))) {
+                rests.add(query.substring(overlap));
+            }
+        }
+        return rests;
+    }
+
+    /**
+     * Marks the ids of the normalised paths that contain (or start with) a string.
+     *
+     * @param atStart : whether the path must start with the string.
+     */
+    private void addCandidates(String query, boolean atStart, BitSet matched) {
+        // Too short to have a trigram, confirm against every path
+        if (query.length() < 3) {
+            for (int id = 0; id < keys.size(); id++) {
+                String key = keys.get(id);
+                if (key != null && (atStart ? key.startsWith(query) : key.contains(query))) {
+                    matched.set(id);
+                }
+            }
+            return;
+        }
+
+        // Gather the posting list of each distinct trigram, any missing trigram means no match
+        HashSet<Long> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= query.length(); i++) {
+            trigrams.add(trigram(query, i));
+        }
+
+        IntList[] lists = new IntList[trigrams.size()];
+        int n = 0;
+        for (Long trigram : trigrams) {
+            IntList list = postings.get(trigram);
+            if (list == null || list.size == 0) {
+                return;
+            }
+            lists[n++] = list;
+        }
+
+        // Intersect starting from the shortest posting list
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        int[] candidates = Arrays.copyOf(lists[0].data, lists[0].size);
+        int numCandidates = candidates.length;
+
+        for (int l = 1; l < lists.length && numCandidates > 0; l++) {
+            int kept = 0;
+            for (int i = 0; i < numCandidates; i++) {
+                if (Arrays.binarySearch(lists[l].data, 0, lists[l].size, candidates[i]) >= 0) {
+                    candidates[kept++] = candidates[i];
+                }
+            }
+            numCandidates = kept;
+        }
+
+        // Confirm candidates, trigrams may be present but not contiguous
+        for (int i = 0; i < numCandidates; i++) {
+            String key = keys.get(candidates[i]);
+            if (key != null && (atStart ? key.startsWith(query) : key.contains(query))) {
+                matched.set(candidates[i]);
+            }
+        }
+    }
+
+    /**
+     * Assigns the next id to a path and adds it to every lookup structure.
+     * Caller must hold the write lock.
+     */
+    private void insert(String key, FileCatalog.Entry entry) {
+        int id = keys.size();
+        keys.add(key);
+        entries.add(entry);
+        idsByLogical.put(entry.getLogicalPath(), id);
+        idsByPath.computeIfAbsent(key, k -> new IntList()).add(id);
+        idsByFilename.computeIfAbsent(filename(key), k -> new IntList()).add(id);
+
+        for (int i = 0; i + 3 <= key.length(); i++) {
+            long trigram = trigram(key, i);
+            IntList list = postings.computeIfAbsent(trigram, k -> new IntList());
+
+            // ids are increasing, so only the tail can already hold this id (repeated trigram)
+            if (list.size == 0 || list.data[list.size - 1] != id) {
+                list.add(id);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds every lookup structure from the live entries, dropping stale ids.
+     * Caller must hold the write lock.
+     */
+    private void compact() {
+        ArrayList<String> oldKeys = keys;
+        ArrayList<FileCatalog.Entry> oldEntries = entries;
+
+        keys          = new ArrayList<>(idsByLogical.size());
+        entries       = new ArrayList<>(idsByLogical.size());
+        idsByLogical  = new HashMap<>();
+        idsByPath     = new HashMap<>();
+        idsByFilename = new HashMap<>();
+        postings      = new HashMap<>();
+        removed       = 0;
+
+        for (int id = 0; id < oldKeys.size(); id++) {
+            if (oldKeys.get(id) != null) {
+                insert(oldKeys.get(id), oldEntries.get(id));
+            }
+        }
+    }
+
+    /**
+     * Normalises a logical path or query : lower case with the root directory removed.
+     *
+     * @param path     : a logical path or search string.
+     * @param fullPath : whether the string is a whole path, which is then given a leading "/".
+     */
+    private String normalise(String path, boolean fullPath) {
+        String key = path.toLowerCase(Locale.ROOT);
+
+        if (key.startsWith(rootPrefix)) {
+            key = key.substring(rootPrefix.length() - 1);
+        } else if (fullPath && !key.startsWith("/")) {
+            key = "/" + key;
+        }
+        return key;
+    }
+
+    /**
+     * Returns the file name (last path component) of a normalised path.
+     */
+    private static String filename(String key) {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Packs the three characters starting at index i into a single long.
+     */
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+}
@@ -0,0 +1,141 @@
+import java.util.ArrayDeque;
+
+/**
+ * Admission control for uploads served by the FileServer.
+ *
+ * At most maxConcurrentUploads transfers send data at once. Further transfers wait in a
+ * bounded queue until a slot frees up, and once the queue is full new download-requests
+ * are turned away with a "busy, retry after N ms" download-error. This keeps the number of
+ * files being read from disk (and sent over the NIC) at the same time predictable.
+ *
+ * A transfer is queued from the moment its download-request is admitted (while the
+ * requester connects) until it is given a slot. The FileServer keeps the requester of a
+ * connected transfer waiting (see FileServer.QUEUED), and removes the transfer from the queue
+ * if the requester goes.
+ *
+ * @author 190015412
+ * @since November 2024
+ */
+public class UploadScheduler {
+    private final int maxConcurrentUploads;  // max transfers sending data at once
+    private final int maxQueuedUploads;      // max transfers admitted but not yet sending
+    private final int retryAfter;            // ms a busy requester is told to wait
+
+    private int admitted;                    // admitted, requester not yet connected
+    private int active;                      // currently sending data
+    private final ArrayDeque<Runnable> waiting; // connected, waiting for a slot
+
+    /**
+     * Constructor for UploadScheduler.
+     *
+     * @param configuration : configuration of current machine.
+     */
+    public UploadScheduler(Configuration configuration) {
+        this.maxConcurrentUploads = Math.max(1, configuration.maxConcurrentUploads);
+        this.maxQueuedUploads     = Math.max(0, configuration.maxQueuedUploads);
+        this.retryAfter           = configuration.uploadRetryAfter;
+        this.waiting              = new ArrayDeque<>();
+    }
+
+    /**
+     * Admits a new upload if there is a free slot or room in the queue.
+     *
+     * @return true if admitted, false if the node is too busy.
+     */
+    public synchronized boolean admit() {
+        if (active + admitted + waiting.size() >= maxConcurrentUploads + maxQueuedUploads) {
+            return false;
+        }
+        admitted++;
+        return true;
+    }
+
+    /**
+     * Releases an admitted upload that will never start (e.g its token expired).
+     */
+    public synchronized void cancel() {
+        if (admitted > 0) {
+            admitted--;
+        }
+    }
+
+    /**
+     * Called once the requester of an admitted upload has connected.
+     * Runs begin straight away if a slot is free, otherwise once one frees up.
+     *
+     * @param begin : starts sending data for the upload.
+     */
+    public void start(Runnable begin) {
+        synchronized (this) {
+            if (admitted > 0) {
+                admitted--;
+            }
+            if (active >= maxConcurrentUploads) {
+                waiting.add(begin);
+                return;
+            }
+            active++;
+        }
+        begin.run();
+    }
+
+    /**
+     * Called when an upload that was started finishes (or fails), handing its slot to the next in the queue.
+     */
+    public void finish() {
+        Runnable next;
+        synchronized (this) {
+            active--;
+            next = waiting.poll();
+            if (next == null) {
+                return;
+            }
+            active++;
+        }
+        next.run();
+    }
+
+    /**
+     * Removes an upload from the waiting queue (e.g its connection closed before it got a slot).
+     *
+     * @return true if it was waiting.
+     */
+    public synchronized boolean remove(Runnable begin) {
+        return waiting.remove(begin);
+    }
+
+    /**
+     * Returns the number of uploads currently sending data.
+     */
+    public synchronized int getActiveUploads() {
+        return active;
+    }
+
+    /**
+     * Returns the number of admitted uploads not yet sending data.
+     */
+    public synchronized int getQueueDepth() {
+        return admitted + waiting.size();
+    }
+
+    /**
+     * Returns the maximum number of uploads sending data at once.
+     */
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    /**
+     * Returns the maximum number of uploads waiting.
+     */
+    public int getMaxQueuedUploads() {
+        return maxQueuedUploads;
+    }
+
+    /**
+     * Returns the time (ms) a requester turned away as busy should wait before retrying.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}